@@ -1,12 +1,37 @@
 package b.ds;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
-import java.util.HashMap;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Auth.java
  *
- * Handle all user authentication requests.
+ * Handle all user authentication requests. Lookups, including the token check
+ * made for every request with a cookie, never take a lock. Registration and
+ * login lock only a stripe chosen by username, so that changes to the same
+ * user are made one at a time whilst other users are unaffected.
+ *
+ * On start up only the ID and username of each user is loaded, from an index
+ * file kept beside the users, and each user is read in full the first time it
+ * is needed. Without an index the users are scanned in parallel to build one.
  **/
 public class Auth{
   /**
@@ -25,7 +50,7 @@ public class Auth{
    * An abstract user held in RAM, containing essential data regarding the user
    * in question.
    **/
-  public class User{
+  public static class User{
     /* Unique user ID */
     public I512 id = null;
     /* Unique salt for the user */
@@ -37,20 +62,98 @@ public class Auth{
     /* The role of the user */
     public Role role = Role.NONE;
     /* The current user token */
-    public I512 token = null;
+    public volatile I512 token = null;
     /* The time at which the token comes invalid */
-    public long revoke = -1;
+    public volatile long revoke = -1;
     /* The latest post by this user */
-    public I512 latest = null;
+    public volatile I512 latest = null;
   }
 
-  private static HashMap<I512, User> idMap = new HashMap<I512, User>();
-  private static HashMap<String, User> userMap = new HashMap<String, User>();
-  private static HashMap<I512, User> tokenMap = new HashMap<I512, User>();
+  /**
+   * Scan.Auth.java
+   *
+   * Read a range of files in the user directory, splitting large ranges and
+   * subdirectories into tasks of their own.
+   **/
+  @SuppressWarnings("serial")
+  private static class Scan extends RecursiveAction{
+    private String dir;
+    private File[] files;
+    private int from;
+    private int to;
+    private boolean lazy;
+    private AtomicInteger moved;
+
+    /**
+     * Scan()
+     *
+     * Prepare to scan a range of files.
+     *
+     * @param dir The user directory.
+     * @param files The files in a directory.
+     * @param from The first file to be scanned.
+     * @param to The index after the last file to be scanned.
+     * @param lazy True if only the index is to be kept, otherwise false.
+     * @param moved The count of users moved into their shard.
+     **/
+    public Scan(String dir, File[] files, int from, int to, boolean lazy, AtomicInteger moved){
+      this.dir = dir;
+      this.files = files;
+      this.from = from;
+      this.to = to;
+      this.lazy = lazy;
+      this.moved = moved;
+    }
+
+    @Override
+    protected void compute(){
+      if(to - from > SCAN_BATCH){
+        int mid = (from + to) >>> 1;
+        invokeAll(new Scan(dir, files, from, mid, lazy, moved), new Scan(dir, files, mid, to, lazy, moved));
+        return;
+      }
+      ArrayList<Scan> dirs = new ArrayList<Scan>();
+      for(int x = from; x < to; x++){
+        if(files[x].isDirectory()){
+          File[] sub = files[x].listFiles();
+          if(sub != null){
+            dirs.add(new Scan(dir, sub, 0, sub.length, lazy, moved));
+          }
+        }else{
+          scanFile(dir, files[x], lazy, moved);
+        }
+      }
+      invokeAll(dirs);
+    }
+  }
+
+  public static final String LOAD_EAGER = "eager";
+  public static final String LOAD_LAZY = "lazy";
+
+  private static final int LOCK_STRIPES = 32;
+  private static final int SCAN_BATCH = 64;
+  private static final int USER_MAX_READ = 64 * 1024;
+  private static final int USER_LEN = 512;
+  private static final int FLAG_LATEST = 1;
+
+  private static ConcurrentHashMap<I512, User> idMap = new ConcurrentHashMap<I512, User>();
+  private static ConcurrentHashMap<String, User> userMap = new ConcurrentHashMap<String, User>();
+  private static ConcurrentHashMap<I512, User> tokenMap = new ConcurrentHashMap<I512, User>();
+  /* NOTE: The index holds every user, whether or not it has been read. */
+  private static ConcurrentHashMap<I512, String> index = new ConcurrentHashMap<I512, String>();
+  private static ConcurrentHashMap<String, I512> names = new ConcurrentHashMap<String, I512>();
+  private static ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+  static{
+    for(int x = 0; x < locks.length; x++){
+      locks[x] = new ReentrantLock();
+    }
+  }
 
   private JSON config;
   private I512 salt;
   private String userDir;
+  private String indexPath;
   private long tokenTimeout;
 
   /**
@@ -64,14 +167,233 @@ public class Auth{
     this.config = config;
     salt = new I512(config.get("security").get("salt").value("0"));
     userDir = config.get("data").get("user-dir").value("dat/usr");
+    indexPath = config.get("data").get("user-index").value(userDir + ".idx");
     tokenTimeout = Long.parseLong(config.get("security").get("token-timeout-ms").value("86400000"));
+    String mode = config.get("authentication").get("load-mode").value(LOAD_LAZY);
+    if(!mode.equals(LOAD_LAZY) && !mode.equals(LOAD_EAGER)){
+      Utils.warn("Unknown user load mode '" + mode + "', using lazy");
+      mode = LOAD_LAZY;
+    }
+    int threads = Runtime.getRuntime().availableProcessors();
+    try{
+      threads = Integer.parseInt(config.get("authentication").get("load-threads").value(threads + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find user load threads value");
+    }
     /* Read users from disk */
-    File[] users = (new File(userDir)).listFiles();
-    for(int x = 0; x < users.length; x++){
-      if(users[x].isFile() && !users[x].isDirectory() && users[x].length() > 0){
-        User user = readUser(users[x].getPath(), new User());
+    long start = System.currentTimeMillis();
+    boolean lazy = mode.equals(LOAD_LAZY);
+    if(lazy && readIndex()){
+      Utils.log("Indexed " + index.size() + " users from " + indexPath + " in " + (System.currentTimeMillis() - start) + "ms");
+    }else{
+      scan(Math.max(threads, 1), lazy);
+      writeIndex();
+      Utils.log((lazy ? "Indexed " : "Loaded ") + index.size() + " users in " + (System.currentTimeMillis() - start) + "ms");
+    }
+  }
+
+  /**
+   * scan()
+   *
+   * Read every user file in parallel, building the index.
+   *
+   * @param threads The number of threads to read with.
+   * @param lazy True if only the index is to be kept, otherwise false.
+   **/
+  private void scan(int threads, boolean lazy){
+    File[] files = (new File(userDir)).listFiles();
+    if(files == null){
+      return;
+    }
+    AtomicInteger moved = new AtomicInteger(0);
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try{
+      pool.invoke(new Scan(userDir, files, 0, files.length, lazy, moved));
+    }finally{
+      pool.shutdown();
+    }
+    if(moved.get() > 0){
+      Utils.log("Moved " + moved.get() + " users into shards");
+    }
+  }
+
+  /**
+   * scanFile()
+   *
+   * Read a single file found in the user directory.
+   *
+   * @param dir The user directory.
+   * @param file The file to be read.
+   * @param lazy True if only the index is to be kept, otherwise false.
+   * @param moved The count of users moved into their shard.
+   **/
+  private static void scanFile(String dir, File file, boolean lazy, AtomicInteger moved){
+    /* NOTE: A temporary file left by a crash was never renamed into place. */
+    if(file.getName().endsWith(Data.TEMP_SUFFIX)){
+      Utils.warn("Removing unfinished user write");
+      file.delete();
+      return;
+    }
+    User user = parseUser(file.getPath(), new User());
+    if(user == null){
+      return;
+    }
+    if(lazy){
+      index.put(user.id, user.username);
+      names.put(user.username, user.id);
+    }else{
+      addUser(user);
+    }
+    /* Move users from the flat layout into their shard */
+    if(!file.equals(new File(Data.shard(dir, user.id)))){
+      Data.locate(dir, user.id);
+      moved.incrementAndGet();
+    }
+  }
+
+  /**
+   * readIndex()
+   *
+   * Read the ID and username of every user from the index file. An entry cut
+   * short at the end, for example by a crash, is removed.
+   *
+   * @return True if the index was read, otherwise false.
+   **/
+  private boolean readIndex(){
+    File file = new File(indexPath);
+    if(!file.isFile()){
+      return false;
+    }
+    BufferedReader br = null;
+    long good = 0;
+    int bad = 0;
+    try{
+      br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+      long len = file.length();
+      String line;
+      /* NOTE: Entries are ASCII, so each character is a byte. */
+      while((line = br.readLine()) != null && good + line.length() < len){
+        good += line.length() + 1;
+        int s = line.indexOf(' ');
+        String name = s >= 0 ? line.substring(s + 1) : "";
+        if(s != I512.MAX_STR_BASE64_LEN || name.length() <= 0 || !checkUsername(name)){
+          ++bad;
+          continue;
+        }
+        try{
+          I512 id = new I512(line.substring(0, s));
+          index.put(id, name);
+          names.put(name, id);
+        }catch(NumberFormatException e){
+          ++bad;
+        }
+      }
+    }catch(IOException e){
+      Utils.warn("Unable to read user index");
+      index.clear();
+      names.clear();
+      return false;
+    }finally{
+      if(br != null){
+        try{
+          br.close();
+        }catch(IOException e){
+          /* Do nothing */
+        }
       }
     }
+    if(bad > 0){
+      Utils.warn("Skipped " + bad + " bad entries in user index");
+    }
+    /* Drop any partial entry so that appends line up again */
+    if(good < file.length()){
+      Utils.warn("User index has " + (file.length() - good) + " trailing bytes");
+      try{
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+          raf.setLength(good);
+        }finally{
+          raf.close();
+        }
+      }catch(IOException e){
+        Utils.warn("Failed to truncate user index");
+      }
+    }
+    return true;
+  }
+
+  /**
+   * writeIndex()
+   *
+   * Replace the index file with the ID and username of every known user.
+   **/
+  private void writeIndex(){
+    File file = new File(indexPath);
+    File tmp = new File(indexPath + Data.TEMP_SUFFIX);
+    try{
+      BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16);
+      try{
+        for(Map.Entry<I512, String> e : index.entrySet()){
+          out.write(entry(e.getKey(), e.getValue()));
+        }
+      }finally{
+        out.close();
+      }
+      try{
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      }catch(AtomicMoveNotSupportedException e){
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }catch(IOException e){
+      Utils.warn("Unable to write user index");
+    }
+  }
+
+  /**
+   * entry()
+   *
+   * Get the line for a user in the index file.
+   *
+   * @param id The ID of the user.
+   * @param username The username of the user.
+   * @return The line, including its newline.
+   **/
+  private static byte[] entry(I512 id, String username){
+    return (id.toString() + " " + username + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * load()
+   *
+   * Read a user in the index that has not yet been read in full. A user that
+   * can no longer be read is removed from the index.
+   *
+   * @param id The ID of the user.
+   * @return The user, otherwise NULL.
+   **/
+  private User load(I512 id){
+    String name = index.get(id);
+    if(name == null){
+      return null;
+    }
+    ReentrantLock lock = lock(name);
+    lock.lock();
+    try{
+      /* Somebody else may have read it first */
+      User user = idMap.get(id);
+      if(user != null){
+        return user;
+      }
+      user = readUser(Data.locate(userDir, id), new User());
+      if(user == null){
+        Utils.warn("Dropping unreadable user from index");
+        index.remove(id, name);
+        names.remove(name, id);
+      }
+      return user;
+    }finally{
+      lock.unlock();
+    }
   }
 
   /**
@@ -92,7 +414,7 @@ public class Auth{
       username.length() < 6    ||
       username.length() > 64   ||
       !checkUsername(username) ||
-      userMap.containsKey(username)
+      names.containsKey(username) && getUserByName(username) != null
     ){
       Utils.logUnsafe("Bad username for registration", username);
       return null;
@@ -109,21 +431,32 @@ public class Auth{
     }
     /* Create new user */
     User user = new User();
-    /* Generate unique ID */
-    while(idMap.containsKey(user.id = Utils.genRandHash()));
     user.usalt = Utils.genRandHash();
     user.username = username;
     user.password = Utils.genPassHash(salt, user.usalt, passwordA);
-    /* Generate unique token */
-    while(tokenMap.containsKey(user.token = Utils.genRandHash()));
-    user.revoke = System.currentTimeMillis() + tokenTimeout;
-    /* Save the user to disk */
-    if(writeUser(userDir + "/" + user.id, user) != user){
-      Utils.warn("Unable to save new user");
-    }else{
-      idMap.put(user.id, user);
-      userMap.put(user.username, user);
-      tokenMap.put(user.token, user);
+    ReentrantLock lock = lock(username);
+    lock.lock();
+    try{
+      /* Check again now that nobody else can take the username */
+      if(getUserByName(username) != null){
+        Utils.logUnsafe("Username taken during registration", username);
+        return null;
+      }
+      /* Generate unique ID */
+      while(index.containsKey(user.id = Utils.genRandHash()));
+      /* NOTE: An entry without a user is dropped when first read. */
+      if(!Data.append(indexPath, new String(entry(user.id, username), StandardCharsets.UTF_8))){
+        Utils.warn("Unable to add new user to index");
+        return null;
+      }
+      /* Save the user to disk */
+      if(writeUser(Data.locate(userDir, user.id), user) != user){
+        Utils.warn("Unable to save new user");
+        return null;
+      }
+      addUser(user);
+    }finally{
+      lock.unlock();
     }
     /* Login with user */
     return login(username, passwordA);
@@ -139,21 +472,29 @@ public class Auth{
    * @return The logged in user, otherwise NULL.
    **/
   public User login(String username, String password){
-    User user = null;
     /* Attempt to login the user */
-    if(userMap.containsKey(username)){
-      user = userMap.get(username);
+    User user = getUserByName(username);
+    if(user != null && password != null){
       I512 pwd = Utils.genPassHash(salt, user.usalt, password);
       /* Make sure for sure it's the right user and password */
       if(user.username.equals(username) && user.password.equals(pwd)){
-        /* Remove existing token if required */
-        if(tokenMap.containsKey(user.token) && tokenMap.get(user.token).token == user.token){
-          tokenMap.remove(user.token);
+        ReentrantLock lock = lock(username);
+        lock.lock();
+        try{
+          /* Remove existing token if required */
+          if(user.token != null){
+            tokenMap.remove(user.token, user);
+          }
+          /* Generate a unique token and update revoke deadline */
+          I512 token = Utils.genRandHash();
+          while(tokenMap.putIfAbsent(token, user) != null){
+            token = Utils.genRandHash();
+          }
+          user.revoke = System.currentTimeMillis() + tokenTimeout;
+          user.token = token;
+        }finally{
+          lock.unlock();
         }
-        /* Generate a unique token and update revoke deadline */
-        while(tokenMap.containsKey(user.token = Utils.genRandHash()));
-        user.revoke = System.currentTimeMillis() + tokenTimeout;
-        tokenMap.put(user.token, user);
       }else{
         user = null;
       }
@@ -181,17 +522,16 @@ public class Auth{
       Utils.warn("Badly formatted token " + token);
     }
     /* Check that we do have a token */
-    if(t != null && tokenMap.containsKey(t)){
-      User user = tokenMap.get(t);
+    User user = t != null ? tokenMap.get(t) : null;
+    if(user != null){
       /* Make sure it is for sure a token match and not just a hash match */
-      if(user.token != null && t.equals(user.token)){
+      if(t.equals(user.token)){
         /* Make sure the token is not timed out */
         if(System.currentTimeMillis() <= user.revoke){
           return user;
         }else{
-          /* Revoke the token */
-          tokenMap.remove(user.token);
-          user.token = null;
+          /* Revoke the token, unless a login has just replaced it */
+          tokenMap.remove(t, user);
         }
       }
     }
@@ -212,14 +552,30 @@ public class Auth{
     if(id == null){
       return null;
     }
-    I512 i = new I512(id);
-    /* Check for user String */
-    if(idMap.containsKey(i)){
-      User user = idMap.get(i);
-      /* Make sure it really was a match */
-      if(user.id.equals(i)){
-        return user;
-      }
+    return getUserById(new I512(id));
+  }
+
+  /**
+   * getUserById()
+   *
+   * Get the user by a given ID, or NULL if the user cannot be found.
+   *
+   * @param i The ID to use for searching.
+   * @return The user found, otherwise NULL.
+   **/
+  public User getUserById(I512 i){
+    /* Make sure it's not NULL */
+    if(i == null){
+      return null;
+    }
+    /* Check for user ID, reading it if required */
+    User user = idMap.get(i);
+    if(user == null){
+      user = load(i);
+    }
+    /* Make sure it really was a match */
+    if(user != null && user.id.equals(i)){
+      return user;
     }
     return null;
   }
@@ -237,13 +593,15 @@ public class Auth{
     if(name == null){
       return null;
     }
-    /* Check for user String */
-    if(userMap.containsKey(name)){
-      User user = userMap.get(name);
-      /* Make sure it really was a match */
-      if(user.username.equals(name)){
-        return user;
-      }
+    /* Check for user String, reading it if required */
+    User user = userMap.get(name);
+    if(user == null){
+      I512 id = names.get(name);
+      user = id != null ? load(id) : null;
+    }
+    /* Make sure it really was a match */
+    if(user != null && user.username.equals(name)){
+      return user;
     }
     return null;
   }
@@ -259,8 +617,42 @@ public class Auth{
    * @return The user object, otherwise NULL.
    **/
   public static User readUser(String path, User user){
+    user = parseUser(path, user);
+    return user != null ? addUser(user) : null;
+  }
+
+  /**
+   * parseUser()
+   *
+   * Read user data from disk without adding it to the lookups. Return NULL if
+   * an issue occurs.
+   *
+   * @param path The path for the user configuration.
+   * @param user A user object to be written to.
+   * @return The user object, otherwise NULL.
+   **/
+  private static User parseUser(String path, User user){
     try{
-      JSON userData = JSON.build(path);
+      byte[] raw = Codec.decode(Data.readBytes(path, USER_MAX_READ));
+      if(raw == null){
+        Utils.warn("Could not read user file");
+        return null;
+      }
+      if(Record.is(raw, Record.KIND_USER)){
+        Record rec = new Record(raw, Record.KIND_USER);
+        int flags = rec.getByte();
+        user.id = rec.getI512();
+        user.usalt = rec.getI512();
+        user.password = rec.getI512();
+        int role = rec.getByte();
+        user.role = role < Role.values().length ? Role.values()[role] : Role.NONE;
+        user.username = rec.getString();
+        user.latest = (flags & FLAG_LATEST) != 0 ? rec.getI512() : null;
+        user.token = null;
+        user.revoke = System.currentTimeMillis();
+        return checkUser(user);
+      }
+      JSON userData = new JSON(raw);
       user.id = new I512(userData.get("id").value(null));
       user.usalt = null;
       try{
@@ -274,26 +666,53 @@ public class Auth{
       user.role = Role.valueOf(userData.get("role").value("NONE"));
       user.token = null;
       user.revoke = System.currentTimeMillis();
-      user.latest = new I512(userData.get("latest").value(null));
-      if(
-        user.id != null       &&
-        user.usalt != null    &&
-        user.username != null &&
-        user.password != null
-      ){
-        idMap.put(user.id, user);
-        userMap.put(user.username, user);
-        return user;
-      }else{
-        Utils.warn("Could not read user");
-        return null;
-      }
+      String latest = userData.get("latest").value(null);
+      user.latest = latest != null ? new I512(latest) : null;
+      return checkUser(user);
     }catch(Exception e){
       Utils.warn("Exception throw whilst reading user");
       return null;
     }
   }
 
+  /**
+   * checkUser()
+   *
+   * Check that a user read from disk is complete.
+   *
+   * @param user The user read.
+   * @return The user object, otherwise NULL.
+   **/
+  private static User checkUser(User user){
+    if(
+      user.id != null       &&
+      user.usalt != null    &&
+      user.username != null &&
+      user.password != null
+    ){
+      return user;
+    }else{
+      Utils.warn("Could not read user");
+      return null;
+    }
+  }
+
+  /**
+   * addUser()
+   *
+   * Add a user to the lookups and the index.
+   *
+   * @param user The user.
+   * @return The user object.
+   **/
+  private static User addUser(User user){
+    idMap.put(user.id, user);
+    userMap.put(user.username, user);
+    index.put(user.id, user.username);
+    names.put(user.username, user.id);
+    return user;
+  }
+
   /**
    * writeUser()
    *
@@ -306,23 +725,8 @@ public class Auth{
    **/
   public static User writeUser(String path, User user){
     /* Save the user to disk */
-    JSON data = null;
-    try{
-      data = new JSON(false);
-      data.set(new JSON("id", user.id.toString()));
-      data.set(new JSON("usalt", user.usalt.toString()));
-      data.set(new JSON("username", user.username));
-      data.set(new JSON("password", user.password.toString()));
-      data.set(new JSON("role", user.role.toString()));
-      /* NOTE: Do not store token. */
-      /* NOTE: Do not store revoke. */
-      if(user.latest != null){
-        data.set(new JSON("latest", user.latest.toString()));
-      }
-    }catch(Exception e){
-      data = null;
-    }
-    if(data != null && Data.write(path, data.toString())){
+    byte[] raw = encode(user);
+    if(raw != null && Data.write(path, Codec.encode(raw))){
       Utils.logUnsafe("User configuration saved", user.username);
       return user;
     }else{
@@ -330,6 +734,60 @@ public class Auth{
     }
   }
 
+  /**
+   * encode()
+   *
+   * Convert a user to its stored form, in the chosen record format.
+   *
+   * @param user The user to be converted.
+   * @return The stored user, otherwise NULL on error.
+   **/
+  private static byte[] encode(User user){
+    /* NOTE: Do not store token. */
+    /* NOTE: Do not store revoke. */
+    I512 latest = user.latest;
+    try{
+      if(Record.binary()){
+        Record rec = (new Record(Record.KIND_USER, USER_LEN))
+          .putByte(latest != null ? FLAG_LATEST : 0)
+          .putI512(user.id)
+          .putI512(user.usalt)
+          .putI512(user.password)
+          .putByte(user.role.ordinal())
+          .putString(user.username);
+        if(latest != null){
+          rec.putI512(latest);
+        }
+        return rec.toByteArray();
+      }
+      JSONWriter w = JSONWriter.local()
+        .startObject(null)
+        .string("id", user.id.toString())
+        .string("usalt", user.usalt.toString())
+        .string("username", user.username)
+        .string("password", user.password.toString())
+        .string("role", user.role.toString());
+      if(latest != null){
+        w.string("latest", latest.toString());
+      }
+      return w.endObject().toByteArray();
+    }catch(Exception e){
+      return null;
+    }
+  }
+
+  /**
+   * lock()
+   *
+   * Get the lock guarding changes to the given user.
+   *
+   * @param username The username of the user to be changed.
+   * @return The lock for the stripe the user falls in.
+   **/
+  private static ReentrantLock lock(String username){
+    return locks[(username.hashCode() & 0x7FFFFFFF) % locks.length];
+  }
+
   /**
    * checkUsername()
    *
@@ -354,15 +812,35 @@ public class Auth{
     return true;
   }
 
+  /**
+   * convert()
+   *
+   * Write every user again in the chosen record format.
+   *
+   * @return The number of users written.
+   **/
+  public int convert(){
+    int n = 0;
+    for(I512 id : index.keySet()){
+      User user = getUserById(id);
+      if(user != null && writeUser(Data.locate(userDir, user.id), user) == user){
+        ++n;
+      }else{
+        Utils.warn("Unable to convert user " + id);
+      }
+    }
+    return n;
+  }
+
   /**
    * getNumUsers()
    *
-   * Get the number of registered users by checking how many are loaded.
+   * Get the number of registered users by checking how many are indexed.
    *
    * @return The number of registered users.
    **/
   public int getNumUsers(){
-    return idMap.size();
+    return index.size();
   }
 
   /**
@@ -376,4 +854,320 @@ public class Auth{
     /* TODO: Should more accurately reflect active users by checking token times. */
     return tokenMap.size();
   }
+
+  /**
+   * test()
+   *
+   * Stress the user registry by registering, logging in and checking tokens
+   * from many threads at once.
+   *
+   * @return True if all tests passed, otherwise false.
+   **/
+  public static boolean test(){
+    final int THREADS = 16;
+    final int USERS = 4;
+    final int ROUNDS = 64;
+    int[] stats = new int[]{ 0, 0 };
+    /* Setup a fresh user directory */
+    final Auth auth;
+    final File dir;
+    try{
+      dir = File.createTempFile("auth", "test");
+      dir.delete();
+      dir.mkdir();
+      auth = new Auth(new JSON(
+        "{\"data\":{\"user-dir\":\"" + dir.getPath() + "\",\"user-index\":\"" + dir.getPath() + ".idx\"}}"
+      ));
+    }catch(Exception e){
+      System.err.println("Unable to setup test");
+      return false;
+    }
+    final String prefix = Long.toString(System.nanoTime(), 36);
+    final String pass = "password";
+    final int startUsers = auth.getNumUsers();
+    final AtomicInteger contested = new AtomicInteger(0);
+    final AtomicInteger registered = new AtomicInteger(0);
+    final AtomicInteger wrongUser = new AtomicInteger(0);
+    final AtomicInteger failedLogin = new AtomicInteger(0);
+    final AtomicInteger staleToken = new AtomicInteger(0);
+    final CountDownLatch ready = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(THREADS);
+    /* Register everybody at once, all fighting over one username */
+    for(int x = 0; x < THREADS; x++){
+      final int t = x;
+      new Thread(new Runnable(){
+        @Override
+        public void run(){
+          try{
+            ready.await();
+            if(auth.register("c" + prefix, pass, pass) != null){
+              contested.incrementAndGet();
+            }
+            for(int y = 0; y < USERS; y++){
+              if(auth.register("u" + prefix + "x" + t + "x" + y, pass, pass) != null){
+                registered.incrementAndGet();
+              }
+            }
+          }catch(InterruptedException e){
+            /* Do nothing */
+          }finally{
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    ready.countDown();
+    try{
+      done.await();
+    }catch(InterruptedException e){
+      /* Do nothing */
+    }
+    stats = assurt(contested.get() == 1, stats, "Contested username registered once");
+    stats = assurt(registered.get() == THREADS * USERS, stats, "All unique usernames registered");
+    stats = assurt(
+      auth.getNumUsers() == startUsers + 1 + (THREADS * USERS),
+      stats, "No duplicate users"
+    );
+    /* Login and check tokens at once, sharing users between threads */
+    final CountDownLatch ready2 = new CountDownLatch(1);
+    final CountDownLatch done2 = new CountDownLatch(THREADS);
+    for(int x = 0; x < THREADS; x++){
+      final int t = x;
+      new Thread(new Runnable(){
+        @Override
+        public void run(){
+          try{
+            ready2.await();
+            for(int y = 0; y < ROUNDS; y++){
+              String name = "u" + prefix + "x" + ((t + y) % THREADS) + "x" + (y % USERS);
+              User user = auth.login(name, pass);
+              if(user == null){
+                failedLogin.incrementAndGet();
+                continue;
+              }
+              /* The token may already be replaced, but never by another user's */
+              I512 token = user.token;
+              User check = auth.token(token.toString());
+              if(check != null && check != user){
+                wrongUser.incrementAndGet();
+              }
+              /* A wrong password must never get in */
+              if(auth.login(name, pass + "x") != null){
+                failedLogin.incrementAndGet();
+              }
+            }
+          }catch(InterruptedException e){
+            /* Do nothing */
+          }finally{
+            done2.countDown();
+          }
+        }
+      }).start();
+    }
+    ready2.countDown();
+    try{
+      done2.await();
+    }catch(InterruptedException e){
+      /* Do nothing */
+    }
+    stats = assurt(failedLogin.get() == 0, stats, "Logins behave under contention");
+    stats = assurt(wrongUser.get() == 0, stats, "Tokens never resolve to another user");
+    /* Check that only the latest token of each user is live */
+    ArrayList<User> users = new ArrayList<User>();
+    for(int x = 0; x < THREADS; x++){
+      for(int y = 0; y < USERS; y++){
+        users.add(auth.getUserByName("u" + prefix + "x" + x + "x" + y));
+      }
+    }
+    int live = 0;
+    for(User user : users){
+      if(user != null && user.token != null && auth.token(user.token.toString()) == user){
+        ++live;
+      }
+      I512 old = user != null ? user.token : null;
+      if(user != null && auth.login(user.username, pass) == user){
+        if(old != null && auth.token(old.toString()) != null){
+          staleToken.incrementAndGet();
+        }
+      }
+    }
+    stats = assurt(live == users.size(), stats, "Latest tokens are live");
+    stats = assurt(staleToken.get() == 0, stats, "Replaced tokens are revoked");
+    /* Start again from the index, reading users only when asked for */
+    int numUsers = auth.getNumUsers();
+    User before = auth.getUserByName("c" + prefix);
+    clear();
+    Auth lazy;
+    try{
+      lazy = new Auth(new JSON(
+        "{\"data\":{\"user-dir\":\"" + dir.getPath() + "\",\"user-index\":\"" + dir.getPath() + ".idx\"}}"
+      ));
+    }catch(Exception e){
+      System.err.println("Unable to restart test");
+      return false;
+    }
+    stats = assurt(lazy.getNumUsers() == numUsers, stats, "Index holds every user");
+    stats = assurt(idMap.size() == 0, stats, "No users read on start up");
+    User after = lazy.getUserByName("c" + prefix);
+    stats = assurt(
+      before != null && after != null && after.id.equals(before.id) && idMap.size() == 1,
+      stats, "User read when first asked for"
+    );
+    stats = assurt(lazy.getUserById(before.id) == after, stats, "User only read once");
+    stats = assurt(after != null && lazy.login("c" + prefix, pass) == after, stats, "Login after restart");
+    stats = assurt(lazy.register("c" + prefix, pass, pass) == null, stats, "Unread username still taken");
+    /* Start again without the index, which is rebuilt */
+    clear();
+    new File(dir.getPath() + ".idx").delete();
+    try{
+      lazy = new Auth(new JSON(
+        "{\"data\":{\"user-dir\":\"" + dir.getPath() + "\",\"user-index\":\"" + dir.getPath() + ".idx\"}}"
+      ));
+    }catch(Exception e){
+      System.err.println("Unable to restart test");
+      return false;
+    }
+    stats = assurt(lazy.getNumUsers() == numUsers, stats, "Index rebuilt by scan");
+    stats = assurt(new File(dir.getPath() + ".idx").isFile(), stats, "Index written after scan");
+    /* Clean up */
+    clear();
+    Data.remove(dir);
+    new File(dir.getPath() + ".idx").delete();
+    /* Deal with results */
+    System.err.println("Passed " + stats[1] + " out of " + stats[0] + " tests");
+    System.err.println(stats[0] == stats[1] ? "[[ SUCCESS ]]" : "[[ FAILURE ]]");
+    return stats[0] == stats[1];
+  }
+
+  /**
+   * perf()
+   *
+   * Compare the time taken to start up, and the memory used afterwards, with
+   * each way of loading a large number of generated users.
+   **/
+  public static void perf(){
+    int TARGET_USERS = 1000000;
+    int threads = Math.max(Runtime.getRuntime().availableProcessors(), 4);
+    File dir;
+    try{
+      dir = Files.createTempDirectory("d3ad-perf").toFile();
+      Record.init(new JSON("{\"disk\":{\"format\":\"binary\"}}"));
+    }catch(Exception e){
+      System.err.println("Unable to setup performance test");
+      return;
+    }
+    String usrDir = dir.getPath() + "/usr";
+    String idxPath = dir.getPath() + "/usr.idx";
+    /* Generate users on disk along with their index */
+    long gen = System.currentTimeMillis();
+    try{
+      Auth auth = new Auth(new JSON(
+        "{\"data\":{\"user-dir\":\"" + usrDir + "\",\"user-index\":\"" + idxPath + "\"}}"
+      ));
+      BufferedOutputStream idx = new BufferedOutputStream(new FileOutputStream(idxPath), 1 << 16);
+      try{
+        for(int x = 0; x < TARGET_USERS; x++){
+          User user = new User();
+          user.id = Utils.genRandHash();
+          user.usalt = Utils.genRandHash();
+          user.username = "user" + x;
+          user.password = Utils.genRandHash();
+          user.latest = Utils.genRandHash();
+          File f = new File(Data.shard(usrDir, user.id));
+          if(!f.getParentFile().isDirectory()){
+            f.getParentFile().mkdirs();
+          }
+          Files.write(f.toPath(), encode(user));
+          idx.write(entry(user.id, user.username));
+        }
+      }finally{
+        idx.close();
+      }
+    }catch(Exception e){
+      System.err.println("Unable to generate users");
+      return;
+    }
+    gen = System.currentTimeMillis() - gen;
+    String[] names = new String[]{
+      "eager, 1 thread",
+      "eager, " + threads + " threads",
+      "lazy, scan with 1 thread",
+      "lazy, scan with " + threads + " threads",
+      "lazy, from index"
+    };
+    String[] modes = new String[]{ LOAD_EAGER, LOAD_EAGER, LOAD_LAZY, LOAD_LAZY, LOAD_LAZY };
+    int[] counts = new int[]{ 1, threads, 1, threads, threads };
+    long[] times = new long[names.length];
+    long[] heap = new long[names.length];
+    int[] users = new int[names.length];
+    for(int m = 0; m < names.length; m++){
+      clear();
+      /* NOTE: Each scan writes the index again, so remove it to force one. */
+      if(m < names.length - 1){
+        new File(idxPath).delete();
+      }
+      Runtime rt = Runtime.getRuntime();
+      rt.gc();
+      long base = rt.totalMemory() - rt.freeMemory();
+      times[m] = System.currentTimeMillis();
+      try{
+        Auth auth = new Auth(new JSON(
+          "{\"data\":{\"user-dir\":\"" + usrDir + "\",\"user-index\":\"" + idxPath + "\"}," +
+          "\"authentication\":{\"load-mode\":\"" + modes[m] + "\",\"load-threads\":\"" + counts[m] + "\"}}"
+        ));
+        users[m] = auth.getNumUsers();
+      }catch(Exception e){
+        System.err.println("Unable to start");
+      }
+      times[m] = System.currentTimeMillis() - times[m];
+      rt.gc();
+      heap[m] = (rt.totalMemory() - rt.freeMemory() - base) / (1024 * 1024);
+    }
+    clear();
+    Data.remove(dir);
+    /* Print results */
+    System.err.println("Generated " + TARGET_USERS + " users in " + gen + "ms");
+    System.err.println("Time (ms)\t|Heap (MB)\t|Users\t\t|Description");
+    System.err.println("----------------|---------------|---------------|----------------");
+    for(int m = 0; m < names.length; m++){
+      System.err.println(times[m] + "\t\t|" + heap[m] + "\t\t|" + users[m] + "\t\t|" + names[m]);
+    }
+    System.err.println("[[ FINISHED ]]");
+  }
+
+  /**
+   * clear()
+   *
+   * Forget every user, as if the server had been restarted.
+   **/
+  private static void clear(){
+    idMap.clear();
+    userMap.clear();
+    tokenMap.clear();
+    index.clear();
+    names.clear();
+  }
+
+  /**
+   * assurt()
+   *
+   * Assert that the result was as expected.
+   *
+   * @param equal True if the result passes, otherwise false.
+   * @param stats The current statistics from running the tests.
+   * @param msg A short string explaining the test.
+   * @return The updated statistics from running the tests.
+   **/
+  private static int[] assurt(boolean equal, int[] stats, String msg){
+    System.err.print("[" + stats[0] + "]\t");
+    stats[0]++;
+    if(equal){
+      stats[1]++;
+      System.err.print("[ OK ]      \t");
+    }else{
+      System.err.print("      [FAIL]\t");
+    }
+    System.err.println(msg);
+    return stats;
+  }
 }
@@ -0,0 +1,292 @@
+package b.ds;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache.java
+ *
+ * A concurrent cache bounded by the approximate size of what it holds. Keys
+ * are spread over independently locked segments, each of which evicts its own
+ * entries one at a time as new ones are added, so no request ever waits on
+ * the whole cache being trimmed.
+ *
+ * Under the segmented LRU policy new entries start out on probation and are
+ * only protected once they are used again, so a burst of one-off reads cannot
+ * push out the entries that are read often. The plain LRU policy simply drops
+ * whatever was used least recently.
+ **/
+public class Cache<K, V>{
+  public static final String POLICY_LRU = "lru";
+  public static final String POLICY_SLRU = "slru";
+
+  /**
+   * Entry.Cache.java
+   *
+   * A cached value along with its approximate size.
+   **/
+  private static class Entry<V>{
+    /* The cached value */
+    public V val = null;
+    /* The approximate size of the value in bytes */
+    public int bytes = 0;
+  }
+
+  /**
+   * Segment.Cache.java
+   *
+   * An independently locked part of the cache.
+   **/
+  private static class Segment<K, V>{
+    /* The lock guarding this segment */
+    public ReentrantLock lock = new ReentrantLock();
+    /* Entries seen once, least recently used first */
+    public LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    /* Entries seen more than once, least recently used first */
+    public LinkedHashMap<K, Entry<V>> protect = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    /* The size of the probation entries in bytes */
+    public long probationBytes = 0;
+    /* The size of the protected entries in bytes */
+    public long protectBytes = 0;
+  }
+
+  private Segment<K, V>[] segments;
+  private long segmentMax;
+  private long protectMax;
+  private AtomicInteger count;
+  private AtomicLong bytes;
+
+  /**
+   * Cache()
+   *
+   * Initialise an empty cache.
+   *
+   * @param maxBytes The approximate maximum size of the cache in bytes.
+   * @param concurrency The number of segments, rounded up to a power of two.
+   * @param policy The eviction policy, either POLICY_LRU or POLICY_SLRU.
+   **/
+  @SuppressWarnings("unchecked")
+  public Cache(long maxBytes, int concurrency, String policy){
+    int n = 1;
+    while(n < concurrency){
+      n <<= 1;
+    }
+    segments = (Segment<K, V>[])new Segment<?, ?>[n];
+    for(int x = 0; x < n; x++){
+      segments[x] = new Segment<K, V>();
+    }
+    segmentMax = Math.max(maxBytes / n, 1);
+    /* NOTE: Plain LRU never promotes, keeping everything on probation. */
+    if(policy.equals(POLICY_SLRU)){
+      protectMax = (segmentMax * 4) / 5;
+    }else{
+      if(!policy.equals(POLICY_LRU)){
+        Utils.warn("Unknown cache policy '" + policy + "', using LRU");
+      }
+      protectMax = 0;
+    }
+    count = new AtomicInteger(0);
+    bytes = new AtomicLong(0);
+  }
+
+  /**
+   * get()
+   *
+   * Get a value from the cache, marking it as recently used.
+   *
+   * @param key The key of the value.
+   * @return The value if cached, otherwise NULL.
+   **/
+  public V get(K key){
+    Segment<K, V> s = segment(key);
+    s.lock.lock();
+    try{
+      Entry<V> e = s.protect.get(key);
+      if(e != null){
+        return e.val;
+      }
+      e = s.probation.get(key);
+      if(e == null){
+        return null;
+      }
+      /* Used again, so protect it if the policy allows */
+      if(protectMax > 0 && e.bytes <= protectMax){
+        s.probation.remove(key);
+        s.probationBytes -= e.bytes;
+        s.protect.put(key, e);
+        s.protectBytes += e.bytes;
+        demote(s);
+      }
+      return e.val;
+    }finally{
+      s.lock.unlock();
+    }
+  }
+
+  /**
+   * put()
+   *
+   * Add or replace a value in the cache, evicting the least valuable entries
+   * of its segment if required. A value larger than a whole segment is not
+   * cached, as it would only evict everything else and then itself.
+   *
+   * @param key The key of the value.
+   * @param val The value to be cached.
+   * @param size The approximate size of the value in bytes.
+   **/
+  public void put(K key, V val, int size){
+    if(size > segmentMax){
+      /* Make sure an older value is not served in its place */
+      remove(key);
+      return;
+    }
+    Segment<K, V> s = segment(key);
+    s.lock.lock();
+    try{
+      /* Replace in place if we already have it */
+      Entry<V> e = s.protect.get(key);
+      if(e != null){
+        s.protectBytes += size - e.bytes;
+        bytes.addAndGet(size - e.bytes);
+        e.val = val;
+        e.bytes = size;
+        demote(s);
+      }else{
+        e = s.probation.get(key);
+        if(e != null){
+          s.probationBytes += size - e.bytes;
+          bytes.addAndGet(size - e.bytes);
+          e.val = val;
+          e.bytes = size;
+        }else{
+          e = new Entry<V>();
+          e.val = val;
+          e.bytes = size;
+          s.probation.put(key, e);
+          s.probationBytes += size;
+          bytes.addAndGet(size);
+          count.incrementAndGet();
+        }
+      }
+      evict(s);
+    }finally{
+      s.lock.unlock();
+    }
+  }
+
+  /**
+   * remove()
+   *
+   * Remove a value from the cache if present.
+   *
+   * @param key The key of the value.
+   **/
+  public void remove(K key){
+    Segment<K, V> s = segment(key);
+    s.lock.lock();
+    try{
+      Entry<V> e = s.protect.remove(key);
+      if(e != null){
+        s.protectBytes -= e.bytes;
+      }else{
+        e = s.probation.remove(key);
+        if(e != null){
+          s.probationBytes -= e.bytes;
+        }
+      }
+      if(e != null){
+        bytes.addAndGet(-e.bytes);
+        count.decrementAndGet();
+      }
+    }finally{
+      s.lock.unlock();
+    }
+  }
+
+  /**
+   * size()
+   *
+   * Get the number of entries currently cached.
+   *
+   * @return The number of entries.
+   **/
+  public int size(){
+    return count.get();
+  }
+
+  /**
+   * bytes()
+   *
+   * Get the approximate size of the entries currently cached.
+   *
+   * @return The size in bytes.
+   **/
+  public long bytes(){
+    return bytes.get();
+  }
+
+  /**
+   * segment()
+   *
+   * Find the segment responsible for a given key.
+   *
+   * @param key The key to be found.
+   * @return The segment for the key.
+   **/
+  private Segment<K, V> segment(K key){
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[h & (segments.length - 1)];
+  }
+
+  /**
+   * demote()
+   *
+   * Move the least recently used protected entries back on to probation
+   * until the protected entries are within their share of the segment. The
+   * segment lock must be held.
+   *
+   * @param s The segment to be checked.
+   **/
+  private void demote(Segment<K, V> s){
+    Iterator<Map.Entry<K, Entry<V>>> i = s.protect.entrySet().iterator();
+    while(s.protectBytes > protectMax && i.hasNext()){
+      Map.Entry<K, Entry<V>> m = i.next();
+      i.remove();
+      s.protectBytes -= m.getValue().bytes;
+      s.probation.put(m.getKey(), m.getValue());
+      s.probationBytes += m.getValue().bytes;
+    }
+  }
+
+  /**
+   * evict()
+   *
+   * Drop the least recently used probation entries, then protected entries,
+   * until the segment is within its size. The segment lock must be held.
+   *
+   * @param s The segment to be checked.
+   **/
+  private void evict(Segment<K, V> s){
+    Iterator<Map.Entry<K, Entry<V>>> i = s.probation.entrySet().iterator();
+    while(s.probationBytes + s.protectBytes > segmentMax && i.hasNext()){
+      int b = i.next().getValue().bytes;
+      i.remove();
+      s.probationBytes -= b;
+      bytes.addAndGet(-b);
+      count.decrementAndGet();
+    }
+    i = s.protect.entrySet().iterator();
+    while(s.probationBytes + s.protectBytes > segmentMax && i.hasNext()){
+      int b = i.next().getValue().bytes;
+      i.remove();
+      s.protectBytes -= b;
+      bytes.addAndGet(-b);
+      count.decrementAndGet();
+    }
+  }
+}
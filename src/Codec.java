@@ -0,0 +1,258 @@
+package b.ds;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec.java
+ *
+ * Compress records before they are stored on disk. Compressed records begin
+ * with a zero byte, which a JSON record never does, followed by the codec ID
+ * and the original length, so both forms can be read back whatever codec is
+ * currently chosen. Anything else beginning with a zero byte, such as a
+ * binary record, is passed through untouched.
+ *
+ * The deflate codec primes the compressor with a preset dictionary of the
+ * text common to our records, which matters as most records are small.
+ **/
+public abstract class Codec{
+  public static final String CODEC_NONE = "none";
+  public static final String CODEC_DEFLATE = "deflate";
+
+  private static final byte MAGIC = 0;
+  private static final byte ID_DEFLATE = 'D';
+  private static final int HEAD_LEN = 6;
+  /* NOTE: Changing the dictionary breaks reading existing records. */
+  private static final byte[] DICT = (
+    "{\"password\":\"\",\"role\":\"NONE\",\"id\":\"\",\"usalt\":\"\",\"username\":\"\",\"latest\":\"\"}" +
+    "{\"qprevious\":\"\",\"quote\":\"\",\"previous\":\"\",\"id\":\"\",\"state\":\"HIDE\"," +
+    "\"state\":\"NONE\",\"message\":\"the and to of a in is that it for you this with on have " +
+    "be are not was but what just like so all about can they will one http://https://www. .com " +
+    "#\",\"userid\":\"\",\"creation\":\"1"
+  ).getBytes(StandardCharsets.UTF_8);
+
+  private static boolean deflate = false;
+  private static int level = Deflater.DEFAULT_COMPRESSION;
+  private static ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>(){
+    @Override
+    protected Deflater initialValue(){
+      return new Deflater(level);
+    }
+  };
+  private static ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>(){
+    @Override
+    protected Inflater initialValue(){
+      return new Inflater();
+    }
+  };
+
+  /**
+   * init()
+   *
+   * Initialise the static variables.
+   *
+   * @param config The shared configuration.
+   **/
+  public static void init(JSON config){
+    String codec = config.get("disk").get("codec").value(CODEC_NONE);
+    if(!codec.equals(CODEC_NONE) && !codec.equals(CODEC_DEFLATE)){
+      Utils.warn("Unknown codec '" + codec + "', using none");
+      codec = CODEC_NONE;
+    }
+    deflate = codec.equals(CODEC_DEFLATE);
+    try{
+      level = Integer.parseInt(config.get("disk").get("codec-level").value(level + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find codec level value");
+    }
+    if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION){
+      Utils.warn("Codec level out of range, using default");
+      level = Deflater.DEFAULT_COMPRESSION;
+    }
+  }
+
+  /**
+   * encode()
+   *
+   * Encode a record with the chosen codec. Records that do not get smaller
+   * are kept as they are.
+   *
+   * @param raw The record to be encoded.
+   * @return The encoded record.
+   **/
+  public static byte[] encode(byte[] raw){
+    return deflate ? deflate(raw, level, DICT) : raw;
+  }
+
+  /**
+   * decode()
+   *
+   * Decode a record written with any codec, or with none.
+   *
+   * @param data The stored record, otherwise NULL.
+   * @return The original record, otherwise NULL if it cannot be decoded.
+   **/
+  public static byte[] decode(byte[] data){
+    if(data == null || data.length < HEAD_LEN || data[0] != MAGIC){
+      return data;
+    }
+    /* NOTE: Binary records also begin with a zero byte, see Record. */
+    if(data[1] != ID_DEFLATE){
+      return data;
+    }
+    return inflate(data, DICT);
+  }
+
+  /**
+   * deflate()
+   *
+   * Compress a record with deflate.
+   *
+   * @param raw The record to be compressed.
+   * @param lvl The compression level.
+   * @param dict The preset dictionary, otherwise NULL.
+   * @return The compressed record, or the original if no smaller.
+   **/
+  private static byte[] deflate(byte[] raw, int lvl, byte[] dict){
+    if(raw.length <= HEAD_LEN){
+      return raw;
+    }
+    Deflater d = deflaters.get();
+    d.reset();
+    d.setLevel(lvl);
+    if(dict != null){
+      d.setDictionary(dict);
+    }
+    d.setInput(raw);
+    d.finish();
+    /* NOTE: Anything larger than the original is of no use to us. */
+    byte[] out = new byte[raw.length];
+    ByteBuffer.wrap(out).put(MAGIC).put(ID_DEFLATE).putInt(raw.length);
+    int len = HEAD_LEN;
+    while(!d.finished() && len < out.length){
+      len += d.deflate(out, len, out.length - len);
+    }
+    if(!d.finished()){
+      return raw;
+    }
+    byte[] res = new byte[len];
+    System.arraycopy(out, 0, res, 0, len);
+    return res;
+  }
+
+  /**
+   * inflate()
+   *
+   * Decompress a record compressed with deflate.
+   *
+   * @param data The compressed record, including its header.
+   * @param dict The preset dictionary, otherwise NULL.
+   * @return The original record, otherwise NULL on error.
+   **/
+  private static byte[] inflate(byte[] data, byte[] dict){
+    int len = ByteBuffer.wrap(data, 2, 4).getInt();
+    if(len < 0){
+      Utils.warn("Bad length in stored record");
+      return null;
+    }
+    Inflater i = inflaters.get();
+    i.reset();
+    i.setInput(data, HEAD_LEN, data.length - HEAD_LEN);
+    byte[] raw = new byte[len];
+    int n = 0;
+    try{
+      while(n < len && !i.finished()){
+        int r = i.inflate(raw, n, len - n);
+        if(r == 0){
+          if(i.needsDictionary() && dict != null){
+            i.setDictionary(dict);
+          }else if(i.needsInput() || i.needsDictionary()){
+            break;
+          }
+        }
+        n += r;
+      }
+    }catch(DataFormatException e){
+      Utils.warn("Unable to decompress stored record");
+      return null;
+    }
+    if(n != len){
+      Utils.warn("Stored record cut short");
+      return null;
+    }
+    return raw;
+  }
+
+  /**
+   * perf()
+   *
+   * Compare the size and read time of records stored with each codec, using
+   * posts similar to our own.
+   **/
+  public static void perf(){
+    int TARGET_RECORDS = 10000;
+    int TARGET_RUNS = 20;
+    String[] words = (
+      "the and to of a in is that it for you this with on have be are not was " +
+      "but what just like so all about can they will one post today #news " +
+      "#music http://example.com server java people time good think really"
+    ).split(" ");
+    Random r = new Random(0);
+    byte[][] recs = new byte[TARGET_RECORDS][];
+    long rawBytes = 0;
+    for(int x = 0; x < recs.length; x++){
+      Str msg = new Str(64);
+      int n = 1 + r.nextInt(40);
+      for(int y = 0; y < n; y++){
+        msg.append(words[r.nextInt(words.length)]).append(" ");
+      }
+      Str rec = (new Str(16))
+        .append("{\"previous\":\"").append(Utils.genRandHash().toString())
+        .append("\",\"id\":\"").append(Utils.genRandHash().toString())
+        .append("\",\"state\":\"NONE\",\"message\":\"").append(msg.toString())
+        .append("\",\"userid\":\"").append(Utils.genRandHash().toString())
+        .append("\",\"creation\":\"").append(Long.toString(System.currentTimeMillis() - r.nextInt()))
+        .append("\"}");
+      recs[x] = rec.toString().getBytes(StandardCharsets.UTF_8);
+      rawBytes += recs[x].length;
+    }
+    String[] names = new String[]{ "none", "deflate 1", "deflate 6", "deflate 9", "deflate 6, no dict" };
+    int[] levels = new int[]{ -2, 1, 6, 9, 6 };
+    byte[][] dicts = new byte[][]{ null, DICT, DICT, DICT, null };
+    System.err.println("Ratio\t|Encode (ns)\t|Decode (ns)\t|Description");
+    System.err.println("--------|---------------|---------------|----------------");
+    /* NOTE: The first pass warms up the JIT and is not printed. */
+    for(int m = 0; m < names.length * 2; m++){
+      byte[][] enc = new byte[recs.length][];
+      long encBytes = 0;
+      long encTime = System.nanoTime();
+      for(int x = 0; x < recs.length; x++){
+        enc[x] = levels[m % names.length] < -1 ? recs[x] : deflate(recs[x], levels[m % names.length], dicts[m % names.length]);
+        encBytes += enc[x].length;
+      }
+      encTime = (System.nanoTime() - encTime) / recs.length;
+      long decTime = System.nanoTime();
+      for(int z = 0; z < TARGET_RUNS; z++){
+        for(int x = 0; x < recs.length; x++){
+          byte[] dec = enc[x][0] == MAGIC ? inflate(enc[x], dicts[m % names.length]) : enc[x];
+          if(dec == null || dec.length != recs[x].length){
+            throw new IllegalStateException("Decoded record does not match");
+          }
+        }
+      }
+      decTime = (System.nanoTime() - decTime) / ((long)recs.length * TARGET_RUNS);
+      if(m < names.length){
+        continue;
+      }
+      System.err.println(
+        String.format("%.3f", (double)encBytes / rawBytes) + "\t|" +
+        encTime + "\t\t|" + decTime + "\t\t|" + names[m % names.length]
+      );
+    }
+    System.err.println("[[ FINISHED ]]");
+  }
+}
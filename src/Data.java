@@ -2,9 +2,23 @@ package b.ds;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -12,11 +26,69 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  *
  * Handle file locking to ensure a single thread has access at any one time.
  * This class should support multiple reads and a single write at any one time.
+ * Paths share a fixed table of locks by hash, so the memory used for locking
+ * does not grow with the number of files.
+ *
+ * Reads are made with a single positional read on a channel kept open in a
+ * bounded pool, into a direct buffer reused by each thread. The pool is split
+ * into independently locked stripes, and a channel is pinned whilst a read is
+ * in flight, so that it is only closed once the last reader is done with it.
+ *
+ * Files may be replaced atomically, by writing a temporary file and renaming
+ * it over the original, so that a crash part way through a write never leaves
+ * a truncated file behind. Files appended to or written in place are noted,
+ * so that they can all be synced together later.
+ *
+ * Files named by ID are spread over subdirectories named after the last bytes
+ * of the ID, so that no one directory grows too large to search quickly.
+ * Files found in the older flat layout are moved into place when next used,
+ * and once a directory has been fully migrated it is no longer checked.
  **/
 public abstract class Data{
+  /**
+   * Handle.Data.java
+   *
+   * A pooled channel along with the number of references held to it. The
+   * pool holds one reference, and each read in flight holds another.
+   **/
+  private static class Handle{
+    /* The open channel */
+    public FileChannel fc = null;
+    /* The number of references held */
+    public AtomicInteger refs = new AtomicInteger(1);
+  }
+
+  public static final String MODE_ATOMIC = "atomic";
+  public static final String MODE_DIRECT = "direct";
+  public static final String SYNC_NONE = "none";
+  public static final String SYNC_FILE = "file";
+  public static final String SYNC_DIR = "dir";
+  public static final String TEMP_SUFFIX = ".tmp";
+
   private static int MAX_READ;
-  private static ConcurrentHashMap<String, ReentrantReadWriteLock> resources =
-    new ConcurrentHashMap<String, ReentrantReadWriteLock>();
+  private static boolean atomic = true;
+  private static String sync = SYNC_FILE;
+  private static final int BUFFER_LEN = 16 * 1024;
+  private static final int BUFFER_MAX = 1024 * 1024;
+  private static final int SHARD_MAX = 4;
+  private static final int CHANNEL_STRIPES = 16;
+  private static final char[] HEX =
+    {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  private static ReentrantReadWriteLock[] locks = stripes(64, false);
+  private static int openMax = 256;
+  private static int shardLevels = 2;
+  private static Set<String> migrated =
+    Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private static Set<String> dirty =
+    Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private static ArrayList<LinkedHashMap<String, Handle>> channels = pools(CHANNEL_STRIPES, openMax);
+  private static ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>(){
+    @Override
+    protected ByteBuffer initialValue(){
+      return ByteBuffer.allocateDirect(BUFFER_LEN);
+    }
+  };
 
   /**
    * init()
@@ -32,6 +104,70 @@ public abstract class Data{
     }catch(NumberFormatException e){
       Utils.warn("Unable to find maximum read value");
     }
+    String mode = config.get("disk").get("write-mode").value(MODE_ATOMIC);
+    if(!mode.equals(MODE_ATOMIC) && !mode.equals(MODE_DIRECT)){
+      Utils.warn("Unknown write mode '" + mode + "', using atomic");
+      mode = MODE_ATOMIC;
+    }
+    atomic = mode.equals(MODE_ATOMIC);
+    sync = config.get("disk").get("sync").value(SYNC_FILE);
+    if(!sync.equals(SYNC_NONE) && !sync.equals(SYNC_FILE) && !sync.equals(SYNC_DIR)){
+      Utils.warn("Unknown sync policy '" + sync + "', using file");
+      sync = SYNC_FILE;
+    }
+    int lockStripes = 64;
+    try{
+      lockStripes = Integer.parseInt(config.get("disk").get("lock-stripes").value(lockStripes + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find lock stripes value");
+    }
+    boolean fairLocks = config.get("disk").get("fair-locks").value("false").equals("true");
+    locks = stripes(Math.max(lockStripes, 1), fairLocks);
+    try{
+      openMax = Integer.parseInt(config.get("disk").get("open-files").value(openMax + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find open files value");
+    }
+    channels = pools(CHANNEL_STRIPES, openMax);
+    try{
+      shardLevels = Integer.parseInt(config.get("disk").get("shard-levels").value(shardLevels + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find shard levels value");
+    }
+    if(shardLevels < 0 || shardLevels > SHARD_MAX){
+      Utils.warn("Shard levels out of range, using 2");
+      shardLevels = 2;
+    }
+  }
+
+  /**
+   * stripes()
+   *
+   * Create a table of locks.
+   *
+   * @param n The number of locks.
+   * @param fair True if the locks should be granted in arrival order.
+   * @return The table of locks.
+   **/
+  private static ReentrantReadWriteLock[] stripes(int n, boolean fair){
+    ReentrantReadWriteLock[] l = new ReentrantReadWriteLock[n];
+    for(int x = 0; x < l.length; x++){
+      l[x] = new ReentrantReadWriteLock(fair);
+    }
+    return l;
+  }
+
+  /**
+   * lock()
+   *
+   * Get the lock guarding a path. Different paths may share the same lock.
+   *
+   * @param path The path to be locked.
+   * @return The lock for the path.
+   **/
+  private static ReentrantReadWriteLock lock(String path){
+    ReentrantReadWriteLock[] l = locks;
+    return l[(path.hashCode() & 0x7FFFFFFF) % l.length];
   }
 
   /**
@@ -45,28 +181,211 @@ public abstract class Data{
    * @return The data on success, otherwise NULL.
    **/
   private static byte[] read(String path, int offset, int maxRead){
-    File file = new File(path);
-    resources.putIfAbsent(path, new ReentrantReadWriteLock(true));
-    ReentrantReadWriteLock rrwl = resources.get(path);
+    if(offset < 0 || maxRead < 0){
+      return null;
+    }
+    ReentrantReadWriteLock rrwl = lock(path);
     rrwl.readLock().lock();
-    /* Adjust the file read length if required */
-    if(offset + maxRead > file.length()){
-      maxRead = (int)file.length() - offset;
+    try{
+      ByteBuffer b = readAt(path, offset, maxRead);
+      if(b == null){
+        return null;
+      }
+      byte[] raw = new byte[b.remaining()];
+      b.get(raw);
+      return raw;
+    }finally{
+      rrwl.readLock().unlock();
+    }
+  }
+
+  /**
+   * readAt()
+   *
+   * Read from a file at the given position, stopping early only at the end of
+   * the file. No lock is taken, so this is only for files that are appended
+   * to or otherwise guarded by the caller.
+   *
+   * @param path The location read from.
+   * @param pos The position in the file to read from.
+   * @param len The maximum number of bytes to read.
+   * @return A buffer holding the bytes read, valid until this thread next
+   * reads, otherwise NULL on error.
+   **/
+  public static ByteBuffer readAt(String path, long pos, int len){
+    ByteBuffer b = buffer(len);
+    Handle h = acquire(path);
+    if(h == null){
+      return null;
     }
-    byte[] raw = new byte[maxRead];
-    /* Read file */
     try{
-      RandomAccessFile raf = new RandomAccessFile(file, "r");
-      if(offset > 0){
-        raf.seek(offset);
+      b.clear().limit(len);
+      while(b.hasRemaining()){
+        int n = h.fc.read(b, pos + b.position());
+        if(n < 0){
+          break;
+        }
+      }
+      b.flip();
+      return b;
+    }catch(IOException e){
+      drop(path, h);
+      return null;
+    }finally{
+      release(h);
+    }
+  }
+
+  /**
+   * buffer()
+   *
+   * Get this thread's read buffer, growing it if required. Very large reads
+   * are given a buffer of their own.
+   *
+   * @param len The number of bytes required.
+   * @return A buffer with at least the required capacity.
+   **/
+  private static ByteBuffer buffer(int len){
+    ByteBuffer b = buffers.get();
+    if(b.capacity() < len){
+      if(len > BUFFER_MAX){
+        return ByteBuffer.allocate(len);
+      }
+      b = ByteBuffer.allocateDirect(Math.max(len, b.capacity() * 2));
+      buffers.set(b);
+    }
+    return b;
+  }
+
+  /**
+   * pools()
+   *
+   * Create the stripes of the channel pool, each evicting its least recently
+   * used channel once it holds its share of the open files.
+   *
+   * @param n The number of stripes.
+   * @param max The maximum number of open files across all stripes.
+   * @return The stripes of the pool.
+   **/
+  private static ArrayList<LinkedHashMap<String, Handle>> pools(int n, int max){
+    final int share = Math.max(max / n, 1);
+    ArrayList<LinkedHashMap<String, Handle>> p = new ArrayList<LinkedHashMap<String, Handle>>(n);
+    for(int x = 0; x < n; x++){
+      p.add(new LinkedHashMap<String, Handle>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Handle> e){
+          if(size() > share){
+            release(e.getValue());
+            return true;
+          }
+          return false;
+        }
+      });
+    }
+    return p;
+  }
+
+  /**
+   * pool()
+   *
+   * Find the stripe of the channel pool for a file.
+   *
+   * @param path The file.
+   * @return The stripe, which is also its lock.
+   **/
+  private static LinkedHashMap<String, Handle> pool(String path){
+    return channels.get((path.hashCode() & 0x7FFFFFFF) % channels.size());
+  }
+
+  /**
+   * acquire()
+   *
+   * Get an open read only channel for a file from the pool, opening one if
+   * required. The channel stays open until release() is called.
+   *
+   * @param path The file to be read.
+   * @return The pinned channel, otherwise NULL if the file cannot be opened.
+   **/
+  private static Handle acquire(String path){
+    LinkedHashMap<String, Handle> p = pool(path);
+    synchronized(p){
+      Handle h = p.get(path);
+      if(h != null){
+        h.refs.incrementAndGet();
+        return h;
       }
-      raf.read(raw);
-      raf.close();
+    }
+    Handle h = new Handle();
+    try{
+      h.fc = FileChannel.open((new File(path)).toPath(), StandardOpenOption.READ);
     }catch(IOException e){
-      raw = null;
+      return null;
+    }
+    synchronized(p){
+      /* Another thread may have opened it first */
+      Handle cur = p.get(path);
+      if(cur != null){
+        close(h.fc);
+        h = cur;
+      }else{
+        p.put(path, h);
+      }
+      h.refs.incrementAndGet();
+    }
+    return h;
+  }
+
+  /**
+   * release()
+   *
+   * Give up a reference to a pooled channel, closing it once no references
+   * remain.
+   *
+   * @param h The handle of the channel.
+   **/
+  private static void release(Handle h){
+    if(h.refs.decrementAndGet() <= 0){
+      close(h.fc);
+    }
+  }
+
+  /**
+   * drop()
+   *
+   * Remove a channel from the pool, closing it once any reads in flight are
+   * done with it.
+   *
+   * @param path The file the channel is for.
+   * @param h The handle to be removed, otherwise NULL for any handle.
+   **/
+  private static void drop(String path, Handle h){
+    LinkedHashMap<String, Handle> p = pool(path);
+    Handle cur;
+    synchronized(p){
+      cur = p.get(path);
+      if(cur == null || (h != null && cur != h)){
+        return;
+      }
+      p.remove(path);
+    }
+    release(cur);
+  }
+
+  /**
+   * close()
+   *
+   * Close a channel, ignoring any errors.
+   *
+   * @param fc The channel to be closed, otherwise NULL.
+   **/
+  private static void close(FileChannel fc){
+    if(fc != null){
+      try{
+        fc.close();
+      }catch(IOException e){
+        /* Do nothing */
+      }
     }
-    rrwl.readLock().unlock();
-    return raw;
   }
 
   /**
@@ -97,6 +416,19 @@ public abstract class Data{
     return r != null ? new String(r) : null;
   }
 
+  /**
+   * readBytes()
+   *
+   * Read the raw contents of a file from the disk, returning NULL on error.
+   *
+   * @param path The location read from.
+   * @param maxRead Specify the maximum file size to be read from disk.
+   * @return The data on success, otherwise NULL.
+   **/
+  public static byte[] readBytes(String path, int maxRead){
+    return read(path, 0, maxRead);
+  }
+
   /**
    * readRearLines()
    *
@@ -146,30 +478,96 @@ public abstract class Data{
    * function.
    *
    * @param path The location to write to.
-   * @param data The data to be written to the location.
+   * @param raw The data to be written to the location.
    * @param append Whether or not this is an append operation.
    * @return True on success, false on error.
    **/
-  private static boolean write(String path, String data, boolean append){
+  private static boolean write(String path, byte[] raw, boolean append){
     boolean result = true;
-    byte[] raw = data.getBytes();
     File file = new File(path);
-    resources.putIfAbsent(path, new ReentrantReadWriteLock(true));
-    ReentrantReadWriteLock rrwl = resources.get(path);
+    ReentrantReadWriteLock rrwl = lock(path);
     rrwl.writeLock().lock();
     /* Write file */
     try{
-      FileOutputStream fos = new FileOutputStream(file, append);
-      fos.write(raw);
-      fos.flush();
-      fos.close();
+      /* Create the shard on first use */
+      File parent = file.getAbsoluteFile().getParentFile();
+      if(!parent.isDirectory()){
+        parent.mkdirs();
+      }
+      if(append || !atomic){
+        FileOutputStream fos = new FileOutputStream(file, append);
+        try{
+          fos.write(raw);
+          fos.flush();
+        }finally{
+          fos.close();
+        }
+        if(!sync.equals(SYNC_NONE)){
+          dirty.add(path);
+        }
+      }else{
+        replace(file, raw);
+        /* The pooled channel still points at the old file */
+        drop(path, null);
+      }
     }catch(IOException e){
       result = false;
+    }finally{
+      rrwl.writeLock().unlock();
     }
-    rrwl.writeLock().unlock();
     return result;
   }
 
+  /**
+   * replace()
+   *
+   * Replace a file atomically, by writing the data to a temporary file and
+   * renaming it over the original. Readers see either the old or the new file
+   * in full. The write lock for the file must be held.
+   *
+   * @param file The file to be replaced.
+   * @param raw The new contents of the file.
+   **/
+  private static void replace(File file, byte[] raw) throws IOException{
+    File tmp = new File(file.getPath() + TEMP_SUFFIX);
+    FileOutputStream fos = new FileOutputStream(tmp, false);
+    try{
+      fos.write(raw);
+      fos.flush();
+      /* Make sure the data is on disk before it can be renamed into place */
+      if(!sync.equals(SYNC_NONE)){
+        fos.getFD().sync();
+      }
+    }finally{
+      fos.close();
+    }
+    try{
+      Files.move(
+        tmp.toPath(),
+        file.toPath(),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING
+      );
+    }catch(AtomicMoveNotSupportedException e){
+      Utils.warn("Atomic rename not supported, replacing file directly");
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    /* Make sure the rename itself survives a crash */
+    if(sync.equals(SYNC_DIR)){
+      File dir = file.getAbsoluteFile().getParentFile();
+      try{
+        FileChannel fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        try{
+          fc.force(true);
+        }finally{
+          fc.close();
+        }
+      }catch(IOException e){
+        /* NOTE: Some platforms cannot sync a directory, nothing more to do. */
+      }
+    }
+  }
+
   /**
    * write()
    *
@@ -181,7 +579,22 @@ public abstract class Data{
    * @return True on success, false on error.
    **/
   public static boolean write(String path, String data){
-    return write(path, data, false);
+    return write(path, data.getBytes(), false);
+  }
+
+  /**
+   * write()
+   *
+   * Write raw data to file on the disk, returning true on success and false
+   * on error. The file is completely overridden by the data given to this
+   * function.
+   *
+   * @param path The location to write to.
+   * @param raw The data to be written to the location.
+   * @return True on success, false on error.
+   **/
+  public static boolean write(String path, byte[] raw){
+    return write(path, raw, false);
   }
 
   /**
@@ -195,7 +608,207 @@ public abstract class Data{
    * @return True on success, false on error.
    **/
   public static boolean append(String path, String data){
-    return write(path, data, true);
+    return write(path, data.getBytes(), true);
+  }
+
+  /**
+   * sync()
+   *
+   * Sync every file appended to or written in place since the last call. Does
+   * nothing if the sync policy is none.
+   *
+   * @return True on success, otherwise false.
+   **/
+  public static boolean sync(){
+    boolean ok = true;
+    Iterator<String> it = dirty.iterator();
+    while(it.hasNext()){
+      String path = it.next();
+      /* NOTE: A write from here on marks the file again, which is harmless. */
+      it.remove();
+      ReentrantReadWriteLock rrwl = lock(path);
+      rrwl.readLock().lock();
+      try{
+        FileChannel fc = FileChannel.open((new File(path)).toPath(), StandardOpenOption.WRITE);
+        try{
+          fc.force(false);
+        }finally{
+          fc.close();
+        }
+      }catch(NoSuchFileException e){
+        /* Removed since, nothing to sync */
+      }catch(IOException e){
+        Utils.warn("Unable to sync file");
+        dirty.add(path);
+        ok = false;
+      }finally{
+        rrwl.readLock().unlock();
+      }
+    }
+    return ok;
+  }
+
+  /**
+   * shard()
+   *
+   * Get the path of a file named by ID in the sharded layout, without
+   * checking whether it exists.
+   *
+   * @param dir The directory holding the files.
+   * @param id The ID the file is named by.
+   * @return The path of the file.
+   **/
+  public static String shard(String dir, I512 id){
+    String name = id.toString();
+    if(shardLevels <= 0){
+      return dir + "/" + name;
+    }
+    /* NOTE: The lowest bytes are random even for small IDs. */
+    byte[] b = id.toByteArray();
+    char[] sub = new char[shardLevels * 3];
+    for(int x = 0; x < shardLevels; x++){
+      int v = b[b.length - 1 - x] & 0xFF;
+      sub[x * 3] = '/';
+      sub[x * 3 + 1] = HEX[v >>> 4];
+      sub[x * 3 + 2] = HEX[v & 0xF];
+    }
+    return dir + new String(sub) + "/" + name;
+  }
+
+  /**
+   * locate()
+   *
+   * Get the path of a file named by ID. A file found in the flat layout is
+   * moved into the sharded layout first.
+   *
+   * @param dir The directory holding the files.
+   * @param id The ID the file is named by.
+   * @return The path of the file, which may not exist yet.
+   **/
+  public static String locate(String dir, I512 id){
+    String path = shard(dir, id);
+    if(shardLevels <= 0 || migrated.contains(dir) || exists(path)){
+      return path;
+    }
+    String flat = dir + "/" + id.toString();
+    if(exists(flat) && !move(flat, path)){
+      return flat;
+    }
+    return path;
+  }
+
+  /**
+   * move()
+   *
+   * Move a file from the flat layout into the sharded layout, under the write
+   * locks for both paths.
+   *
+   * @param flat The path in the flat layout.
+   * @param path The path in the sharded layout.
+   * @return True if the file is now in the sharded layout, otherwise false.
+   **/
+  private static boolean move(String flat, String path){
+    /* NOTE: Always lock in stripe order to avoid deadlock. */
+    boolean swap = (flat.hashCode() & 0x7FFFFFFF) % locks.length > (path.hashCode() & 0x7FFFFFFF) % locks.length;
+    ReentrantReadWriteLock a = lock(swap ? path : flat);
+    ReentrantReadWriteLock b = lock(swap ? flat : path);
+    a.writeLock().lock();
+    b.writeLock().lock();
+    try{
+      if(exists(path)){
+        return true;
+      }
+      File dst = new File(path);
+      dst.getParentFile().mkdirs();
+      try{
+        Files.move((new File(flat)).toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      }catch(AtomicMoveNotSupportedException e){
+        Files.move((new File(flat)).toPath(), dst.toPath());
+      }
+      drop(flat, null);
+      return true;
+    }catch(NoSuchFileException e){
+      /* Moved by somebody else in the meantime */
+      return exists(path);
+    }catch(IOException e){
+      Utils.warn("Unable to move file into shard");
+      return false;
+    }finally{
+      b.writeLock().unlock();
+      a.writeLock().unlock();
+    }
+  }
+
+  /**
+   * migrate()
+   *
+   * Move every file named by ID in the flat layout of a directory into the
+   * sharded layout. This is safe to run whilst the server is using the
+   * directory. Once every file has been moved, lookups in the directory no
+   * longer check the flat layout.
+   *
+   * @param dir The directory holding the files.
+   * @return The number of files moved.
+   **/
+  public static int migrate(String dir){
+    File[] files = (new File(dir)).listFiles();
+    int n = 0;
+    int failed = 0;
+    if(shardLevels <= 0 || files == null){
+      return n;
+    }
+    for(File f : files){
+      String name = f.getName();
+      if(
+        !f.isFile() || (
+          name.length() != I512.MAX_STR_BASE64_LEN &&
+          name.length() != I512.MAX_STR_HEX_LEN
+        )
+      ){
+        continue;
+      }
+      I512 id;
+      try{
+        id = new I512(name);
+      }catch(NumberFormatException e){
+        continue;
+      }
+      /* NOTE: Files named in hex are given their current name as they move. */
+      if(move(f.getPath(), shard(dir, id))){
+        ++n;
+      }else{
+        ++failed;
+      }
+    }
+    if(failed == 0){
+      migrated.add(dir);
+    }
+    return n;
+  }
+
+  /**
+   * list()
+   *
+   * List the files in a directory, in both the flat and sharded layouts.
+   *
+   * @param dir The directory holding the files.
+   * @return The files found.
+   **/
+  public static ArrayList<File> list(String dir){
+    ArrayList<File> res = new ArrayList<File>();
+    ArrayList<File> dirs = new ArrayList<File>();
+    dirs.add(new File(dir));
+    while(dirs.size() > 0){
+      File[] files = dirs.remove(dirs.size() - 1).listFiles();
+      for(int x = 0; files != null && x < files.length; x++){
+        if(files[x].isDirectory()){
+          dirs.add(files[x]);
+        }else{
+          res.add(files[x]);
+        }
+      }
+    }
+    return res;
   }
 
   /**
@@ -209,4 +822,134 @@ public abstract class Data{
   public static boolean exists(String path){
     return (new File(path)).exists();
   }
+
+  /**
+   * perf()
+   *
+   * Compare the cost of replacing a file directly against replacing it
+   * atomically under each sync policy.
+   **/
+  public static void perf(){
+    int TARGET_RUNS = 2000;
+    boolean oldAtomic = atomic;
+    String oldSync = sync;
+    File dir = null;
+    try{
+      dir = Files.createTempDirectory("d3ad-perf").toFile();
+    }catch(IOException e){
+      System.err.println("Unable to create temporary directory");
+      return;
+    }
+    /* Roughly the size of a user file */
+    Str data = new Str(8);
+    for(int x = 0; x < 8; x++){
+      data.append("\"key" + x + "\":\"" + (new I512(Integer.toString(x + 1))).toString() + "\",");
+    }
+    String raw = data.toString();
+    String[] names = new String[]{ "direct", "atomic, no sync", "atomic, file sync", "atomic, dir sync" };
+    boolean[] modes = new boolean[]{ false, true, true, true };
+    String[] syncs = new String[]{ SYNC_NONE, SYNC_NONE, SYNC_FILE, SYNC_DIR };
+    long[] times = new long[names.length];
+    for(int m = 0; m < names.length; m++){
+      atomic = modes[m];
+      sync = syncs[m];
+      times[m] = System.currentTimeMillis();
+      for(int x = 0; x < TARGET_RUNS; x++){
+        if(!write(dir.getPath() + "/" + (x % 16), raw)){
+          System.err.println("Failed to write file");
+        }
+      }
+      times[m] = System.currentTimeMillis() - times[m];
+    }
+    atomic = oldAtomic;
+    sync = oldSync;
+    for(File f : dir.listFiles()){
+      f.delete();
+    }
+    dir.delete();
+    /* Print results */
+    System.err.println("Time (ms)\t|Writes/s\t|Description");
+    System.err.println("----------------|---------------|----------------");
+    for(int m = 0; m < names.length; m++){
+      System.err.println(times[m] + "\t\t|" + (TARGET_RUNS * 1000L / Math.max(times[m], 1)) + "\t\t|" + names[m]);
+    }
+    perfShards(new int[]{ 1000, 10000, 100000 }, raw.getBytes());
+    System.err.println("[[ FINISHED ]]");
+  }
+
+  /**
+   * remove()
+   *
+   * Delete a file, or a directory and everything in it.
+   *
+   * @param f The file or directory to be deleted.
+   **/
+  public static void remove(File f){
+    File[] files = f.listFiles();
+    for(int x = 0; files != null && x < files.length; x++){
+      remove(files[x]);
+    }
+    f.delete();
+  }
+
+  /**
+   * perfShards()
+   *
+   * Compare the cost of opening a file by ID as the number of files grows,
+   * in the flat and sharded layouts.
+   *
+   * @param counts The numbers of files to compare.
+   * @param raw The contents of each file.
+   **/
+  private static void perfShards(int[] counts, byte[] raw){
+    int TARGET_RUNS = 200000;
+    int oldLevels = shardLevels;
+    System.err.println("Files\t\t|Flat (ns)\t|Migrating (ns)\t|Sharded (ns)");
+    System.err.println("----------------|---------------|---------------|----------------");
+    for(int count : counts){
+      File dir = null;
+      try{
+        dir = Files.createTempDirectory("d3ad-perf").toFile();
+      }catch(IOException e){
+        System.err.println("Unable to create temporary directory");
+        return;
+      }
+      I512[] ids = new I512[count];
+      long[] times = new long[3];
+      for(int m = 0; m < times.length; m++){
+        shardLevels = m == 0 ? 0 : oldLevels;
+        String base = dir.getPath() + "/" + m;
+        try{
+          for(int x = 0; x < count && m < 2; x++){
+            if(m == 0){
+              ids[x] = Utils.genRandHash();
+            }
+            File f = new File(shard(base, ids[x]));
+            f.getParentFile().mkdirs();
+            Files.write(f.toPath(), raw);
+          }
+        }catch(IOException e){
+          System.err.println("Failed to write file");
+        }
+        /* The last run uses the same files once they are known to be moved */
+        if(m == 2){
+          base = dir.getPath() + "/" + 1;
+          migrate(base);
+        }
+        /* NOTE: Pick files at random so the channel pool rarely helps. */
+        Random r = new Random(0);
+        times[m] = System.nanoTime();
+        for(int x = 0; x < TARGET_RUNS; x++){
+          if(readBytes(locate(base, ids[r.nextInt(count)]), raw.length) == null){
+            System.err.println("Failed to read file");
+          }
+        }
+        times[m] = (System.nanoTime() - times[m]) / TARGET_RUNS;
+      }
+      shardLevels = oldLevels;
+      migrated.remove(dir.getPath() + "/" + 1);
+      remove(dir);
+      System.err.println(count + "\t\t|" + times[0] + "\t\t|" + times[1] + "\t\t|" + times[2]);
+    }
+  }
 }
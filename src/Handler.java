@@ -174,7 +174,7 @@ public abstract class Handler{
       .append("</a>")
       .append(search)
       .append("</h1>");
-    os.write(res.toByteArray());
+    res.writeTo(os);
   }
 
   /**
@@ -295,9 +295,9 @@ public abstract class Handler{
       .append(EMBED_SUB)
       .append(post.id.toString())
       .append("\">&amp;</a><a target=\"_blank\" href=\"data:text/html,<embed width='")
-      .append(Integer.toString(embedWidth))
+      .append(embedWidth)
       .append("' height='")
-      .append(Integer.toString(embedHeight))
+      .append(embedHeight)
       .append("' src='")
       .append(url)
       .append(sub)
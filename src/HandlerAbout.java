@@ -44,7 +44,7 @@ public class HandlerAbout extends Handler{
   public void genBody(OutputStream os) throws IOException{
     Str res = new Str(256);
     res = genAbout(res);
-    os.write(res.toByteArray());
+    res.writeTo(os);
   }
 
   /**
@@ -97,7 +97,7 @@ public class HandlerAbout extends Handler{
     /* Generate CPU stats */
     res.append("<div><b>cpu</b>")
       .append("<quote>Processors: ")
-        .append(Integer.toString(osb.getAvailableProcessors()))
+        .append(osb.getAvailableProcessors())
         .append("</quote>")
       .append("<quote>Load average: ")
         .append(Double.toString(osb.getSystemLoadAverage() * 100))
@@ -106,16 +106,16 @@ public class HandlerAbout extends Handler{
     /* Generate user stats */
     res.append("<div><b>users</b>")
       .append("<quote>Registered: ")
-        .append(Integer.toString(auth.getNumUsers()))
+        .append(auth.getNumUsers())
         .append("</quote>")
       .append("<quote>Active: ")
-        .append(Integer.toString(auth.getActiveUsers()))
+        .append(auth.getActiveUsers())
         .append("</quote>")
       .append("</div>");
     /* Generate post stats */
     res.append("<div><b>posts</b>")
       .append("<quote>Cached: ")
-        .append(Integer.toString(Post.getNumActive()))
+        .append(Post.getNumActive())
         .append("</quote>")
       .append("</div>");
     return res;
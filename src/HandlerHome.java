@@ -2,7 +2,6 @@ package b.ds;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 
@@ -49,11 +48,10 @@ public class HandlerHome extends Handler{
     res = genPostForm(res, viewer, null);
     /* TODO: Show a more relevant page if user is logged in. */
     /* Grab latest list of posts */
-    ArrayList<Post> posts = Post.getRecent();
-    /* Begin loading posts from most recent (last) */
-    for(int x = posts.size() - 1; x >= 0; x--){
-      res = genPostEntry(res, posts.get(x), auth, viewer, 0);
+    /* Begin loading posts from most recent (first) */
+    for(Post post : Post.getRecent()){
+      res = genPostEntry(res, post, auth, viewer, 0);
     }
-    os.write(res.toByteArray());
+    res.writeTo(os);
   }
 }
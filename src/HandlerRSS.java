@@ -2,6 +2,7 @@ package b.ds;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 
@@ -88,14 +89,21 @@ public class HandlerRSS extends Handler{
     if(subject != null){
       /* Check for latest comment */
       if(subject.latest != null){
-        Post post = Post.readPost(
-          pstDir,
-          subject.latest != null ? subject.latest.toString() : null
-        );
+        ArrayList<Post> posts = Timeline.read(subject, 0, len);
+        Post post = posts == null ? Post.readPost(pstDir, subject.latest) : null;
         int postCount = 0;
         /* Begin loading posts */
         Str res = new Str(256);
-        while(++postCount <= len && post != null){
+        while(++postCount <= len){
+          /* Take from the timeline, otherwise follow the chain */
+          if(posts != null){
+            if(postCount > posts.size()){
+              break;
+            }
+            post = posts.get(postCount - 1);
+          }else if(post == null){
+            break;
+          }
           res
             .append("<item>")
               .append("<title>")
@@ -116,9 +124,11 @@ public class HandlerRSS extends Handler{
             res
               .append("</description>")
             .append("</item>");
-            post = Handler.getNextPost(post, subject);
+            if(posts == null){
+              post = Handler.getNextPost(post, subject);
+            }
         }
-        os.write(res.toByteArray());
+        res.writeTo(os);
       }
     }
   }
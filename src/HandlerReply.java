@@ -78,7 +78,7 @@ public class HandlerReply extends Handler{
         Str res = new Str(256);
         res = genPostEntry(res, post, auth, viewer, 0);
         res = genPostForm(res, viewer, postId);
-        os.write(res.toByteArray());
+        res.writeTo(os);
         return;
       }
     }
@@ -134,10 +134,10 @@ public class HandlerTag extends Handler{
           .append(TAG_SUB)
           .append(tag)
           .append("/")
-          .append(Integer.toString(page + 1))
+          .append(page + 1)
           .append("\">more</a></h2>");
       }
-      os.write(res.toByteArray());
+      res.writeTo(os);
       return;
     }
     /* If we get here, then error */
@@ -2,6 +2,7 @@ package b.ds;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
@@ -77,51 +78,109 @@ public class HandlerUser extends Handler{
       res = genPostForm(res, viewer, null);
       /* Check for latest comment */
       if(subject.latest != null){
-        Post post = null;
-        if(postId != null){
-          post = Post.readPost(pstDir, postId);
-          if(post != null){
-            /* As we were given a post, ensure it's valid for this user */
-            if(!post.user.id.equals(subject.id)){
-              /* Check if we have a quote */
-              if(post.quote != null){
-                Post qpost = Post.readPost(pstDir, post.quote.toString());
-                if(qpost == null || !qpost.user.id.equals(subject.id)){
-                  Utils.warn("Requested post under wrong user");
-                  os.write(error);
-                  return;
-                }
-              }
-            }
-          }else{
-            Utils.warn("Requested post under wrong user");
-            os.write(error);
-            return;
+        int page = page(postId);
+        /* NOTE: We read an extra post to see if there are more. */
+        ArrayList<Post> posts = page >= 0 ? Timeline.read(subject, page * len, len + 1) : null;
+        if(posts != null){
+          for(int x = 0; x < Math.min(posts.size(), len); x++){
+            res = genPostEntry(res, posts.get(x), auth, viewer, 0);
           }
-        }else if(subject.latest != null){
-          post = Post.readPost(pstDir, subject.latest.toString());
-        }
-        int postCount = 0;
-        /* Begin loading posts */
-        while(++postCount <= len && post != null){
-          res = genPostEntry(res, post, auth, viewer, 0);
-          post = Handler.getNextPost(post, subject);
-        }
-        /* Provide a link to find out more */
-        if(post != null && post.previous != null){
-          res
-            .append("<h2><a href=\"")
-            .append(sub)
-            .append(USER_SUB)
-            .append(subject.id.toString())
-            .append("/")
-            .append(post.id.toString())
-            .append("\">more</a></h2>");
+          /* Provide a link to find out more */
+          if(posts.size() > len){
+            res
+              .append("<h2><a href=\"")
+              .append(sub)
+              .append(USER_SUB)
+              .append(subject.id.toString())
+              .append("/")
+              .append(page + 1)
+              .append("\">more</a></h2>");
+          }
+        }else if(!genChain(res, os)){
+          return;
         }
       }
-      os.write(res.toByteArray());
+      res.writeTo(os);
     }else{
       os.write(error);
     }
   }
+
+  /**
+   * genChain()
+   *
+   * Generate the user's posts by following the chain of previous posts from
+   * a given post. This serves links made before pages were numbered.
+   *
+   * @param res The string building structure for the page.
+   * @param os The output stream to write any error to.
+   * @return True if the posts were generated, false if an error was written.
+   **/
+  private boolean genChain(Str res, OutputStream os) throws IOException{
+    Post post = null;
+    if(postId != null){
+      post = Post.readPost(pstDir, postId);
+      if(post != null){
+        /* As we were given a post, ensure it's valid for this user */
+        if(!post.user.id.equals(subject.id)){
+          /* Check if we have a quote */
+          if(post.quote != null){
+            Post qpost = Post.readPost(pstDir, post.quote.toString());
+            if(qpost == null || !qpost.user.id.equals(subject.id)){
+              Utils.warn("Requested post under wrong user");
+              os.write(error);
+              return false;
+            }
+          }
+        }
+      }else{
+        Utils.warn("Requested post under wrong user");
+        os.write(error);
+        return false;
+      }
+    }else if(subject.latest != null){
+      post = Post.readPost(pstDir, subject.latest.toString());
+    }
+    int postCount = 0;
+    /* Begin loading posts */
+    while(++postCount <= len && post != null){
+      res = genPostEntry(res, post, auth, viewer, 0);
+      post = Handler.getNextPost(post, subject);
+    }
+    /* Provide a link to find out more */
+    if(post != null && post.previous != null){
+      res
+        .append("<h2><a href=\"")
+        .append(sub)
+        .append(USER_SUB)
+        .append(subject.id.toString())
+        .append("/")
+        .append(post.id.toString())
+        .append("\">more</a></h2>");
+    }
+    return true;
+  }
+
+  /**
+   * page()
+   *
+   * Parse the page number from the request.
+   *
+   * @param s The page number or post ID given, otherwise NULL.
+   * @return The page number, otherwise -1 if a post ID was given.
+   **/
+  private static int page(String s){
+    if(s == null){
+      return 0;
+    }
+    /* NOTE: Post IDs are far longer than any sensible page number. */
+    if(s.length() > 6){
+      return -1;
+    }
+    try{
+      return Math.max(Integer.parseInt(s), 0);
+    }catch(NumberFormatException e){
+      return -1;
+    }
+  }
 }
@@ -1,6 +1,7 @@
 package b.ds;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 /**
@@ -288,6 +289,56 @@ public final class I512 extends Number implements Comparable<I512>{
     return parseInt(s, 10);
   }
 
+  /**
+   * parseBase64()
+   *
+   * Parse a Base64 number held as characters in a buffer, without first
+   * copying it into a String.
+   *
+   * @param b The buffer holding the characters.
+   * @param off The offset of the first character.
+   * @param len The number of characters.
+   * @return The parsed number.
+   **/
+  public static I512 parseBase64(ByteBuffer b, int off, int len) throws NumberFormatException{
+    byte[] r = new byte[(int)(((double)(len * BITS_BASE64) + 7.9999999999999999) / BITS_BYTE)];
+    /* Buffer source pointer */
+    int i = off + len;
+    /* Byte array target pointer */
+    int x = r.length;
+    /* Pre-declare used variables */
+    int v0, v1, v2, v3;
+    /* Quad source for triple target set */
+    while(i - off >= 4){
+      v0 = STR_BASE64_LUT[b.get(--i) - STR_LUT_OFF];
+      v1 = STR_BASE64_LUT[b.get(--i) - STR_LUT_OFF];
+      v2 = STR_BASE64_LUT[b.get(--i) - STR_LUT_OFF];
+      v3 = STR_BASE64_LUT[b.get(--i) - STR_LUT_OFF];
+      r[--x] = (byte)((v1 << 6) | (v0     ));
+      r[--x] = (byte)((v2 << 4) | (v1 >> 2));
+      r[--x] = (byte)((v3 << 2) | (v2 >> 4));
+    }
+    /* Handle last parts */
+    switch(i - off){
+      case 0 :
+        /* Do nothing */
+        break;
+      case 1 :
+        v0 = STR_BASE64_LUT[b.get(--i) - STR_LUT_OFF];
+        r[--x] = (byte)(v0);
+        break;
+      case 2 :
+        v0 = STR_BASE64_LUT[b.get(--i) - STR_LUT_OFF];
+        v1 = STR_BASE64_LUT[b.get(--i) - STR_LUT_OFF];
+        r[--x] = (byte)((v1 << 6) | (v0     ));
+        r[--x] = (byte)(            (v1 >> 2));
+        break;
+      default :
+        throw new NumberFormatException("Unhandled parse case for " + (i - off));
+    }
+    return new I512(r);
+  }
+
   public static I512 valueOf(String s, int radix) throws NumberFormatException{
     return new I512(parseInt(s, radix));
   }
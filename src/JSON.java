@@ -1,15 +1,16 @@
 package b.ds;
 
-import java.io.File;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Scanner;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * JSON.java
  *
- * A single file JSON parser.
+ * A simple JSON tree, built from the tokens of JSONReader in a single pass.
  *
  * @author B[]
  * @version 1.0 (modified)
@@ -19,138 +20,31 @@ public class JSON{
   private static final int TYPE_OBJ = 1;
   private static final int TYPE_ARR = 2;
   private static final int TYPE_STR = 3;
+  private static final int MIN_CHILDS = 4;
+  /* NOTE: Searching a few keys is quicker than hashing, so only index above. */
+  private static final int INDEX_THRESHOLD = 8;
 
   private int rawLen;
   private int type;
   private String key;
   private String val;
-  private HashMap<String, JSON> childs;
+  private int count;
+  private JSON[] childs;
+  private int[] index;
 
   /**
    * JSON()
    *
-   * Parse the JSON string and generate the relevant children objects.
-   *
-   * @param json The valid JSON input String.
-   * @param offset The offset to start parsing from in the String.
+   * Create a blank JSON String, used whilst parsing.
    **/
-  private JSON(String json, int offset) throws Exception{
-    /* Setup internal variables */
+  private JSON(){
     rawLen = 0;
     type = TYPE_STR;
     key = null;
     val = null;
-    childs = new HashMap<String, JSON>();
-    /* Parse for object type */
-    boolean string = false;
-    boolean escape = false;
-    boolean keyFill = true;
-    for(int x = offset; x < json.length(); x++){
-      char c = json.charAt(x);
-      /* Parse JSON structure */
-      if(!string){
-        switch(c){
-          case '{' :
-          case '[' :
-            /* Set type if not set */
-            if(type == TYPE_STR){
-              /* Check special case root object */
-              if(offset > 0){
-                type = c == '{' ? TYPE_OBJ : TYPE_ARR;
-              }else{
-                offset = 1;
-              }
-            /* Handle this child object */
-            }else{
-              JSON child = new JSON(json, x);
-              /* NOTE: There is no key or value for this type, so make one */
-              childs.put((new Integer(childs.size())).toString(), child);
-              x += child.getRawLen();
-            }
-            break;
-          case '}' :
-          case ']' :
-            /* Parent didn't bare children, don't double recursion escape */
-            if(type != TYPE_STR && childs.size() <= 0){
-              ++x;
-            }
-          case ',' :
-            /* End of this object */
-            rawLen = x - offset;
-            return;
-          case '"' :
-            if(type == TYPE_STR){
-              string = !string;
-            }else{
-              JSON child = new JSON(json, x);
-              childs.put(child.key(child.value(null)), child);
-              x += child.getRawLen();
-            }
-            break;
-          case ':' :
-            keyFill = false;
-            break;
-        }
-      /* Parse JSON string */
-      }else{
-        /* If not an escape character */
-        if(c != '\\' || escape){
-          /* Flip string state if not escaping */
-          if(c == '"' && !escape){
-            string = !string;
-          }
-          /* Pre-escape if needed */
-          if(escape){
-            switch(c){
-              case 'b' :
-                c = '\b';
-                break;
-              case 'f' :
-                c = '\f';
-                break;
-              case 'n' :
-                c = '\n';
-                break;
-              case 'r' :
-                c = '\r';
-                break;
-              case 't' :
-                c = '\t';
-                break;
-              case '"' :
-                c = '"';
-                break;
-              case '\\' :
-                c = '\\';
-                break;
-              default :
-                throw new Exception("Invalid escape sequence");
-            }
-            escape = false;
-          }
-          /* Are we still in the string? */
-          if(string){
-            /* Where are we putting this? */
-            if(keyFill){
-              if(key != null){
-                key += c;
-              }else{
-                key = "" + c;
-              }
-            }else{
-              if(val != null){
-                val += c;
-              }else{
-                val = "" + c;
-              }
-            }
-          }
-        /* Handle escape case */
-        }else{
-          escape = true;
-        }
-      }
-    }
+    count = 0;
+    childs = null;
+    index = null;
   }
 
   /**
@@ -161,7 +55,21 @@ public class JSON{
    * @param json The valid JSON input String.
    **/
   public JSON(String json) throws Exception{
-    this('{' + json + '}', 0);
+    this();
+    parse(new JSONReader(json));
+  }
+
+  /**
+   * JSON()
+   *
+   * Parse the JSON UTF-8 bytes and generate the relevant children objects,
+   * without first decoding them to a String.
+   *
+   * @param json The valid JSON input bytes.
+   **/
+  public JSON(byte[] json) throws Exception{
+    this();
+    parse(new JSONReader(json, 0, json.length));
   }
 
   /**
@@ -173,7 +81,7 @@ public class JSON{
    * @param val The value for this JSON object.
    **/
   public JSON(String key, String val) throws Exception{
-    this("{}", 0);
+    this();
     set(key, val);
   }
 
@@ -188,7 +96,7 @@ public class JSON{
    * the JSON format.
    **/
   public JSON(boolean array) throws Exception{
-    this("{}", 0);
+    this();
     if(array){
       type = TYPE_ARR;
     }
@@ -203,22 +111,244 @@ public class JSON{
    * @param filename A valid file containing the JSON data.
    **/
   public static JSON build(String filename) throws Exception{
-    /* Check that the file is valid */
-    File file = new File(filename);
-    /* Load the file */
-    Scanner s = new Scanner(file);
-    String json = s.useDelimiter("\\A").next();
-    s.close();
-    return new JSON(json);
+    return new JSON(Files.readAllBytes(Paths.get(filename)));
+  }
+
+  /**
+   * parse()
+   *
+   * Build the tree from the tokens, with this object as the root. Open
+   * objects and arrays are kept on a stack rather than recursing, and parsing
+   * stops once the root element is complete.
+   *
+   * NOTE: For compatibility with the files we have already written, a string
+   * may appear in an object without a value or in an array with one. Empty
+   * strings are treated as unset.
+   *
+   * @param r The tokens to be parsed.
+   **/
+  private void parse(JSONReader r) throws Exception{
+    ArrayList<JSON> stack = new ArrayList<JSON>();
+    JSON cur = null;
+    int begin = r.position();
+    for(int t = r.next(); t != JSONReader.END; t = r.next()){
+      switch(t){
+        case JSONReader.OBJECT_START :
+        case JSONReader.ARRAY_START :
+          JSON o = cur == null ? this : new JSON();
+          o.type = t == JSONReader.OBJECT_START ? TYPE_OBJ : TYPE_ARR;
+          if(cur != null){
+            cur.put(o);
+          }
+          stack.add(o);
+          cur = o;
+          break;
+        case JSONReader.OBJECT_END :
+        case JSONReader.ARRAY_END :
+          if(!stack.isEmpty()){
+            stack.remove(stack.size() - 1);
+          }
+          if(stack.isEmpty()){
+            rawLen = r.position() - begin;
+            return;
+          }
+          cur = stack.get(stack.size() - 1);
+          break;
+        case JSONReader.STRING :
+        case JSONReader.LITERAL :
+          JSON s = cur == null ? this : new JSON();
+          s.key = text(r);
+          boolean open = false;
+          if(r.peek() == JSONReader.COLON){
+            r.next();
+            switch(r.peek()){
+              case JSONReader.STRING :
+              case JSONReader.LITERAL :
+                r.next();
+                s.val = text(r);
+                break;
+              case JSONReader.OBJECT_START :
+              case JSONReader.ARRAY_START :
+                s.type = r.next() == JSONReader.OBJECT_START ? TYPE_OBJ : TYPE_ARR;
+                open = true;
+                break;
+            }
+          }
+          if(cur != null){
+            cur.put(s);
+          }
+          if(open){
+            stack.add(s);
+            cur = s;
+          }else if(cur == null){
+            rawLen = r.position() - begin;
+            return;
+          }
+          break;
+        default :
+          /* Separators carry no information for us */
+          break;
+      }
+    }
+    rawLen = r.position() - begin;
+  }
+
+  /**
+   * text()
+   *
+   * Get the current string from the tokenizer.
+   *
+   * @param r The tokenizer.
+   * @return The string, otherwise NULL if empty.
+   **/
+  private static String text(JSONReader r) throws Exception{
+    return r.end() > r.start() ? r.string() : null;
+  }
+
+  /**
+   * put()
+   *
+   * Add a child, replacing any child with the same name in its place, or
+   * otherwise appending it. Children are kept in the order they were added.
+   *
+   * @param c The child to be added.
+   **/
+  private void put(JSON c){
+    int x = find(name(c));
+    if(x >= 0){
+      childs[x] = c;
+      return;
+    }
+    if(childs == null){
+      childs = new JSON[MIN_CHILDS];
+    }else if(count >= childs.length){
+      childs = Arrays.copyOf(childs, count * 2);
+    }
+    childs[count++] = c;
+    if(index != null && count * 4 <= index.length){
+      index(count - 1);
+    }else if(count > INDEX_THRESHOLD){
+      index = new int[Integer.highestOneBit(count) * 8];
+      for(int z = 0; z < count; z++){
+        index(z);
+      }
+    }
+  }
+
+  /**
+   * index()
+   *
+   * Add a child to the hash index, if it has a name. Each slot in the index
+   * holds the position of a child plus one, so that zero is empty, followed
+   * by the hash of its name.
+   *
+   * @param x The position of the child.
+   **/
+  private void index(int x){
+    String n = name(childs[x]);
+    if(n == null){
+      return;
+    }
+    int m = index.length - 2;
+    int h = slot(n.hashCode());
+    while(index[h] != 0){
+      h = (h + 2) & m;
+    }
+    index[h] = x + 1;
+    index[h + 1] = n.hashCode();
+  }
+
+  /**
+   * find()
+   *
+   * Find the position of a child by its name. Small objects are searched,
+   * larger ones use the hash index. Children without a name, such as objects
+   * in an array, are found by their position.
+   *
+   * @param k The name to be searched for, otherwise NULL.
+   * @return The position of the child, otherwise -1.
+   **/
+  private int find(String k){
+    if(k == null){
+      return -1;
+    }
+    int hash = k.hashCode();
+    if(index != null){
+      int m = index.length - 2;
+      for(int h = slot(hash); index[h] != 0; h = (h + 2) & m){
+        if(index[h + 1] == hash && k.equals(name(childs[index[h] - 1]))){
+          return index[h] - 1;
+        }
+      }
+    }else{
+      for(int x = 0; x < count; x++){
+        if(same(childs[x], k, hash)){
+          return x;
+        }
+      }
+    }
+    /* Check for a position instead */
+    int x = 0;
+    for(int z = 0; z < k.length(); z++){
+      char c = k.charAt(z);
+      if(c < '0' || c > '9' || z >= 9){
+        return -1;
+      }
+      x = x * 10 + (c - '0');
+    }
+    return k.length() > 0 && x < count && name(childs[x]) == null ? x : -1;
+  }
+
+  /**
+   * name()
+   *
+   * Get the name a child is stored by, which is its key, otherwise its value.
+   *
+   * @param c The child.
+   * @return The name of the child, otherwise NULL.
+   **/
+  private static String name(JSON c){
+    return c.key != null ? c.key : c.val;
+  }
+
+  /**
+   * same()
+   *
+   * Check whether a child has the given name. Strings cache their hash, so
+   * comparing it first is cheap and skips most comparisons.
+   *
+   * @param c The child.
+   * @param k The name.
+   * @param hash The hash of the name.
+   * @return True if the child has the name, otherwise false.
+   **/
+  private static boolean same(JSON c, String k, int hash){
+    String n = name(c);
+    return n != null && n.hashCode() == hash && n.equals(k);
+  }
+
+  /**
+   * slot()
+   *
+   * Get the slot in the hash index to start searching from. The hash is
+   * multiplied out so that similar names, which often have similar hashes,
+   * are spread across the index.
+   *
+   * @param hash The hash of the name.
+   * @return The slot in the index.
+   **/
+  private int slot(int hash){
+    return ((hash * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(index.length - 1)) & ~1;
   }
 
   /**
    * getRawLen()
    *
-   * Get the raw parser length of what was parsed. This is intended to be used
-   * by the constructor during parsing.
+   * Get the raw parser length of what was parsed, up to the end of the root
+   * element.
    *
-   * @return The raw parser length in number of bytes.
+   * @return The raw parser length in number of characters, or bytes if parsed
+   * from bytes.
    **/
   public int getRawLen(){
     return rawLen;
@@ -289,11 +419,7 @@ public class JSON{
    * @return The number of child elements, otherwise zero.
    **/
   public int length(){
-    if(childs != null){
-      return childs.size();
-    }else{
-      return 0;
-    }
+    return count;
   }
 
   /**
@@ -312,7 +438,7 @@ public class JSON{
       if(type == TYPE_STR){
         type = TYPE_OBJ;
       }
-      childs.put(c.key(c.value(null)).toString(), c);
+      put(c);
       return true;
     }
     return false;
@@ -337,23 +463,14 @@ public class JSON{
   /**
    * get()
    *
-   * Get a child element of this JSON object. NOTE: Only objects and arrays can
-   * have child elements. This method is slow because it has to search through
-   * the entire list to find the desired element.
+   * Get a child element of this JSON object, in the order they were parsed or
+   * added. NOTE: Only objects and arrays can have child elements.
    *
    * @param x The index of the element to retrieve.
    * @return The JSON object at the given location, otherwise this object.
    **/
   public JSON get(int x){
-    if(childs != null && x >= 0 && x < childs.size()){
-      Iterator i = childs.entrySet().iterator();
-      for(int z = 0; z < x && i.hasNext(); z++){
-        i.next();
-      }
-      return (JSON)(((Map.Entry)(i.next())).getValue());
-    }else{
-      return this;
-    }
+    return x >= 0 && x < count ? childs[x] : this;
   }
 
   /**
@@ -366,11 +483,8 @@ public class JSON{
    * @return The JSON object at the given location, otherwise this object.
    **/
   public JSON get(String key){
-    if(childs != null){
-      JSON c = childs.get(key);
-      return c != null ? c : this;
-    }
-    return this;
+    int x = find(key);
+    return x >= 0 ? childs[x] : this;
   }
 
   /**
@@ -382,56 +496,55 @@ public class JSON{
    * @return True if the child exists, otherwise false.
    **/
   public boolean exists(String key){
-    if(childs != null){
-      return childs.containsKey(key);
-    }
-    return false;
+    return find(key) >= 0;
   }
 
   /**
-   * toStringBuilder()
+   * write()
    *
-   * Convert this object and all child objects to a printable String.
+   * Write this object and all child objects.
    *
-   * @return A printable String representing this object and it's child
-   * elements.
+   * @param w The writer to be written to.
    **/
-  public StringBuilder toStringBuilder(){
+  public void write(JSONWriter w) throws IOException{
     switch(type){
       case TYPE_OBJ :
-        StringBuilder o = new StringBuilder(key != null ? "\"" + sanStr(key) + "\":{" : "{");
-        if(childs != null){
-          Iterator io = childs.entrySet().iterator();
-          while(io.hasNext()){
-            JSON c = (JSON)(((Map.Entry)(io.next())).getValue());
-            o.append(c.toStringBuilder());
-            o.append(io.hasNext() ? "," : "");
-          }
-        }
-        return o.append('}');
       case TYPE_ARR :
-        StringBuilder a = new StringBuilder(key != null ? "\"" + sanStr(key) + "\":[" : "[");
-        if(childs != null){
-          Iterator ia = childs.entrySet().iterator();
-          while(ia.hasNext()){
-            JSON c = (JSON)(((Map.Entry)(ia.next())).getValue());
-            a.append(c.toStringBuilder());
-            a.append(ia.hasNext() ? "," : "");
-          }
+        if(type == TYPE_OBJ){
+          w.startObject(key);
+        }else{
+          w.startArray(key);
         }
-        return a.append(']');
-      case TYPE_STR :
-        if(key != null && val != null){
-          return (new StringBuilder("\"")).append(sanStr(key)).append("\":\"").append(sanStr(val)).append('\"');
-        }else if(key != null){
-          return (new StringBuilder("\"")).append(sanStr(key)).append('\"');
-        }else if(val != null){
-          return (new StringBuilder("\"")).append(sanStr(val)).append('\"');
+        for(int x = 0; x < count; x++){
+          childs[x].write(w);
+        }
+        if(type == TYPE_OBJ){
+          w.endObject();
         }else{
-          return new StringBuilder("");
+          w.endArray();
         }
-      default :
-        return new StringBuilder();
+        break;
+      case TYPE_STR :
+        w.string(key, val);
+        break;
+    }
+  }
+
+  /**
+   * toByteArray()
+   *
+   * Convert this object and all child objects to UTF-8 bytes.
+   *
+   * @return The bytes representing this object and it's child elements.
+   **/
+  public byte[] toByteArray(){
+    try{
+      JSONWriter w = JSONWriter.local();
+      write(w);
+      return w.toByteArray();
+    }catch(IOException e){
+      /* NOTE: Writing to a buffer does not throw */
+      return new byte[0];
     }
   }
 
@@ -443,28 +556,28 @@ public class JSON{
    * @return A printable String representing this object and it's child
    * elements.
    **/
-  @Override
-  public String toString(){
-    return toStringBuilder().toString();
+  public StringBuilder toStringBuilder(){
+    return new StringBuilder(toString());
   }
 
   /**
-   * sanStr()
+   * toString()
    *
-   * Ensure a JSON String about to be saved or written has appropriate escape
-   * sequences. NOTE: This is slow and should only be done for small Strings.
+   * Convert this object and all child objects to a printable String.
    *
-   * @param s The String to be sanitized.
-   * @return The sanitized String.
+   * @return A printable String representing this object and it's child
+   * elements.
    **/
-  private static String sanStr(String s){
-    return s.replaceAll("\\\\", "\\\\\\\\")
-            .replaceAll("\"", "\\\\\"")
-            .replaceAll("\t", "\\\\t")
-            .replaceAll("\r", "\\\\r")
-            .replaceAll("\n", "\\\\n")
-            .replaceAll("\f", "\\\\f")
-            .replaceAll("\b", "\\\\b");
+  @Override
+  public String toString(){
+    try{
+      JSONWriter w = JSONWriter.local();
+      write(w);
+      return w.toString();
+    }catch(IOException e){
+      /* NOTE: Writing to a buffer does not throw */
+      return "";
+    }
   }
 
   /**
@@ -531,21 +644,149 @@ public class JSON{
         r = false;
       }
     }
-    /* NOTE: Tests won't work with HashMap as they are stored out-of-order. */
-//    /* Run getter tests */
-//    try{
-//      r &= assurt(new JSON("{\"test\":[{\"arg-a\":\"123\"},{\"arg-b\":\"456\"}]}")
-//        .get(0).get(0).toStringBuilder().toString().equals("{\"arg-a\":\"123\"}"));
-//      r &= assurt(new JSON("{\"test\":[\"arg-a\":\"123\",\"arg-b\":\"456\"]}")
-//        .get(0).get("arg-b").toStringBuilder().toString().equals("\"arg-b\":\"456\""));
-//    }catch(Exception e){
-//      System.out.println(">> Major Screw Up <<");
-//      e.printStackTrace();
-//      r = false;
-//    }
+    /* Run getter tests */
+    try{
+      r &= assurt(new JSON("{\"test\":[{\"arg-a\":\"123\"},{\"arg-b\":\"456\"}]}")
+        .get(0).get(0).toStringBuilder().toString().equals("{\"arg-a\":\"123\"}"));
+      r &= assurt(new JSON("{\"test\":[\"arg-a\":\"123\",\"arg-b\":\"456\"]}")
+        .get(0).get("arg-b").toStringBuilder().toString().equals("\"arg-b\":\"456\""));
+      /* Check order and look-up either side of the index being built */
+      JSON big = new JSON(false);
+      for(int x = 0; x < 100; x++){
+        big.set(new JSON("k" + (99 - x), Integer.toString(x)));
+      }
+      boolean ok = big.length() == 100;
+      for(int x = 0; x < 100; x++){
+        ok &= big.get(x).key(null).equals("k" + (99 - x));
+        ok &= big.get("k" + x).value(null).equals(Integer.toString(99 - x));
+      }
+      r &= assurt(ok);
+      big.set(new JSON("k50", "new"));
+      r &= assurt(big.length() == 100 && big.get(49).value(null).equals("new"));
+      r &= assurt(!big.exists("k100") && big.get("k100") == big && big.get(100) == big);
+    }catch(Exception e){
+      System.out.println(">> Major Screw Up <<");
+      e.printStackTrace();
+      r = false;
+    }
     /* Print result */
     System.out.println("");
     System.out.println("  Tests " + (r ? "PASSED" : "FAILED"));
     return r;
   }
+
+  /**
+   * perf()
+   *
+   * Measure the time taken to parse post records of growing message length,
+   * from a String and from UTF-8 bytes. The time per record should grow in
+   * line with its length. Then measure looking up children, by position and
+   * by key, and the heap held by each parsed object.
+   **/
+  public static void perf(){
+    int TARGET_BYTES = 4 * 1024 * 1024;
+    int[] lens = new int[]{ 16, 256, 4096, 65536 };
+    System.err.println("Bytes\t|String (ns)\t|byte[] (ns)\t|Description");
+    System.err.println("--------|---------------|---------------|----------------");
+    /* NOTE: The first pass warms up the JIT and is not printed. */
+    for(int m = 0; m < lens.length * 2; m++){
+      Str msg = new Str(lens[m % lens.length] + 32);
+      while(msg.length() < lens[m % lens.length]){
+        msg.append("word \\\"quoted\\\" ");
+      }
+      String rec = (new Str(msg.length() + 512))
+        .append("{\"id\":\"").append(Utils.genRandHash().toString())
+        .append("\",\"userid\":\"").append(Utils.genRandHash().toString())
+        .append("\",\"creation\":\"").append(Long.toString(System.currentTimeMillis()))
+        .append("\",\"message\":\"").append(msg.toString())
+        .append("\",\"state\":\"NONE\"}")
+        .toString();
+      byte[] raw = rec.getBytes(StandardCharsets.UTF_8);
+      int runs = Math.max(TARGET_BYTES / raw.length, 1);
+      long strTime = 0;
+      long byteTime = 0;
+      try{
+        strTime = System.nanoTime();
+        for(int x = 0; x < runs; x++){
+          new JSON(rec);
+        }
+        strTime = (System.nanoTime() - strTime) / runs;
+        byteTime = System.nanoTime();
+        for(int x = 0; x < runs; x++){
+          new JSON(raw);
+        }
+        byteTime = (System.nanoTime() - byteTime) / runs;
+      }catch(Exception e){
+        throw new IllegalStateException("Unable to parse record");
+      }
+      if(m < lens.length){
+        continue;
+      }
+      System.err.println(
+        raw.length + "\t|" + strTime + "\t\t|" + byteTime + "\t\t|message of " +
+        lens[m % lens.length] + " chars"
+      );
+    }
+    System.err.println("");
+    System.err.println("Children|get(x) (ns)\t|get(key) (ns)\t|Heap (bytes)");
+    System.err.println("--------|---------------|---------------|----------------");
+    int[] sizes = new int[]{ 4, 16, 256, 4096 };
+    int TARGET_GETS = 4 * 1024 * 1024;
+    Runtime rt = Runtime.getRuntime();
+    /* NOTE: The first pass warms up the JIT and is not printed. */
+    for(int m = 0; m < sizes.length * 2; m++){
+      int n = sizes[m % sizes.length];
+      String[] keys = new String[n];
+      Str rec = new Str(n * 2 + 2);
+      rec.append("{");
+      for(int x = 0; x < n; x++){
+        keys[x] = "key" + x;
+        rec.append(x > 0 ? ",\"" : "\"").append(keys[x]).append("\":\"").append(Integer.toString(x)).append("\"");
+      }
+      String raw = rec.append("}").toString();
+      JSON[] held = new JSON[Math.max(TARGET_BYTES / raw.length() / 16, 1)];
+      long idxTime = 0;
+      long keyTime = 0;
+      long heap = 0;
+      try{
+        /* NOTE: Collect a few times, as one pass may not free everything. */
+        for(int x = 0; x < 3; x++){
+          System.gc();
+        }
+        heap = rt.totalMemory() - rt.freeMemory();
+        for(int x = 0; x < held.length; x++){
+          held[x] = new JSON(raw);
+        }
+        for(int x = 0; x < 3; x++){
+          System.gc();
+        }
+        heap = (rt.totalMemory() - rt.freeMemory() - heap) / held.length;
+      }catch(Exception e){
+        throw new IllegalStateException("Unable to parse record");
+      }
+      JSON json = held[0];
+      int found = 0;
+      idxTime = System.nanoTime();
+      for(int x = 0; x < TARGET_GETS; x++){
+        found += json.get(x % n).value("").length();
+      }
+      idxTime = (System.nanoTime() - idxTime) * 1000 / TARGET_GETS;
+      keyTime = System.nanoTime();
+      for(int x = 0; x < TARGET_GETS; x++){
+        found += json.get(keys[x % n]).value("").length();
+      }
+      keyTime = (System.nanoTime() - keyTime) * 1000 / TARGET_GETS;
+      if(found < TARGET_GETS * 2){
+        throw new IllegalStateException("Unable to find children");
+      }
+      if(m < sizes.length){
+        continue;
+      }
+      System.err.println(
+        n + "\t|" + String.format("%.3f", idxTime / 1000.0) + "\t\t|" +
+        String.format("%.3f", keyTime / 1000.0) + "\t\t|" + heap
+      );
+    }
+    System.err.println("[[ FINISHED ]]");
+  }
 }
@@ -0,0 +1,461 @@
+package b.ds;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSONReader.java
+ *
+ * A single pass pull tokenizer for JSON, reading either characters or UTF-8
+ * bytes. Each call to next() moves to the following token and only records
+ * where it starts and ends, nothing is copied until a string is asked for.
+ *
+ * Anything outside of a string that is not structural, such as a number, is
+ * returned as a literal.
+ **/
+public class JSONReader{
+  public static final int END = 0;
+  public static final int OBJECT_START = 1;
+  public static final int OBJECT_END = 2;
+  public static final int ARRAY_START = 3;
+  public static final int ARRAY_END = 4;
+  public static final int STRING = 5;
+  public static final int LITERAL = 6;
+  public static final int COLON = 7;
+  public static final int COMMA = 8;
+
+  private CharSequence chars;
+  private byte[] bytes;
+  private int limit;
+  private int pos;
+  private int token;
+  private int start;
+  private int end;
+  private boolean escaped;
+
+  /**
+   * JSONReader()
+   *
+   * Read tokens from some characters.
+   *
+   * @param json The characters to be read.
+   **/
+  public JSONReader(CharSequence json){
+    this(json, 0, json.length());
+  }
+
+  /**
+   * JSONReader()
+   *
+   * Read tokens from a range of some characters.
+   *
+   * @param json The characters to be read.
+   * @param off The offset of the first character.
+   * @param len The number of characters to be read.
+   **/
+  public JSONReader(CharSequence json, int off, int len){
+    if(off < 0 || len < 0 || off + len > json.length()){
+      throw new IllegalArgumentException("Range outside of input");
+    }
+    chars = json;
+    bytes = null;
+    limit = off + len;
+    pos = off;
+    token = END;
+    start = off;
+    end = off;
+  }
+
+  /**
+   * JSONReader()
+   *
+   * Read tokens from a range of some UTF-8 bytes.
+   *
+   * @param json The bytes to be read.
+   * @param off The offset of the first byte.
+   * @param len The number of bytes to be read.
+   **/
+  public JSONReader(byte[] json, int off, int len){
+    if(off < 0 || len < 0 || off + len > json.length){
+      throw new IllegalArgumentException("Range outside of input");
+    }
+    chars = null;
+    bytes = json;
+    limit = off + len;
+    pos = off;
+    token = END;
+    start = off;
+    end = off;
+  }
+
+  /**
+   * next()
+   *
+   * Move to the next token.
+   *
+   * @return The type of the token, END once there is no more input.
+   * @throws Exception If a string is not terminated.
+   **/
+  public int next() throws Exception{
+    /* Skip whitespace */
+    while(pos < limit && at(pos) <= ' '){
+      ++pos;
+    }
+    start = pos;
+    escaped = false;
+    if(pos >= limit){
+      end = pos;
+      return token = END;
+    }
+    int c = at(pos);
+    switch(c){
+      case '{' :
+        token = OBJECT_START;
+        break;
+      case '}' :
+        token = OBJECT_END;
+        break;
+      case '[' :
+        token = ARRAY_START;
+        break;
+      case ']' :
+        token = ARRAY_END;
+        break;
+      case ':' :
+        token = COLON;
+        break;
+      case ',' :
+        token = COMMA;
+        break;
+      case '"' :
+        /* NOTE: The slice does not include the quotes. */
+        start = ++pos;
+        while(pos < limit){
+          c = at(pos);
+          if(c == '"'){
+            end = pos++;
+            return token = STRING;
+          }
+          if(c == '\\'){
+            escaped = true;
+            ++pos;
+          }
+          ++pos;
+        }
+        throw new Exception("Unterminated string");
+      default :
+        while(pos < limit && !separator(at(pos))){
+          ++pos;
+        }
+        end = pos;
+        return token = LITERAL;
+    }
+    end = ++pos;
+    return token;
+  }
+
+  /**
+   * peek()
+   *
+   * Find the type of the next token without moving to it.
+   *
+   * @return The type of the next token, END if there is no more input.
+   * @throws Exception If a string is not terminated.
+   **/
+  public int peek() throws Exception{
+    int p = pos;
+    int t = token;
+    int s = start;
+    int e = end;
+    boolean x = escaped;
+    int res = next();
+    pos = p;
+    token = t;
+    start = s;
+    end = e;
+    escaped = x;
+    return res;
+  }
+
+  /**
+   * token()
+   *
+   * Get the type of the current token.
+   *
+   * @return The type of the current token.
+   **/
+  public int token(){
+    return token;
+  }
+
+  /**
+   * start()
+   *
+   * Get the start of the current token. For strings this is after the
+   * opening quote.
+   *
+   * @return The offset into the input.
+   **/
+  public int start(){
+    return start;
+  }
+
+  /**
+   * end()
+   *
+   * Get the end of the current token. For strings this is the closing quote.
+   *
+   * @return The offset into the input, one past the token.
+   **/
+  public int end(){
+    return end;
+  }
+
+  /**
+   * position()
+   *
+   * Get how far the reader has got through the input.
+   *
+   * @return The offset into the input of the next unread character.
+   **/
+  public int position(){
+    return pos;
+  }
+
+  /**
+   * escaped()
+   *
+   * Check whether the current string contains escape sequences, in which case
+   * its slice of the input is not its value.
+   *
+   * @return True if escape sequences were found, otherwise false.
+   **/
+  public boolean escaped(){
+    return escaped;
+  }
+
+  /**
+   * string()
+   *
+   * Get the value of the current string or literal. This is the only place
+   * the input is copied.
+   *
+   * @return The value with any escape sequences decoded.
+   * @throws Exception If an escape sequence is not valid.
+   **/
+  public String string() throws Exception{
+    if(!escaped){
+      return slice(start, end);
+    }
+    /* NOTE: Escape sequences are ASCII, so bytes can be decoded first. */
+    CharSequence cs = chars;
+    int s = start;
+    int e = end;
+    if(bytes != null){
+      cs = slice(start, end);
+      s = 0;
+      e = cs.length();
+    }
+    StringBuilder sb = new StringBuilder(e - s);
+    int seg = s;
+    for(int x = s; x < e; x++){
+      if(cs.charAt(x) != '\\'){
+        continue;
+      }
+      sb.append(cs, seg, x);
+      char c;
+      switch(cs.charAt(++x)){
+        case 'b' :
+          c = '\b';
+          break;
+        case 'f' :
+          c = '\f';
+          break;
+        case 'n' :
+          c = '\n';
+          break;
+        case 'r' :
+          c = '\r';
+          break;
+        case 't' :
+          c = '\t';
+          break;
+        case '"' :
+          c = '"';
+          break;
+        case '\\' :
+          c = '\\';
+          break;
+        case '/' :
+          c = '/';
+          break;
+        case 'u' :
+          if(x + 4 >= e){
+            throw new Exception("Invalid escape sequence");
+          }
+          int u = 0;
+          for(int y = 1; y <= 4; y++){
+            int d = Character.digit(cs.charAt(x + y), 16);
+            if(d < 0){
+              throw new Exception("Invalid escape sequence");
+            }
+            u = (u << 4) | d;
+          }
+          c = (char)u;
+          x += 4;
+          break;
+        default :
+          throw new Exception("Invalid escape sequence");
+      }
+      sb.append(c);
+      seg = x + 1;
+    }
+    return sb.append(cs, seg, e).toString();
+  }
+
+  /**
+   * at()
+   *
+   * Get a character from the input. Multi-byte UTF-8 sequences never contain
+   * ASCII, so bytes can be scanned as if they were characters.
+   *
+   * @param x The offset into the input.
+   * @return The character or byte value.
+   **/
+  private int at(int x){
+    return bytes != null ? bytes[x] & 0xFF : chars.charAt(x);
+  }
+
+  /**
+   * slice()
+   *
+   * Copy a range of the input into a String.
+   *
+   * @param s The start offset.
+   * @param e The end offset.
+   * @return The String for the range.
+   **/
+  private String slice(int s, int e){
+    if(bytes != null){
+      return new String(bytes, s, e - s, StandardCharsets.UTF_8);
+    }
+    return chars.subSequence(s, e).toString();
+  }
+
+  /**
+   * separator()
+   *
+   * Check whether a character ends a literal.
+   *
+   * @param c The character to be checked.
+   * @return True if the literal ends here, otherwise false.
+   **/
+  private static boolean separator(int c){
+    switch(c){
+      case '{' :
+      case '}' :
+      case '[' :
+      case ']' :
+      case ':' :
+      case ',' :
+      case '"' :
+        return true;
+      default :
+        return c <= ' ';
+    }
+  }
+
+  /**
+   * test()
+   *
+   * Test that the tokenizer works as expected.
+   *
+   * @return True if all tests passed, otherwise false.
+   **/
+  public static boolean test(){
+    int[] stats = new int[]{ 0, 0 };
+    /* Run tests */
+    try{
+      String json = " {\"a\" : [\"b\", 12, true],\"c\":{}} ";
+      int[] exp = new int[]{
+        OBJECT_START, STRING, COLON, ARRAY_START, STRING, COMMA, LITERAL, COMMA,
+        LITERAL, ARRAY_END, COMMA, STRING, COLON, OBJECT_START, OBJECT_END,
+        OBJECT_END, END, END
+      };
+      JSONReader r = new JSONReader(json);
+      boolean same = true;
+      for(int x = 0; x < exp.length; x++){
+        same &= r.next() == exp[x];
+      }
+      stats = assurt(same, stats, "Token sequence test");
+      r = new JSONReader(json);
+      r.next();
+      stats = assurt(r.peek() == STRING && r.token() == OBJECT_START, stats, "Peek test");
+      r.next();
+      stats = assurt(r.start() == 3 && r.end() == 4 && !r.escaped(), stats, "Slice test");
+      stats = assurt("a".equals(r.string()), stats, "String test");
+      r.next();
+      r.next();
+      r.next();
+      r.next();
+      r.next();
+      stats = assurt("12".equals(r.string()), stats, "Literal test");
+      r = new JSONReader("\"t\\\"a\\\\b\\n\\u00e9\\/\"");
+      r.next();
+      stats = assurt(r.escaped() && "t\"a\\b\n\u00e9/".equals(r.string()), stats, "Escape test");
+      byte[] utf = "xx[\"h\u00e9llo \ud83d\ude00\"]xx".getBytes(StandardCharsets.UTF_8);
+      r = new JSONReader(utf, 2, utf.length - 4);
+      r.next();
+      r.next();
+      stats = assurt("h\u00e9llo \ud83d\ude00".equals(r.string()), stats, "UTF-8 test");
+      r.next();
+      stats = assurt(r.next() == END, stats, "Range test");
+    }catch(Exception e){
+      stats = assurt(false, stats, "Unexpected exception: " + e.getMessage());
+    }
+    boolean thrown = false;
+    try{
+      JSONReader r = new JSONReader("[\"abc\\\"]");
+      r.next();
+      r.next();
+    }catch(Exception e){
+      thrown = true;
+    }
+    stats = assurt(thrown, stats, "Unterminated string test");
+    thrown = false;
+    try{
+      JSONReader r = new JSONReader("\"\\q\"");
+      r.next();
+      r.string();
+    }catch(Exception e){
+      thrown = true;
+    }
+    stats = assurt(thrown, stats, "Invalid escape test");
+    /* Deal with results */
+    System.err.println("Passed " + stats[1] + " out of " + stats[0] + " tests");
+    System.err.println(stats[0] == stats[1] ? "[[ SUCCESS ]]" : "[[ FAILURE ]]");
+    return stats[0] == stats[1];
+  }
+
+  /**
+   * assurt()
+   *
+   * Assert that the result was as expected.
+   *
+   * @param equal True if the result passes, otherwise false.
+   * @param stats The current statistics from running the tests.
+   * @param msg A short string explaining the test.
+   * @return The updated statistics from running the tests.
+   **/
+  private static int[] assurt(boolean equal, int[] stats, String msg){
+    System.err.print("[" + stats[0] + "]\t");
+    stats[0]++;
+    if(equal){
+      stats[1]++;
+      System.err.print("[ OK ]      \t");
+    }else{
+      System.err.print("      [FAIL]\t");
+    }
+    System.err.println(msg);
+    return stats;
+  }
+}
@@ -0,0 +1,530 @@
+package b.ds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * JSONWriter.java
+ *
+ * Write JSON as UTF-8 straight into a byte buffer, without building a tree
+ * first. The buffer grows as needed, or when writing to a stream it is
+ * flushed whenever it fills, so one writer can be reset and used again.
+ *
+ * Strings are escaped and encoded in a single pass, using a look-up table
+ * for ASCII.
+ **/
+public class JSONWriter{
+  private static final int KEEP_LEN = 65536;
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+  /* NOTE: Zero for characters written as they are, otherwise the escape. */
+  private static final byte[] ESCAPE = new byte[128];
+
+  static{
+    for(int x = 0; x < ' '; x++){
+      ESCAPE[x] = 'u';
+    }
+    ESCAPE['\b'] = 'b';
+    ESCAPE['\f'] = 'f';
+    ESCAPE['\n'] = 'n';
+    ESCAPE['\r'] = 'r';
+    ESCAPE['\t'] = 't';
+    ESCAPE['"'] = '"';
+    ESCAPE['\\'] = '\\';
+  }
+
+  private static ThreadLocal<JSONWriter> writers = new ThreadLocal<JSONWriter>(){
+    @Override
+    protected JSONWriter initialValue(){
+      return new JSONWriter(512);
+    }
+  };
+
+  private byte[] buf;
+  private int len;
+  private OutputStream out;
+  private boolean comma;
+
+  /**
+   * JSONWriter()
+   *
+   * Write into a buffer that grows as needed.
+   *
+   * @param capacity The initial size of the buffer in bytes.
+   **/
+  public JSONWriter(int capacity){
+    this(null, capacity);
+  }
+
+  /**
+   * JSONWriter()
+   *
+   * Write to a stream through a fixed size buffer. NOTE: Call flush() once
+   * finished.
+   *
+   * @param out The stream to be written to.
+   * @param capacity The size of the buffer in bytes.
+   **/
+  public JSONWriter(OutputStream out, int capacity){
+    buf = new byte[Math.max(capacity, 16)];
+    len = 0;
+    this.out = out;
+    comma = false;
+  }
+
+  /**
+   * local()
+   *
+   * Get the writer for the current thread, emptied and ready for use. The
+   * result should be taken from it before anything else might use it.
+   *
+   * @return The writer for this thread.
+   **/
+  public static JSONWriter local(){
+    return writers.get().reset();
+  }
+
+  /**
+   * reset()
+   *
+   * Empty the buffer so that the writer can be used again. Buffers that have
+   * grown very large are let go.
+   *
+   * @return This writer.
+   **/
+  public JSONWriter reset(){
+    if(out == null && buf.length > KEEP_LEN){
+      buf = new byte[KEEP_LEN];
+    }
+    len = 0;
+    comma = false;
+    return this;
+  }
+
+  /**
+   * startObject()
+   *
+   * Begin an object.
+   *
+   * @param key The key for the object, otherwise NULL.
+   * @return This writer.
+   **/
+  public JSONWriter startObject(String key) throws IOException{
+    return start(key, '{');
+  }
+
+  /**
+   * endObject()
+   *
+   * Finish the current object.
+   *
+   * @return This writer.
+   **/
+  public JSONWriter endObject() throws IOException{
+    return end('}');
+  }
+
+  /**
+   * startArray()
+   *
+   * Begin an array.
+   *
+   * @param key The key for the array, otherwise NULL.
+   * @return This writer.
+   **/
+  public JSONWriter startArray(String key) throws IOException{
+    return start(key, '[');
+  }
+
+  /**
+   * endArray()
+   *
+   * Finish the current array.
+   *
+   * @return This writer.
+   **/
+  public JSONWriter endArray() throws IOException{
+    return end(']');
+  }
+
+  /**
+   * string()
+   *
+   * Write a string, with or without a key. Nothing is written if both are
+   * NULL.
+   *
+   * @param key The key for the string, otherwise NULL.
+   * @param val The value of the string, otherwise NULL.
+   * @return This writer.
+   **/
+  public JSONWriter string(String key, String val) throws IOException{
+    if(key == null && val == null){
+      return this;
+    }
+    if(comma){
+      put(',');
+    }
+    if(key != null){
+      quote(key);
+      if(val != null){
+        put(':');
+      }
+    }
+    if(val != null){
+      quote(val);
+    }
+    comma = true;
+    return this;
+  }
+
+  /**
+   * length()
+   *
+   * Get the number of bytes held in the buffer.
+   *
+   * @return The number of bytes not yet taken or flushed.
+   **/
+  public int length(){
+    return len;
+  }
+
+  /**
+   * toByteArray()
+   *
+   * Copy out what has been written.
+   *
+   * @return The bytes held in the buffer.
+   **/
+  public byte[] toByteArray(){
+    byte[] res = new byte[len];
+    System.arraycopy(buf, 0, res, 0, len);
+    return res;
+  }
+
+  /**
+   * toString()
+   *
+   * Decode what has been written.
+   *
+   * @return The String held in the buffer.
+   **/
+  @Override
+  public String toString(){
+    return new String(buf, 0, len, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * writeTo()
+   *
+   * Write what is held in the buffer to a stream, without copying it.
+   *
+   * @param os The stream to be written to.
+   **/
+  public void writeTo(OutputStream os) throws IOException{
+    os.write(buf, 0, len);
+  }
+
+  /**
+   * flush()
+   *
+   * Write anything held in the buffer to the stream, if there is one.
+   **/
+  public void flush() throws IOException{
+    if(out != null){
+      out.write(buf, 0, len);
+      out.flush();
+      len = 0;
+    }
+  }
+
+  /**
+   * start()
+   *
+   * Begin an object or array.
+   *
+   * @param key The key, otherwise NULL.
+   * @param c The opening bracket.
+   * @return This writer.
+   **/
+  private JSONWriter start(String key, char c) throws IOException{
+    if(comma){
+      put(',');
+    }
+    if(key != null){
+      quote(key);
+      put(':');
+    }
+    put(c);
+    comma = false;
+    return this;
+  }
+
+  /**
+   * end()
+   *
+   * Finish an object or array.
+   *
+   * @param c The closing bracket.
+   * @return This writer.
+   **/
+  private JSONWriter end(char c) throws IOException{
+    put(c);
+    comma = true;
+    return this;
+  }
+
+  /**
+   * quote()
+   *
+   * Write a quoted string, escaping and encoding it as UTF-8 as we go.
+   *
+   * @param s The String to be written.
+   **/
+  private void quote(String s) throws IOException{
+    put('"');
+    int n = s.length();
+    for(int x = 0; x < n; x++){
+      char c = s.charAt(x);
+      if(c < 0x80){
+        byte e = ESCAPE[c];
+        if(e == 0){
+          put(c);
+        }else if(e != 'u'){
+          room(2);
+          buf[len++] = '\\';
+          buf[len++] = e;
+        }else{
+          room(6);
+          buf[len++] = '\\';
+          buf[len++] = 'u';
+          buf[len++] = '0';
+          buf[len++] = '0';
+          buf[len++] = HEX[c >> 4];
+          buf[len++] = HEX[c & 0xF];
+        }
+      }else if(c < 0x800){
+        room(2);
+        buf[len++] = (byte)(0xC0 | (c >> 6));
+        buf[len++] = (byte)(0x80 | (c & 0x3F));
+      }else if(!Character.isSurrogate(c)){
+        room(3);
+        buf[len++] = (byte)(0xE0 | (c >> 12));
+        buf[len++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+        buf[len++] = (byte)(0x80 | (c & 0x3F));
+      }else if(Character.isHighSurrogate(c) && x + 1 < n && Character.isLowSurrogate(s.charAt(x + 1))){
+        int p = Character.toCodePoint(c, s.charAt(++x));
+        room(4);
+        buf[len++] = (byte)(0xF0 | (p >> 18));
+        buf[len++] = (byte)(0x80 | ((p >> 12) & 0x3F));
+        buf[len++] = (byte)(0x80 | ((p >> 6) & 0x3F));
+        buf[len++] = (byte)(0x80 | (p & 0x3F));
+      }else{
+        /* NOTE: Broken surrogate pairs are replaced, as String.getBytes() does */
+        put('?');
+      }
+    }
+    put('"');
+  }
+
+  /**
+   * put()
+   *
+   * Write a single ASCII character.
+   *
+   * @param c The character to be written.
+   **/
+  private void put(char c) throws IOException{
+    room(1);
+    buf[len++] = (byte)c;
+  }
+
+  /**
+   * room()
+   *
+   * Make sure there is space in the buffer, either by flushing it to the
+   * stream or by growing it.
+   *
+   * @param n The number of bytes needed.
+   **/
+  private void room(int n) throws IOException{
+    if(len + n <= buf.length){
+      return;
+    }
+    if(out != null){
+      out.write(buf, 0, len);
+      len = 0;
+    }else{
+      byte[] b = new byte[Math.max(buf.length * 2, len + n)];
+      System.arraycopy(buf, 0, b, 0, len);
+      buf = b;
+    }
+  }
+
+  /**
+   * test()
+   *
+   * Test that the writer works as expected.
+   *
+   * @return True if all tests passed, otherwise false.
+   **/
+  public static boolean test(){
+    int[] stats = new int[]{ 0, 0 };
+    /* Run tests */
+    try{
+      String s = (new JSONWriter(4))
+        .startObject(null)
+        .string("a", "b")
+        .startArray("c")
+        .string(null, "d")
+        .startObject(null)
+        .endObject()
+        .string("e", null)
+        .endArray()
+        .string(null, null)
+        .string("f", "g")
+        .endObject()
+        .toString();
+      stats = assurt("{\"a\":\"b\",\"c\":[\"d\",{},\"e\"],\"f\":\"g\"}".equals(s), stats, "Structure test");
+      String text = "q\"b\\t\tn\nr\rf\fb\bc\u0001/";
+      s = (new JSONWriter(4)).startObject(null).string("k", text).endObject().toString();
+      stats = assurt(
+        "{\"k\":\"q\\\"b\\\\t\\tn\\nr\\rf\\fb\\bc\\u0001/\"}".equals(s),
+        stats,
+        "Escape test"
+      );
+      stats = assurt(text.equals(new JSON(s).get("k").value(null)), stats, "Escape round trip test");
+      text = "h\u00e9llo \u20ac \ud83d\ude00";
+      byte[] b = (new JSONWriter(4)).string(null, text).toByteArray();
+      stats = assurt(
+        new String(b, StandardCharsets.UTF_8).equals("\"" + text + "\""),
+        stats,
+        "UTF-8 test"
+      );
+      b = (new JSONWriter(16)).string(null, "x\ud83dy").toByteArray();
+      stats = assurt(
+        new String(b, StandardCharsets.UTF_8).equals("\"x?y\""),
+        stats,
+        "Broken surrogate test"
+      );
+      local().startObject(null).string("a", "b");
+      stats = assurt(local().length() == 0, stats, "Reset test");
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      JSONWriter w = new JSONWriter(os, 16);
+      w.startObject(null);
+      for(int x = 0; x < 100; x++){
+        w.string("key" + x, "val\n" + x);
+      }
+      w.endObject();
+      w.flush();
+      JSON json = new JSON(os.toByteArray());
+      stats = assurt(
+        json.length() == 100 && "val\n99".equals(json.get("key99").value(null)),
+        stats,
+        "Stream test"
+      );
+    }catch(Exception e){
+      stats = assurt(false, stats, "Unexpected exception: " + e.getMessage());
+    }
+    /* Deal with results */
+    System.err.println("Passed " + stats[1] + " out of " + stats[0] + " tests");
+    System.err.println(stats[0] == stats[1] ? "[[ SUCCESS ]]" : "[[ FAILURE ]]");
+    return stats[0] == stats[1];
+  }
+
+  /**
+   * perf()
+   *
+   * Compare the time taken to turn posts into stored bytes by building a JSON
+   * tree and by writing them directly, using posts similar to our own.
+   **/
+  public static void perf(){
+    int TARGET_RECORDS = 10000;
+    int TARGET_RUNS = 20;
+    String[] words = (
+      "the and to of a in is that it for you this with on have be are not was " +
+      "but what just like so all about can they will one post today #news " +
+      "#music http://example.com \"quoted\" tab\there new\nline caf\u00e9"
+    ).split(" ");
+    Random r = new Random(0);
+    String[][] recs = new String[TARGET_RECORDS][];
+    for(int x = 0; x < recs.length; x++){
+      Str msg = new Str(64);
+      int n = 1 + r.nextInt(40);
+      for(int y = 0; y < n; y++){
+        msg.append(words[r.nextInt(words.length)]).append(" ");
+      }
+      recs[x] = new String[]{
+        "id", Utils.genRandHash().toString(),
+        "userid", Utils.genRandHash().toString(),
+        "creation", Long.toString(System.currentTimeMillis() - r.nextInt()),
+        "previous", Utils.genRandHash().toString(),
+        "message", msg.toString(),
+        "state", "NONE"
+      };
+    }
+    String[] names = new String[]{ "tree", "writer" };
+    System.err.println("Bytes\t|Encode (ns)\t|Description");
+    System.err.println("--------|---------------|----------------");
+    /* NOTE: The first pass warms up the JIT and is not printed. */
+    for(int m = 0; m < names.length * 2; m++){
+      long bytes = 0;
+      long time = System.nanoTime();
+      try{
+        for(int z = 0; z < TARGET_RUNS; z++){
+          for(int x = 0; x < recs.length; x++){
+            byte[] b;
+            if(m % names.length == 0){
+              JSON data = new JSON(false);
+              for(int y = 0; y < recs[x].length; y += 2){
+                data.set(new JSON(recs[x][y], recs[x][y + 1]));
+              }
+              b = data.toString().getBytes(StandardCharsets.UTF_8);
+            }else{
+              JSONWriter w = local().startObject(null);
+              for(int y = 0; y < recs[x].length; y += 2){
+                w.string(recs[x][y], recs[x][y + 1]);
+              }
+              b = w.endObject().toByteArray();
+            }
+            bytes += b.length;
+          }
+        }
+      }catch(Exception e){
+        throw new IllegalStateException("Unable to encode record");
+      }
+      time = (System.nanoTime() - time) / ((long)recs.length * TARGET_RUNS);
+      if(m < names.length){
+        continue;
+      }
+      System.err.println(
+        (bytes / ((long)recs.length * TARGET_RUNS)) + "\t|" + time + "\t\t|" + names[m % names.length]
+      );
+    }
+    System.err.println("[[ FINISHED ]]");
+  }
+
+  /**
+   * assurt()
+   *
+   * Assert that the result was as expected.
+   *
+   * @param equal True if the result passes, otherwise false.
+   * @param stats The current statistics from running the tests.
+   * @param msg A short string explaining the test.
+   * @return The updated statistics from running the tests.
+   **/
+  private static int[] assurt(boolean equal, int[] stats, String msg){
+    System.err.print("[" + stats[0] + "]\t");
+    stats[0]++;
+    if(equal){
+      stats[1]++;
+      System.err.print("[ OK ]      \t");
+    }else{
+      System.err.print("      [FAIL]\t");
+    }
+    System.err.println(msg);
+    return stats;
+  }
+}
@@ -0,0 +1,424 @@
+package b.ds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Journal.java
+ *
+ * A write-ahead log. Each change is written here as a single record before it
+ * is applied to the other files, so that a change cut short by a crash can be
+ * applied again in full on start up.
+ *
+ * Records from concurrent writers are committed in groups: whichever writer
+ * finds no write in progress writes every record queued so far and syncs them
+ * to disk once, whilst the others wait for it.
+ *
+ * Each record is given a sequence number when committed. Once the journal has
+ * grown large enough a checkpoint is taken: the files that applied records
+ * were written to are synced, and the journal is rewritten holding only the
+ * records that had not been applied when the checkpoint began. Writers are
+ * never made to wait for a moment when nothing is in flight.
+ **/
+public class Journal{
+  private static final int HEAD_LEN = 8;
+
+  /**
+   * Group.Journal.java
+   *
+   * Records to be written to disk together.
+   **/
+  private static class Group{
+    /* The framed records */
+    public ArrayList<ByteBuffer> bufs = new ArrayList<ByteBuffer>();
+    /* Whether the group has been written */
+    public boolean done = false;
+    /* Whether the write succeeded */
+    public boolean ok = false;
+  }
+
+  private String path;
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private boolean sync;
+  private long maxBytes;
+  private Callable<Boolean> flush;
+  private ArrayList<byte[]> recovered;
+  private ReentrantLock lock;
+  private Condition done;
+  private Group pending;
+  private boolean writing;
+  private boolean checkpointing;
+  private volatile long length;
+  private AtomicLong seq;
+  private ConcurrentSkipListMap<Long, byte[]> open;
+
+  /**
+   * Journal()
+   *
+   * Open the journal, reading any records left from a previous run. A record
+   * cut short at the end, for example by a crash, is removed.
+   *
+   * @param path The path of the journal file.
+   * @param sync True if each group of records is to be synced to disk.
+   * @param maxBytes The size after which a checkpoint is taken.
+   * @param flush Syncs every file written to by applied records, returning
+   * true on success. Only called if the journal itself is synced.
+   **/
+  public Journal(String path, boolean sync, long maxBytes, Callable<Boolean> flush) throws IOException{
+    this.path = path;
+    file = new RandomAccessFile(path, "rw");
+    channel = file.getChannel();
+    this.sync = sync;
+    this.maxBytes = maxBytes;
+    this.flush = flush;
+    recovered = new ArrayList<byte[]>();
+    lock = new ReentrantLock();
+    done = lock.newCondition();
+    pending = new Group();
+    writing = false;
+    checkpointing = false;
+    seq = new AtomicLong(0);
+    open = new ConcurrentSkipListMap<Long, byte[]>();
+    long end = scan();
+    if(end < channel.size()){
+      Utils.warn("Journal has " + (channel.size() - end) + " trailing bytes");
+      channel.truncate(end);
+    }
+    channel.position(end);
+    length = end;
+  }
+
+  /**
+   * recovered()
+   *
+   * Get the records left in the journal when it was opened, oldest first.
+   * These may or may not have been applied before the previous run ended.
+   *
+   * @return The recovered records.
+   **/
+  public ArrayList<byte[]> recovered(){
+    return recovered;
+  }
+
+  /**
+   * commit()
+   *
+   * Write a record to the journal, returning once it is on disk. If the commit
+   * succeeds, the caller must call done() once the record has been applied.
+   *
+   * @param rec The record to be written.
+   * @return The sequence number of the record, otherwise -1 if it was not
+   * written.
+   **/
+  public long commit(byte[] rec){
+    long s = seq.incrementAndGet();
+    open.put(s, rec);
+    ByteBuffer b = frame(rec);
+    lock.lock();
+    try{
+      Group g = pending;
+      g.bufs.add(b);
+      while(!g.done){
+        if(writing){
+          done.awaitUninterruptibly();
+          continue;
+        }
+        /* Take everything queued so far and write it as one group */
+        writing = true;
+        Group w = pending;
+        pending = new Group();
+        boolean ok = false;
+        lock.unlock();
+        try{
+          ok = write(w.bufs);
+        }finally{
+          lock.lock();
+          w.ok = ok;
+          w.done = true;
+          writing = false;
+          done.signalAll();
+        }
+      }
+      if(!g.ok){
+        open.remove(s);
+        return -1;
+      }
+      return s;
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * done()
+   *
+   * Mark a committed record as applied, taking a checkpoint if the journal
+   * has grown large enough.
+   *
+   * @param s The sequence number of the record.
+   **/
+  public void done(long s){
+    open.remove(s);
+    if(!checkpointing && length >= maxBytes){
+      checkpoint();
+    }
+  }
+
+  /**
+   * checkpoint()
+   *
+   * Sync everything applied so far and rewrite the journal without it. The
+   * records still being applied when the checkpoint begins are kept, along
+   * with anything committed whilst it runs.
+   **/
+  private void checkpoint(){
+    ArrayList<ByteBuffer> keep = new ArrayList<ByteBuffer>();
+    long mark;
+    lock.lock();
+    try{
+      if(checkpointing || length < maxBytes){
+        return;
+      }
+      checkpointing = true;
+      /* Let the group being written finish, so the mark falls between records */
+      while(writing){
+        done.awaitUninterruptibly();
+      }
+      mark = length;
+      /* NOTE: A kept record may also be written after the mark, which is harmless. */
+      for(byte[] rec : open.values()){
+        keep.add(frame(rec));
+      }
+    }finally{
+      lock.unlock();
+    }
+    boolean ok = true;
+    try{
+      if(sync){
+        ok = flush.call();
+      }
+    }catch(Exception e){
+      ok = false;
+    }
+    lock.lock();
+    try{
+      if(!ok){
+        Utils.warn("Unable to sync applied records, journal kept");
+        return;
+      }
+      while(writing){
+        done.awaitUninterruptibly();
+      }
+      rewrite(keep, mark);
+    }finally{
+      checkpointing = false;
+      lock.unlock();
+    }
+  }
+
+  /**
+   * rewrite()
+   *
+   * Replace the journal with the given records followed by everything written
+   * after the mark. The lock must be held with no write in progress.
+   *
+   * @param keep The framed records to be kept.
+   * @param mark The offset of the first record to be copied.
+   **/
+  private void rewrite(ArrayList<ByteBuffer> keep, long mark){
+    File tmp = new File(path + Data.TEMP_SUFFIX);
+    try{
+      RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+      try{
+        raf.setLength(0);
+        FileChannel fc = raf.getChannel();
+        for(ByteBuffer b : keep){
+          while(b.hasRemaining()){
+            fc.write(b);
+          }
+        }
+        long len = length - mark;
+        long copied = 0;
+        while(copied < len){
+          copied += channel.transferTo(mark + copied, len - copied, fc);
+        }
+        if(sync){
+          fc.force(true);
+        }
+      }finally{
+        raf.close();
+      }
+    }catch(IOException e){
+      Utils.warn("Unable to rewrite journal");
+      tmp.delete();
+      return;
+    }
+    try{
+      file.close();
+      /* NOTE: Should the rename be lost, the old records are applied again. */
+      try{
+        Files.move(
+          tmp.toPath(),
+          (new File(path)).toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING
+        );
+      }catch(AtomicMoveNotSupportedException e){
+        Files.move(tmp.toPath(), (new File(path)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }catch(IOException e){
+      Utils.warn("Unable to replace journal");
+    }
+    try{
+      file = new RandomAccessFile(path, "rw");
+      channel = file.getChannel();
+      length = channel.size();
+      channel.position(length);
+      recovered = new ArrayList<byte[]>();
+    }catch(IOException e){
+      Utils.error("Unable to reopen journal");
+    }
+  }
+
+  /**
+   * reset()
+   *
+   * Empty the journal. Every record must have been applied and the files
+   * written to synced.
+   **/
+  public void reset(){
+    lock.lock();
+    try{
+      channel.truncate(0);
+      channel.position(0);
+      length = 0;
+      if(sync){
+        channel.force(true);
+      }
+      recovered = new ArrayList<byte[]>();
+    }catch(IOException e){
+      Utils.warn("Unable to empty journal");
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * frame()
+   *
+   * Add the length and checksum to a record.
+   *
+   * @param rec The record.
+   * @return The framed record, ready to be written.
+   **/
+  private static ByteBuffer frame(byte[] rec){
+    ByteBuffer b = ByteBuffer.allocate(HEAD_LEN + rec.length);
+    b.putInt(rec.length);
+    b.putInt(crc(rec, 0, rec.length));
+    b.put(rec);
+    b.flip();
+    return b;
+  }
+
+  /**
+   * write()
+   *
+   * Write a group of records to the end of the journal and sync them. On
+   * failure the journal is cut back to where the group began.
+   *
+   * @param group The framed records to be written.
+   * @return True on success, otherwise false.
+   **/
+  private boolean write(ArrayList<ByteBuffer> group){
+    long start = -1;
+    try{
+      start = channel.position();
+      ByteBuffer[] bufs = group.toArray(new ByteBuffer[group.size()]);
+      long len = 0;
+      for(ByteBuffer b : bufs){
+        len += b.remaining();
+      }
+      while(len > 0){
+        len -= channel.write(bufs);
+      }
+      if(sync){
+        channel.force(false);
+      }
+      length = channel.position();
+      return true;
+    }catch(IOException e){
+      Utils.warn("Failed to write to journal");
+      if(start >= 0){
+        try{
+          channel.truncate(start);
+          channel.position(start);
+          length = start;
+        }catch(IOException f){
+          Utils.warn("Failed to cut back journal");
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * scan()
+   *
+   * Read the valid records from the start of the journal.
+   *
+   * @return The offset after the last valid record.
+   **/
+  private long scan() throws IOException{
+    long size = channel.size();
+    long offset = 0;
+    ByteBuffer head = ByteBuffer.allocate(HEAD_LEN);
+    while(offset + HEAD_LEN <= size){
+      head.clear();
+      channel.read(head, offset);
+      head.flip();
+      int len = head.getInt();
+      int sum = head.getInt();
+      if(len < 0 || offset + HEAD_LEN + len > size){
+        break;
+      }
+      ByteBuffer data = ByteBuffer.allocate(len);
+      while(data.hasRemaining() && channel.read(data, offset + HEAD_LEN + data.position()) > 0);
+      if(data.hasRemaining() || crc(data.array(), 0, len) != sum){
+        break;
+      }
+      recovered.add(data.array());
+      offset += HEAD_LEN + len;
+    }
+    return offset;
+  }
+
+  /**
+   * crc()
+   *
+   * Calculate the checksum for some data.
+   *
+   * @param b The data.
+   * @param off The offset of the data.
+   * @param len The length of the data.
+   * @return The checksum.
+   **/
+  private static int crc(byte[] b, int off, int len){
+    CRC32 c = new CRC32();
+    c.update(b, off, len);
+    return (int)c.getValue();
+  }
+}
@@ -0,0 +1,208 @@
+package b.ds;
+
+import java.io.Writer;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logger.java
+ *
+ * An asynchronous log writer. Any number of threads may add preformatted
+ * records to a bounded ring, which a single background thread drains in
+ * batches to the terminal and disk. When the ring is full, records are either
+ * dropped and counted, or the caller waits for space, depending on the
+ * policy.
+ **/
+public class Logger implements Runnable{
+  public static final String FULL_DROP = "drop";
+  public static final String FULL_BLOCK = "block";
+
+  private static final int BATCH_MAX = 4096;
+  private static final long IDLE_NS = 50L * 1000 * 1000;
+  private static final long BLOCK_NS = 100L * 1000;
+
+  private AtomicReferenceArray<String> slots;
+  private AtomicLong tail;
+  private volatile long head;
+  private volatile long flushed;
+  private volatile boolean sleeping;
+  private volatile boolean running;
+  private AtomicLong dropped;
+  private boolean block;
+  private Writer disk;
+  private Thread thread;
+
+  /**
+   * Logger()
+   *
+   * Initialise the ring and start the background writer.
+   *
+   * @param size The number of records the ring can hold.
+   * @param full The policy when the ring is full, FULL_DROP or FULL_BLOCK.
+   * @param disk The writer for the log file, otherwise NULL.
+   **/
+  public Logger(int size, String full, Writer disk){
+    slots = new AtomicReferenceArray<String>(Math.max(size, 1));
+    tail = new AtomicLong(0);
+    head = 0;
+    flushed = 0;
+    sleeping = false;
+    running = true;
+    dropped = new AtomicLong(0);
+    block = full.equals(FULL_BLOCK);
+    this.disk = disk;
+    thread = new Thread(this, "logger");
+    thread.setDaemon(true);
+    thread.start();
+    /* Make sure the last records are written when the program exits */
+    Runtime.getRuntime().addShutdownHook(new Thread(){
+      @Override
+      public void run(){
+        Logger.this.close(1000);
+      }
+    });
+  }
+
+  /**
+   * add()
+   *
+   * Add a record to be written. This may be called from any thread.
+   *
+   * @param rec The complete record, including the line ending.
+   * @return True if the record was accepted, false if it was dropped.
+   **/
+  public boolean add(String rec){
+    long t;
+    for(;;){
+      t = tail.get();
+      /* Check whether the ring is full */
+      if(t - head >= slots.length()){
+        if(!block || !running){
+          dropped.incrementAndGet();
+          return false;
+        }
+        wake();
+        LockSupport.parkNanos(BLOCK_NS);
+        continue;
+      }
+      if(tail.compareAndSet(t, t + 1)){
+        break;
+      }
+    }
+    slots.set(index(t), rec);
+    if(sleeping){
+      wake();
+    }
+    return true;
+  }
+
+  /**
+   * flush()
+   *
+   * Wait for every record added so far to be written, or give up after the
+   * given time.
+   *
+   * @param timeout The maximum time to wait in milliseconds.
+   **/
+  public void flush(long timeout){
+    long target = tail.get();
+    long end = System.currentTimeMillis() + timeout;
+    while(flushed < target && running && System.currentTimeMillis() < end){
+      wake();
+      LockSupport.parkNanos(BLOCK_NS);
+    }
+  }
+
+  /**
+   * close()
+   *
+   * Write any remaining records and stop the background writer.
+   *
+   * @param timeout The maximum time to wait in milliseconds.
+   **/
+  public void close(long timeout){
+    flush(timeout);
+    running = false;
+    wake();
+  }
+
+  /**
+   * run()
+   *
+   * Drain the ring in batches until closed.
+   **/
+  @Override
+  public void run(){
+    Str batch = new Str(BATCH_MAX);
+    while(running){
+      /* Take as much as is ready, up to the batch size */
+      String rec;
+      while(batch.length() < BATCH_MAX && (rec = slots.get(index(head))) != null){
+        slots.lazySet(index(head), null);
+        head = head + 1;
+        batch.append(rec);
+      }
+      long lost = dropped.getAndSet(0);
+      if(lost > 0){
+        batch.append("[" + System.currentTimeMillis() + "] [!!] Dropped " + lost + " log records");
+        batch.append(System.lineSeparator());
+      }
+      if(batch.length() > 0){
+        write(batch.toString());
+        batch = new Str(BATCH_MAX);
+        flushed = head;
+        continue;
+      }
+      flushed = head;
+      /* Nothing to do, so sleep until woken */
+      sleeping = true;
+      if(slots.get(index(head)) == null && running){
+        LockSupport.parkNanos(this, IDLE_NS);
+      }
+      sleeping = false;
+    }
+  }
+
+  /**
+   * write()
+   *
+   * Write a batch of records to the terminal and disk.
+   *
+   * @param s The batch to be written.
+   **/
+  private void write(String s){
+    /* Write error stream so program output can be separated from logs */
+    System.err.print(s);
+    if(disk != null){
+      try{
+        disk.append(s);
+        disk.flush();
+      }catch(IOException e){
+        /* Don't log, we could end up in an infinite loop */
+      }
+    }
+  }
+
+  /**
+   * wake()
+   *
+   * Wake the background writer if it is sleeping.
+   **/
+  private void wake(){
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * index()
+   *
+   * Find the slot for a given sequence number.
+   *
+   * @param seq The sequence number.
+   * @return The index of the slot.
+   **/
+  private int index(long seq){
+    return (int)(seq % slots.length());
+  }
+}
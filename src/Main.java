@@ -7,6 +7,8 @@ package b.ds;
  **/
 public class Main{
   private JSON json;
+  private boolean convert;
+  private boolean migrate;
 
   /**
    * main()
@@ -37,6 +39,8 @@ public class Main{
       json = null;
       Utils.error("Was unable to create blank JSON configuration");
     }
+    convert = false;
+    migrate = false;
     /* Loop the command line arguments */
     for(int x = 0; x < args.length; x++){
       /* Check which command we are processing */
@@ -45,6 +49,14 @@ public class Main{
         case "--config" :
           x = config(args, x);
           break;
+        case "-x" :
+        case "--convert" :
+          convert = true;
+          break;
+        case "-m" :
+        case "--migrate" :
+          migrate = true;
+          break;
         case "-h" :
         case "--help" :
         case "?" :
@@ -56,6 +68,20 @@ public class Main{
           break;
       }
     }
+    /* Apply the logging configuration */
+    Utils.init(json);
+    /* Check if we should move stored data into shards instead */
+    if(migrate){
+      Utils.log("Migrating stored data");
+      Server.migrate(json);
+      return;
+    }
+    /* Check if we should convert stored data instead */
+    if(convert){
+      Utils.log("Converting stored data");
+      Server.convert(json);
+      return;
+    }
     /* Check if we should run HTTP server */
     if(json.get("active").value("false").equals("true")){
       Utils.log("Starting HTTP server");
@@ -110,6 +136,10 @@ public class Main{
     System.out.println("    -c  --config  Server configuration file");
     System.out.println("                    <FILE>.json");
     System.out.println("    -h  --help    Display this help");
+    System.out.println("    -m  --migrate Move stored files into shards, safe");
+    System.out.println("                    whilst the server is running");
+    System.out.println("    -x  --convert Write stored users and posts again in");
+    System.out.println("                    the configured disk format and codec");
     return x;
   }
 }
@@ -0,0 +1,139 @@
+package b.ds;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool.java
+ *
+ * Execute request processing, either on a fixed pool of platform threads or
+ * on a virtual thread per task where the JVM supports it. An optional cap
+ * limits how many tasks run at once. Tasks may also be scheduled to run after
+ * a delay without holding a thread whilst they wait.
+ **/
+public class Pool implements Executor{
+  public static final String MODE_FIXED = "fixed";
+  public static final String MODE_VIRTUAL = "virtual";
+
+  private ExecutorService service;
+  private ScheduledExecutorService timer;
+  private Semaphore limit;
+  private boolean virtual;
+
+  /**
+   * Pool()
+   *
+   * Initialise the pool in the requested mode, falling back to a fixed pool
+   * if virtual threads are not available.
+   *
+   * @param mode The requested execution mode.
+   * @param size The number of threads for a fixed pool.
+   * @param cap The maximum number of tasks to run at once, or zero for no
+   * limit beyond that of the pool itself.
+   **/
+  public Pool(String mode, int size, int cap){
+    service = null;
+    virtual = false;
+    if(mode.equals(MODE_VIRTUAL)){
+      /* NOTE: Use reflection so that we still build against older JVMs. */
+      try{
+        Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        service = (ExecutorService)(m.invoke(null));
+        virtual = true;
+        Utils.log("Pool using virtual threads");
+      }catch(Exception e){
+        service = null;
+        Utils.warn("Virtual threads not supported, using fixed pool");
+      }
+    }else if(!mode.equals(MODE_FIXED)){
+      Utils.warn("Unknown pool mode '" + mode + "', using fixed pool");
+    }
+    if(service == null){
+      service = Executors.newFixedThreadPool(size);
+    }
+    limit = cap > 0 ? new Semaphore(cap) : null;
+    timer = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  /**
+   * execute()
+   *
+   * Run a task on the pool. If capped, the task waits for a free slot on its
+   * own thread, so the caller is never blocked.
+   *
+   * @param r The task to be run.
+   **/
+  @Override
+  public void execute(final Runnable r){
+    if(limit == null){
+      service.execute(r);
+      return;
+    }
+    service.execute(new Runnable(){
+      @Override
+      public void run(){
+        limit.acquireUninterruptibly();
+        try{
+          r.run();
+        }finally{
+          limit.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * isVirtual()
+   *
+   * Check whether tasks run on virtual threads, where a task waiting on other
+   * tasks costs nothing and cannot starve the pool.
+   *
+   * @return True if using virtual threads, otherwise false.
+   **/
+  public boolean isVirtual(){
+    return virtual;
+  }
+
+  /**
+   * invokeAll()
+   *
+   * Run tasks on the pool and wait for them all to finish. The cap is not
+   * applied, as the caller is already a running task holding a slot. Only use
+   * this with virtual threads, otherwise a fixed pool can fill with tasks that
+   * wait on work queued behind them.
+   *
+   * @param tasks The tasks to be run.
+   * @return The futures holding the results, in the order of the tasks.
+   * @throws InterruptedException If interrupted whilst waiting.
+   **/
+  public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException{
+    return service.invokeAll(tasks);
+  }
+
+  /**
+   * schedule()
+   *
+   * Run a task on the pool once a delay has passed. Only the timer thread
+   * waits, which costs nothing per task.
+   *
+   * @param r The task to be run.
+   * @param delay The delay in milliseconds.
+   **/
+  public void schedule(final Runnable r, long delay){
+    timer.schedule(new Runnable(){
+      @Override
+      public void run(){
+        execute(r);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+}
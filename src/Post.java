@@ -1,14 +1,21 @@
 package b.ds;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
 
 /**
  * Post.java
  *
- * A thin wrapper for handling posts.
+ * A thin wrapper for handling posts. Posts are stored in an append only log,
+ * with posts from before the log read from their own files.
+ *
+ * Every post action is first committed as a single record to the journal and
+ * then applied to the post log, tags, timelines and users. Records left in the
+ * journal by a crash are applied again on start up.
  **/
 public class Post{
   /**
@@ -21,9 +28,20 @@ public class Post{
     HIDE
   }
 
+  /* NOTE: Rough size of a post excluding its message, see weigh(). */
+  private static final int POST_OVERHEAD = 512;
+  private static final int FLAG_PREVIOUS = 1;
+  private static final int FLAG_QUOTE = 2;
+  private static final int FLAG_QPREVIOUS = 4;
+
   private static Auth auth;
-  private static HashMap<I512, Post> idMap;
-  private static ArrayList<Post> recent;
+  private static String pstDir;
+  private static String tagDir;
+  private static String usrDir;
+  private static Journal journal;
+  private static Cache<I512, Post> idMap;
+  private static PostLog log;
+  private static Ring<Post> recent;
 
   /* Unique post ID */
   public I512 id = null;
@@ -47,12 +65,232 @@ public class Post{
    *
    * Share static variables and initialize posts list.
    *
+   * @param config The shared configuration.
    * @param auth Give posts access to the users lists.
    **/
-  public static void init(Auth auth){
+  public static void init(JSON config, Auth auth){
     Post.auth = auth;
-    idMap = new HashMap<I512, Post>();
-    recent = new ArrayList<Post>();
+    long cacheBytes = 256 * 1024 * 1024;
+    int cacheSegments = 16;
+    String cachePolicy = Cache.POLICY_SLRU;
+    int recentLen = 16;
+    pstDir = config.get("data").get("post-dir").value("dat/pst");
+    tagDir = config.get("data").get("tag-dir").value("dat/tag");
+    usrDir = config.get("data").get("user-dir").value("dat/usr");
+    String journalPath = config.get("data").get("journal-path").value("dat/journal.log");
+    long journalBytes = 16 * 1024 * 1024;
+    boolean journalSync = config.get("journal").get("sync").value("true").equals("true");
+    long segmentBytes = 64 * 1024 * 1024;
+    try{
+      cacheBytes = Long.parseLong(config.get("cache").get("max-bytes").value(cacheBytes + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find cache maximum bytes value");
+    }
+    try{
+      cacheSegments = Integer.parseInt(config.get("cache").get("segments").value(cacheSegments + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find cache segments value");
+    }
+    cachePolicy = config.get("cache").get("policy").value(cachePolicy);
+    try{
+      recentLen = Integer.parseInt(config.get("post").get("recent-length").value(recentLen + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find recent post length value");
+    }
+    try{
+      journalBytes = Long.parseLong(config.get("journal").get("max-bytes").value(journalBytes + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find journal maximum bytes value");
+    }
+    try{
+      segmentBytes = Long.parseLong(config.get("post").get("segment-bytes").value(segmentBytes + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find post segment bytes value");
+    }
+    idMap = new Cache<I512, Post>(cacheBytes, cacheSegments, cachePolicy);
+    recent = new Ring<Post>(recentLen);
+    log = new PostLog(pstDir, segmentBytes);
+    try{
+      journal = new Journal(journalPath, journalSync, journalBytes, new Callable<Boolean>(){
+        @Override
+        public Boolean call(){
+          return flush();
+        }
+      });
+    }catch(IOException e){
+      Utils.error("Unable to open journal");
+    }
+  }
+
+  /**
+   * recover()
+   *
+   * Apply again any records left in the journal by the previous run. Applying
+   * a record twice has the same result as applying it once, so it does not
+   * matter how far each got. This must be called once tags, timelines and
+   * users are ready, before any new posts are made.
+   **/
+  public static void recover(){
+    ArrayList<byte[]> recs = journal.recovered();
+    int applied = 0;
+    for(byte[] rec : recs){
+      try{
+        JSON data = new JSON(rec);
+        Post post = parse(data);
+        if(post == null){
+          Utils.warn("Bad post in journal");
+          continue;
+        }
+        ArrayList<String> tags = split(data.get("tags").value(null));
+        ArrayList<Auth.User> feeds = new ArrayList<Auth.User>();
+        for(String id : split(data.get("feeds").value(null))){
+          Auth.User user = auth.getUserById(id);
+          if(user != null){
+            feeds.add(user);
+          }
+        }
+        /* NOTE: Anything not yet applied lies within the journal's length. */
+        if(apply(post, tags, feeds, recs.size())){
+          ++applied;
+        }
+      }catch(Exception e){
+        Utils.warn("Exception thrown whilst recovering from journal");
+      }
+    }
+    if(recs.size() > 0){
+      Utils.log("Journal recovered " + applied + " of " + recs.size() + " records");
+    }
+    /* NOTE: Keep records we could not apply, so they may be tried again. */
+    if(applied < recs.size()){
+      Utils.warn("Journal kept as " + (recs.size() - applied) + " records could not be applied");
+    }else if(flush()){
+      journal.reset();
+    }else{
+      Utils.warn("Journal kept as applied records could not be synced");
+    }
+  }
+
+  /**
+   * publish()
+   *
+   * Save a new post, along with the tags and user feeds it belongs in, as a
+   * single change.
+   *
+   * @param post The new post.
+   * @param tags The sanitized tags found in the post.
+   * @param quoted The user being quoted, otherwise NULL.
+   * @return True on success, otherwise false.
+   **/
+  public static boolean publish(Post post, Collection<String> tags, Auth.User quoted){
+    ArrayList<Auth.User> feeds = new ArrayList<Auth.User>(2);
+    feeds.add(post.user);
+    if(quoted != null && quoted != post.user){
+      feeds.add(quoted);
+    }
+    byte[] data;
+    try{
+      Str ids = new Str(feeds.size() * 2);
+      for(Auth.User user : feeds){
+        ids.append(user.id.toString()).append(" ");
+      }
+      data = toJSON(JSONWriter.local().startObject(null), post)
+        .string("tags", join(tags))
+        .string("feeds", ids.toString())
+        .endObject()
+        .toByteArray();
+    }catch(IOException e){
+      data = null;
+    }
+    return data != null && commit(data, post, tags, feeds);
+  }
+
+  /**
+   * update()
+   *
+   * Save a change to an existing post.
+   *
+   * @param post The changed post.
+   * @return True on success, otherwise false.
+   **/
+  public static boolean update(Post post){
+    byte[] data = encodeJSON(post);
+    return data != null && commit(data, post, new ArrayList<String>(), new ArrayList<Auth.User>());
+  }
+
+  /**
+   * commit()
+   *
+   * Commit a record to the journal and then apply it.
+   *
+   * @param data The record to be committed.
+   * @param post The post to be saved.
+   * @param tags The tags the post is to be added to.
+   * @param feeds The users whose feeds the post is to be added to.
+   * @return True on success, otherwise false.
+   **/
+  private static boolean commit(byte[] data, Post post, Collection<String> tags, Collection<Auth.User> feeds){
+    long seq = journal.commit(data);
+    if(seq < 0){
+      Utils.warn("Unable to commit post to journal");
+      return false;
+    }
+    try{
+      return apply(post, tags, feeds, 0);
+    }finally{
+      journal.done(seq);
+    }
+  }
+
+  /**
+   * flush()
+   *
+   * Sync every file written to by applied records, so that their records can
+   * be removed from the journal.
+   *
+   * @return True on success, otherwise false.
+   **/
+  private static boolean flush(){
+    boolean ok = log.force();
+    return Data.sync() && ok;
+  }
+
+  /**
+   * apply()
+   *
+   * Apply a committed post to the post log, tags, timelines and users.
+   *
+   * @param post The post to be saved.
+   * @param tags The tags the post is to be added to.
+   * @param feeds The users whose feeds the post is to be added to.
+   * @param depth When recovering, the number of recent entries to check
+   * before adding the post to a tag or timeline, otherwise zero.
+   * @return True on success, otherwise false.
+   **/
+  private static boolean apply(Post post, Collection<String> tags, Collection<Auth.User> feeds, int depth){
+    if(depth > 0 && same(post)){
+      /* Already saved, just make sure it's in the cache */
+      addPost(post);
+    }else if(writePost(pstDir, post.id.toString(), post) != post){
+      Utils.warn("Unable to save post");
+      return false;
+    }
+    for(String tag : tags){
+      if(depth <= 0 || !Tag.hasPost(tagDir, tag, post.id, depth)){
+        Tag.writeTag(tagDir, tag, post);
+      }
+    }
+    boolean ok = true;
+    for(Auth.User user : feeds){
+      if(depth <= 0 || !Timeline.hasPost(user, post.id, depth)){
+        Timeline.append(user, post);
+      }
+      user.latest = post.id;
+      if(Auth.writeUser(Data.locate(usrDir, user.id), user) != user){
+        Utils.warn("Unable to save updated user");
+        ok = false;
+      }
+    }
+    return ok;
   }
 
   /**
@@ -70,7 +308,24 @@ public class Post{
     if(loc == null || id == null){
       return null;
     }
-    I512 i = new I512(id);
+    return readPost(loc, new I512(id));
+  }
+
+  /**
+   * readPost()
+   *
+   * Read user post from disk and update the relevant variables. Return NULL if
+   * an issue occurs.
+   *
+   * @param loc The location of the post.
+   * @param i The ID for the post.
+   * @return The post object, otherwise NULL.
+   **/
+  public static Post readPost(String loc, I512 i){
+    /* Make sure request seems valid */
+    if(loc == null || i == null){
+      return null;
+    }
     /* Try to load from cache */
     Post post = idMap.get(i);
     if(post != null && post.id.equals(i)){
@@ -79,35 +334,26 @@ public class Post{
     /* Load from disk */
     try{
       JSON postData = null;
-      try{
-        /* Try new loading method */
-        postData = JSON.build(loc + "/" + i.toString());
-      }catch(Exception e){
-        /* Try old loading method */
-        postData = JSON.build(loc + "/" + I512.toString(i.toByteArray(), 16));
+      byte[] raw = Codec.decode(log.read(i));
+      if(Record.is(raw, Record.KIND_POST)){
+        /* Load binary record from the post log */
+        post = decode(raw);
+      }else if(raw != null){
+        /* Load from the post log */
+        postData = new JSON(raw);
+      }else{
+        try{
+          /* Try legacy loading method */
+          postData = JSON.build(Data.locate(loc, i));
+        }catch(Exception e){
+          /* Try old loading method */
+          postData = JSON.build(loc + "/" + I512.toString(i.toByteArray(), 16));
+        }
       }
-      post = new Post();
-      post.id = new I512(postData.get("id").value(null));
-      post.user = auth.getUserById(postData.get("userid").value(null));
-      try{
-        post.creation = Long.parseLong(postData.get("creation").value(".."));
-      }catch(NumberFormatException e){
-        post.creation = -1;
+      if(postData != null){
+        post = parse(postData);
       }
-      String prev = postData.get("previous").value(null);
-      post.previous = prev != null ? new I512(prev) : null;
-      post.message = postData.get("message").value(null);
-      post.state = State.valueOf(postData.get("state").value("NONE"));
-      String quote = postData.get("quote").value(null);
-      post.quote = quote != null ? new I512(quote) : null;
-      String qprevious = postData.get("qprevious").value(null);
-      post.qprevious = qprevious != null ? new I512(qprevious) : null;
-      if(
-        post.id != null    &&
-        post.user != null  &&
-        post.creation >= 0 &&
-        post.message != null
-      ){
+      if(post != null){
         addPost(post);
         return post;
       }else{
@@ -137,78 +383,290 @@ public class Post{
       return null;
     }
     /* Save the post to disk */
-    JSON data = null;
+    byte[] data = encode(post);
+    boolean pexist = exists(loc, post.id);
+    if(data != null && log.append(post.id, Codec.encode(data))){
+      Utils.log("Post configuration saved " + post.id);
+      /* Only add to home page if it didn't already exist */
+      if(!pexist){
+        recent.add(post);
+      }
+      /* Add post to cache */
+      addPost(post);
+      return post;
+    }else{
+      return null;
+    }
+  }
+
+  /**
+   * convert()
+   *
+   * Write every post again in the chosen record format, including those from
+   * before the post log. Old records are left in place but no longer used.
+   *
+   * @return The number of posts written.
+   **/
+  public static int convert(){
+    ArrayList<I512> ids = log.ids();
+    for(File file : Data.list(pstDir)){
+      String name = file.getName();
+      if(
+        name.length() == I512.MAX_STR_BASE64_LEN ||
+        name.length() == I512.MAX_STR_HEX_LEN
+      ){
+        try{
+          I512 id = new I512(name);
+          if(!log.contains(id)){
+            ids.add(id);
+          }
+        }catch(NumberFormatException e){
+          Utils.warn("Skipping unknown file in post directory");
+        }
+      }
+    }
+    int n = 0;
+    for(I512 id : ids){
+      Post post = readPost(pstDir, id);
+      if(post == null){
+        Utils.warn("Unable to read post " + id + " for conversion");
+      }else if(same(post) || writePost(pstDir, post.id.toString(), post) == post){
+        ++n;
+      }else{
+        Utils.warn("Unable to convert post " + id);
+      }
+    }
+    return n;
+  }
+
+  /**
+   * same()
+   *
+   * Check whether the post log already holds exactly this post.
+   *
+   * @param post The post to be checked.
+   * @return True if the stored post is the same, otherwise false.
+   **/
+  private static boolean same(Post post){
+    byte[] data = encode(post);
+    byte[] raw = Codec.decode(log.read(post.id));
+    return data != null && raw != null && Arrays.equals(raw, data);
+  }
+
+  /**
+   * encode()
+   *
+   * Convert a post to its stored form, in the chosen record format.
+   *
+   * @param post The post to be converted.
+   * @return The stored post, otherwise NULL on error.
+   **/
+  private static byte[] encode(Post post){
+    if(!Record.binary()){
+      return encodeJSON(post);
+    }
     try{
-      data = new JSON(false);
-      data.set(new JSON("id", post.id.toString()));
-      data.set(new JSON("userid", post.user.id.toString()));
-      data.set(new JSON("creation", Long.toString(post.creation)));
+      int flags =
+        (post.previous != null ? FLAG_PREVIOUS : 0) |
+        (post.quote != null ? FLAG_QUOTE : 0) |
+        (post.qprevious != null ? FLAG_QPREVIOUS : 0);
+      Record rec = (new Record(Record.KIND_POST, POST_OVERHEAD + post.message.length()))
+        .putByte(flags)
+        .putI512(post.id)
+        .putI512(post.user.id)
+        .putLong(post.creation)
+        .putByte(post.state.ordinal());
       if(post.previous != null){
-        data.set(new JSON("previous", post.previous.toString()));
+        rec.putI512(post.previous);
       }
-      data.set(new JSON("message", post.message));
-      data.set(new JSON("state", post.state.toString()));
       if(post.quote != null){
-        data.set(new JSON("quote", post.quote.toString()));
+        rec.putI512(post.quote);
       }
       if(post.qprevious != null){
-        data.set(new JSON("qprevious", post.qprevious.toString()));
+        rec.putI512(post.qprevious);
       }
+      return rec.putString(post.message).toByteArray();
     }catch(Exception e){
-      data = null;
+      return null;
     }
-    boolean pexist = (new File(loc + "/" + id)).exists();
-    if(data != null && Data.write(loc + "/" + id, data.toString())){
-      Utils.log("Post configuration saved " + post.id);
-      /* TODO: Get length of post buffer from configuration. */
-      /* Add to posts buffer */
-      if(recent.size() >= 16){
-        recent.remove(0);
-      }
-      /* Only add to home page if it didn't already exist */
-      if(!pexist){
-        recent.add(post);
-      }
-      /* Add post to cache */
-      addPost(post);
+  }
+
+  /**
+   * decode()
+   *
+   * Create a post from a binary record.
+   *
+   * @param data The binary record.
+   * @return The post object, otherwise NULL if not valid.
+   **/
+  private static Post decode(byte[] data){
+    Record rec = new Record(data, Record.KIND_POST);
+    Post post = new Post();
+    int flags = rec.getByte();
+    post.id = rec.getI512();
+    post.user = auth.getUserById(rec.getI512());
+    post.creation = rec.getLong();
+    int state = rec.getByte();
+    post.state = state < State.values().length ? State.values()[state] : State.NONE;
+    post.previous = (flags & FLAG_PREVIOUS) != 0 ? rec.getI512() : null;
+    post.quote = (flags & FLAG_QUOTE) != 0 ? rec.getI512() : null;
+    post.qprevious = (flags & FLAG_QPREVIOUS) != 0 ? rec.getI512() : null;
+    post.message = rec.getString();
+    if(post.user != null && post.creation >= 0){
       return post;
-    }else{
+    }
+    return null;
+  }
+
+  /**
+   * parse()
+   *
+   * Create a post from its stored form.
+   *
+   * @param data The stored post.
+   * @return The post object, otherwise NULL if not valid.
+   **/
+  private static Post parse(JSON data){
+    Post post = new Post();
+    post.id = new I512(data.get("id").value(null));
+    post.user = auth.getUserById(data.get("userid").value(null));
+    try{
+      post.creation = Long.parseLong(data.get("creation").value(".."));
+    }catch(NumberFormatException e){
+      post.creation = -1;
+    }
+    String prev = data.get("previous").value(null);
+    post.previous = prev != null ? new I512(prev) : null;
+    post.message = data.get("message").value(null);
+    post.state = State.valueOf(data.get("state").value("NONE"));
+    String quote = data.get("quote").value(null);
+    post.quote = quote != null ? new I512(quote) : null;
+    String qprevious = data.get("qprevious").value(null);
+    post.qprevious = qprevious != null ? new I512(qprevious) : null;
+    if(
+      post.id != null    &&
+      post.user != null  &&
+      post.creation >= 0 &&
+      post.message != null
+    ){
+      return post;
+    }
+    return null;
+  }
+
+  /**
+   * encodeJSON()
+   *
+   * Convert a post to its stored form as JSON.
+   *
+   * @param post The post to be converted.
+   * @return The stored post, otherwise NULL on error.
+   **/
+  private static byte[] encodeJSON(Post post){
+    try{
+      return toJSON(JSONWriter.local().startObject(null), post).endObject().toByteArray();
+    }catch(IOException e){
       return null;
     }
   }
 
+  /**
+   * toJSON()
+   *
+   * Write the fields of a post into the current JSON object.
+   *
+   * @param w The writer, inside the object for the post.
+   * @param post The post to be written.
+   * @return The writer.
+   **/
+  private static JSONWriter toJSON(JSONWriter w, Post post) throws IOException{
+    w.string("id", post.id.toString())
+      .string("userid", post.user.id.toString())
+      .string("creation", Long.toString(post.creation));
+    if(post.previous != null){
+      w.string("previous", post.previous.toString());
+    }
+    w.string("message", post.message)
+      .string("state", post.state.toString());
+    if(post.quote != null){
+      w.string("quote", post.quote.toString());
+    }
+    if(post.qprevious != null){
+      w.string("qprevious", post.qprevious.toString());
+    }
+    return w;
+  }
+
+  /**
+   * join()
+   *
+   * Join words into a single space separated string.
+   *
+   * @param words The words to be joined.
+   * @return The joined string.
+   **/
+  private static String join(Collection<String> words){
+    Str res = new Str(Math.max(words.size() * 2, 1));
+    for(String w : words){
+      res.append(w).append(" ");
+    }
+    return res.toString();
+  }
+
+  /**
+   * split()
+   *
+   * Split a space separated string into words.
+   *
+   * @param s The string to be split, otherwise NULL.
+   * @return The words found.
+   **/
+  private static ArrayList<String> split(String s){
+    ArrayList<String> words = new ArrayList<String>();
+    if(s != null){
+      for(String w : s.split(" ")){
+        if(w.length() > 0){
+          words.add(w);
+        }
+      }
+    }
+    return words;
+  }
+
+  /**
+   * exists()
+   *
+   * Check whether a post has already been stored.
+   *
+   * @param loc The location of legacy posts.
+   * @param id The ID of the post.
+   * @return True if the post exists, otherwise false.
+   **/
+  public static boolean exists(String loc, I512 id){
+    return log.contains(id) || Data.exists(Data.locate(loc, id));
+  }
+
   /**
    * addPost()
    *
-   * Add a post to the cache if it is not already added.
+   * Add a post to the cache, which evicts older posts as required.
    *
    * @param post The post to be added.
    **/
   private static void addPost(Post post){
-    /* Check the post object is already in cache */
-    Post temp = idMap.get(post.id);
-    if(temp != null && temp == post){
-      return;
-    }
-    /* Make sure cache remains of reasonable size */
-    /* NOTE: We assume 1 post = 1kB, so 1 millions posts = 1GB */
-    /* TODO: Derive max cache from configuration. */
-    if(idMap.size() >= 1000000){
-      Object[] keys = idMap.keySet().toArray();
-      Utils.log("Need reduce cache, currently is " + keys.length);
-      /* Iterate through keys (this is expensive, do it rarely) */
-      /* TODO: Derive remove percentage from configuration. */
-      int removeNum = keys.length / 4;
-      int startPos = removeNum * (new Random(System.currentTimeMillis())).nextInt(4);
-      int endPos = startPos + removeNum;
-      endPos = endPos < keys.length ? endPos : keys.length;
-      for(int x = startPos; x < endPos; x++){
-        idMap.remove(keys[x]);
-      }
-      Utils.log("Cache reduced to " + idMap.size());
-    }
-    /* Update cache */
-    idMap.put(post.id, post);
+    idMap.put(post.id, post, weigh(post));
+  }
+
+  /**
+   * weigh()
+   *
+   * Estimate the memory used by a post.
+   *
+   * @param post The post to be estimated.
+   * @return The approximate size of the post in bytes.
+   **/
+  private static int weigh(Post post){
+    return POST_OVERHEAD + (post.message != null ? post.message.length() * 2 : 0);
   }
 
   /**
@@ -216,10 +674,10 @@ public class Post{
    *
    * Get a list of the latest list of posts.
    *
-   * @return A clone of the latest list of posts.
+   * @return A view of the latest posts, most recent first.
    **/
-  public static ArrayList<Post> getRecent(){
-    return (ArrayList<Post>)(recent.clone());
+  public static Iterable<Post> getRecent(){
+    return recent.view();
   }
 
   /**
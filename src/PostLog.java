@@ -0,0 +1,353 @@
+package b.ds;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PostLog.java
+ *
+ * An append only store for posts. Records are appended to numbered segment
+ * files, a new one being started once the current one is full, and an index
+ * held in RAM maps each post ID to the location of its latest record. A
+ * changed post is simply appended again, replacing the location in the index.
+ *
+ * Each record is the length of the data, the post ID and then the data
+ * itself, so the index can be rebuilt on start up without parsing any posts.
+ **/
+public class PostLog{
+  private static final String SEG_PREFIX = "seg-";
+  private static final String SEG_SUFFIX = ".log";
+  private static final int ID_LEN = I512.MAX_BYTE_ARR_LEN;
+  private static final int HEAD_LEN = 4 + ID_LEN;
+  private static final int OFFSET_BITS = 40;
+  private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+  private static final int READ_GUESS = 2048;
+
+  private String dir;
+  private long segMax;
+  private ConcurrentHashMap<I512, Long> index;
+  private ReentrantLock lock;
+  private FileOutputStream out;
+  private int seg;
+  private long segLen;
+  private boolean dirty;
+  private boolean lost;
+
+  /**
+   * PostLog()
+   *
+   * Open the post log in the given directory, rebuilding the index from any
+   * existing segments.
+   *
+   * @param dir The directory holding the segments.
+   * @param segMax The size at which a new segment is started.
+   **/
+  public PostLog(String dir, long segMax){
+    this.dir = dir;
+    this.segMax = Math.min(Math.max(segMax, HEAD_LEN), OFFSET_MASK);
+    index = new ConcurrentHashMap<I512, Long>();
+    lock = new ReentrantLock();
+    out = null;
+    seg = 0;
+    segLen = 0;
+    dirty = false;
+    lost = false;
+    /* Rebuild the index in the order the segments were written */
+    File[] files = (new File(dir)).listFiles();
+    int[] segs = new int[files != null ? files.length : 0];
+    int n = 0;
+    for(int x = 0; x < segs.length; x++){
+      int s = segment(files[x].getName());
+      if(s >= 0){
+        segs[n++] = s;
+      }
+    }
+    segs = Arrays.copyOf(segs, n);
+    Arrays.sort(segs);
+    for(int x = 0; x < segs.length; x++){
+      scan(segs[x], x == segs.length - 1);
+    }
+    /* Continue appending to the last segment */
+    if(segs.length > 0){
+      seg = segs[segs.length - 1];
+      segLen = file(seg).length();
+    }
+    Utils.log("Post log indexed " + index.size() + " posts in " + segs.length + " segments");
+  }
+
+  /**
+   * append()
+   *
+   * Append a record for a post, replacing any previous record in the index.
+   *
+   * @param id The ID of the post.
+   * @param data The raw post data.
+   * @return True on success, otherwise false.
+   **/
+  public boolean append(I512 id, byte[] data){
+    ByteBuffer head = ByteBuffer.allocate(HEAD_LEN);
+    head.putInt(data.length);
+    head.put(id.toByteArray());
+    lock.lock();
+    try{
+      /* Start a new segment if this one is full */
+      if(segLen > 0 && segLen + HEAD_LEN + data.length > segMax){
+        close();
+        ++seg;
+        segLen = 0;
+      }
+      if(out == null){
+        out = new FileOutputStream(file(seg), true);
+      }
+      long offset = segLen;
+      out.write(head.array());
+      out.write(data);
+      dirty = true;
+      segLen += HEAD_LEN + data.length;
+      index.put(id, (((long)seg) << OFFSET_BITS) | offset);
+      return true;
+    }catch(IOException e){
+      Utils.warn("Failed to append to post log");
+      /* NOTE: A partial write leaves the offset unknown, so start afresh. */
+      close();
+      ++seg;
+      segLen = 0;
+      return false;
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * force()
+   *
+   * Sync the records appended since the last call to disk.
+   *
+   * @return True on success, otherwise false.
+   **/
+  public boolean force(){
+    lock.lock();
+    try{
+      if(out != null && dirty){
+        out.getFD().sync();
+        dirty = false;
+      }
+      /* Report a segment that could not be synced when it was closed */
+      boolean ok = !lost;
+      lost = false;
+      return ok;
+    }catch(IOException e){
+      Utils.warn("Failed to sync post log");
+      return false;
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * read()
+   *
+   * Read the latest record for a post.
+   *
+   * @param id The ID of the post.
+   * @return The raw post data, otherwise NULL if not found.
+   **/
+  public byte[] read(I512 id){
+    Long loc = index.get(id);
+    if(loc == null){
+      return null;
+    }
+    int s = (int)(loc >>> OFFSET_BITS);
+    long offset = loc & OFFSET_MASK;
+    String path = file(s).getPath();
+    /* NOTE: Most posts fit in the first read, along with their header. */
+    ByteBuffer b = Data.readAt(path, offset, HEAD_LEN + READ_GUESS);
+    if(b == null || b.remaining() < HEAD_LEN){
+      Utils.warn("Failed to read from post log");
+      return null;
+    }
+    int len = b.getInt();
+    byte[] rid = new byte[ID_LEN];
+    b.get(rid);
+    /* Make sure the index pointed us at the right record */
+    if(len < 0 || !Arrays.equals(rid, id.toByteArray())){
+      Utils.warn("Post log index mismatch");
+      return null;
+    }
+    if(b.remaining() < len){
+      b = Data.readAt(path, offset + HEAD_LEN, len);
+      if(b == null || b.remaining() < len){
+        Utils.warn("Failed to read from post log");
+        return null;
+      }
+    }
+    byte[] data = new byte[len];
+    b.get(data);
+    return data;
+  }
+
+  /**
+   * contains()
+   *
+   * Check whether the log holds a record for a post.
+   *
+   * @param id The ID of the post.
+   * @return True if a record exists, otherwise false.
+   **/
+  public boolean contains(I512 id){
+    return index.containsKey(id);
+  }
+
+  /**
+   * ids()
+   *
+   * Get the IDs of the posts held in the log.
+   *
+   * @return A copy of the IDs.
+   **/
+  public ArrayList<I512> ids(){
+    return new ArrayList<I512>(index.keySet());
+  }
+
+  /**
+   * size()
+   *
+   * Get the number of posts held in the log.
+   *
+   * @return The number of posts.
+   **/
+  public int size(){
+    return index.size();
+  }
+
+  /**
+   * close()
+   *
+   * Close the current segment, syncing anything not yet synced. The lock must
+   * be held.
+   **/
+  private void close(){
+    if(out != null){
+      if(dirty){
+        try{
+          out.getFD().sync();
+        }catch(IOException e){
+          lost = true;
+        }
+        dirty = false;
+      }
+      try{
+        out.close();
+      }catch(IOException e){
+        /* Do nothing */
+      }
+    }
+    out = null;
+  }
+
+  /**
+   * scan()
+   *
+   * Add the records of a segment to the index. A record cut short at the end
+   * of the last segment, for example by a crash, is removed.
+   *
+   * @param s The number of the segment.
+   * @param last True if this is the segment to be appended to.
+   **/
+  private void scan(int s, boolean last){
+    File f = file(s);
+    long offset = 0;
+    DataInputStream dis = null;
+    try{
+      dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+      byte[] rid = new byte[ID_LEN];
+      for(;;){
+        int len;
+        try{
+          len = dis.readInt();
+        }catch(EOFException e){
+          break;
+        }
+        if(len < 0 || offset + HEAD_LEN + len > f.length()){
+          break;
+        }
+        dis.readFully(rid);
+        long skip = len;
+        while(skip > 0){
+          long n = dis.skip(skip);
+          if(n <= 0){
+            break;
+          }
+          skip -= n;
+        }
+        index.put(new I512(Arrays.copyOf(rid, ID_LEN)), (((long)s) << OFFSET_BITS) | offset);
+        offset += HEAD_LEN + len;
+      }
+    }catch(IOException e){
+      Utils.warn("Failed to scan post log segment " + s);
+    }finally{
+      if(dis != null){
+        try{
+          dis.close();
+        }catch(IOException e){
+          /* Do nothing */
+        }
+      }
+    }
+    /* Drop any partial record so that appends line up again */
+    if(offset < f.length()){
+      Utils.warn("Post log segment " + s + " has " + (f.length() - offset) + " trailing bytes");
+      if(last){
+        try{
+          RandomAccessFile raf = new RandomAccessFile(f, "rw");
+          raf.setLength(offset);
+          raf.close();
+        }catch(IOException e){
+          Utils.warn("Failed to truncate post log segment " + s);
+        }
+      }
+    }
+  }
+
+  /**
+   * file()
+   *
+   * Get the file for a segment.
+   *
+   * @param s The number of the segment.
+   * @return The segment's file.
+   **/
+  private File file(int s){
+    return new File(dir + "/" + SEG_PREFIX + String.format("%08d", s) + SEG_SUFFIX);
+  }
+
+  /**
+   * segment()
+   *
+   * Get the number of a segment from its file name.
+   *
+   * @param name The file name.
+   * @return The segment number, otherwise -1 if not a segment.
+   **/
+  private static int segment(String name){
+    if(!name.startsWith(SEG_PREFIX) || !name.endsWith(SEG_SUFFIX)){
+      return -1;
+    }
+    try{
+      return Integer.parseInt(name.substring(SEG_PREFIX.length(), name.length() - SEG_SUFFIX.length()));
+    }catch(NumberFormatException e){
+      return -1;
+    }
+  }
+}
@@ -5,10 +5,14 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
+import java.nio.channels.SelectionKey;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Process.java
@@ -19,19 +23,45 @@ import java.util.HashSet;
 public class Process implements Runnable{
   private static final byte[] HTTP_LINE = "\r\n".getBytes();
   private static final byte[] HTTP_HEAD = "HTTP/1.1 200 OK".getBytes();
+  private static final byte[] HTTP_BUSY = (
+    "HTTP/1.1 503 Service Unavailable\r\n" +
+    "Content-Length: 0\r\n" +
+    "Retry-After: 1\r\n" +
+    "Connection: close\r\n\r\n"
+  ).getBytes();
   private static final byte[] HTTP_TYPE = "Content-Type: text/html; charset=utf-8".getBytes();
   private static final byte[] HTTP_COOK = "Set-Cookie: ".getBytes();
+  private static final byte[] HTTP_LENG = "Content-Length: ".getBytes();
+  private static final byte[] HTTP_KEEP = "Connection: keep-alive".getBytes();
+  private static final byte[] HTTP_CLOS = "Connection: close".getBytes();
   private static final byte[] HTTP_BAD = "<b>Error</b>".getBytes();
 
+  private static AtomicInteger parked = new AtomicInteger(0);
+  private static AtomicInteger idle = new AtomicInteger(0);
+
   private Socket s;
+  private Reactor reactor;
+  private SelectionKey key;
+  private Request req;
+  private Request in;
+  private HashMap<String, String> kv;
+  private boolean more;
+  private int served;
   private long start;
   private int recBuffSize;
+  private int keepMax;
+  private int keepTimeout;
+  private int keepIdle;
+  private boolean waiting;
   private int subDirLen;
   private int inputMaxLen;
   private int tagMaxCount;
   private int authDelay;
+  private int authParkMax;
+  private boolean busy;
   private int postDelay;
   private Auth auth;
+  private Pool pool;
   private String pstDir;
   private String tagDir;
   private String usrDir;
@@ -44,12 +74,18 @@ public class Process implements Runnable{
    * @param socket The socket of the client.
    * @param start The start time for the process.
    * @param recBuffSize The receiver buffer size.
+   * @param keepMax The maximum number of requests per connection.
+   * @param keepTimeout The time to wait for a further request.
+   * @param keepIdle The maximum number of connections waiting for a further
+   * request at once.
    * @param subDirLen The subdirectory length.
    * @param inputMaxLen The maximum post input length.
    * @param tagMaxCount The maximum number of tags to be counted.
    * @param authDelay Artificial delay for authentication.
+   * @param authParkMax The maximum number of requests waiting on the delay.
    * @param postDelay Artificial delay for posting.
    * @param auth Access to the authentication mechanism.
+   * @param pool The pool to resume delayed requests on.
    * @param pstDir The post directory.
    * @param tagDir The tag directory.
    * @param usrDir The user directory.
@@ -58,12 +94,17 @@ public class Process implements Runnable{
     Socket socket,
     long start,
     int recBuffSize,
+    int keepMax,
+    int keepTimeout,
+    int keepIdle,
     int subDirLen,
     int inputMaxLen,
     int tagMaxCount,
     int authDelay,
+    int authParkMax,
     int postDelay,
     Auth auth,
+    Pool pool,
     String pstDir,
     String tagDir,
     String usrDir
@@ -71,199 +112,448 @@ public class Process implements Runnable{
     this.s = socket;
     this.start = start;
     this.recBuffSize = recBuffSize;
+    this.keepMax = keepMax;
+    this.keepTimeout = keepTimeout;
+    this.keepIdle = keepIdle;
+    this.waiting = false;
     this.subDirLen = subDirLen;
     this.inputMaxLen = inputMaxLen;
     this.tagMaxCount = tagMaxCount;
     this.authDelay = authDelay;
+    this.authParkMax = authParkMax;
+    this.busy = false;
     this.postDelay = postDelay;
     this.auth = auth;
+    this.pool = pool;
     this.pstDir = pstDir;
     this.tagDir = tagDir;
     this.usrDir = usrDir;
   }
 
+  /**
+   * Process()
+   *
+   * Allow a request already read by the event loop to be processed. The
+   * response is handed back to the event loop to be written.
+   *
+   * @param reactor The event loop that read the request.
+   * @param key The key of the client.
+   * @param req The complete request.
+   * @param more True if the connection may serve further requests.
+   * @param start The start time for the process.
+   * @param recBuffSize The receiver buffer size.
+   * @param subDirLen The subdirectory length.
+   * @param inputMaxLen The maximum post input length.
+   * @param tagMaxCount The maximum number of tags to be counted.
+   * @param authDelay Artificial delay for authentication.
+   * @param authParkMax The maximum number of requests waiting on the delay.
+   * @param postDelay Artificial delay for posting.
+   * @param auth Access to the authentication mechanism.
+   * @param pool The pool to resume delayed requests on.
+   * @param pstDir The post directory.
+   * @param tagDir The tag directory.
+   * @param usrDir The user directory.
+   **/
+  public Process(
+    Reactor reactor,
+    SelectionKey key,
+    Request req,
+    boolean more,
+    long start,
+    int recBuffSize,
+    int subDirLen,
+    int inputMaxLen,
+    int tagMaxCount,
+    int authDelay,
+    int authParkMax,
+    int postDelay,
+    Auth auth,
+    Pool pool,
+    String pstDir,
+    String tagDir,
+    String usrDir
+  ){
+    this(
+      null,
+      start,
+      recBuffSize,
+      1,
+      0,
+      0,
+      subDirLen,
+      inputMaxLen,
+      tagMaxCount,
+      authDelay,
+      authParkMax,
+      postDelay,
+      auth,
+      pool,
+      pstDir,
+      tagDir,
+      usrDir
+    );
+    this.reactor = reactor;
+    this.key = key;
+    this.req = req;
+    this.more = more;
+  }
+
   /**
    * run()
    *
-   * Start processing the user's request.
+   * Start processing the user's request. For a blocking socket, further
+   * requests on the same connection are served until the client closes it,
+   * stays idle for too long or reaches the request limit, or too many other
+   * connections are already waiting. A request that has
+   * to wait on the authentication delay parks this process, which is run
+   * again once the delay is over to finish the response and carry on.
    **/
   @Override
   public void run(){
-    Utils.log("Process client started");
-    /* Read the header */
-    String raw = readHead(s, recBuffSize);
-    if(raw == null){
-      Utils.warn("Failed to read from client socket");
+    /* Process the request read by the event loop */
+    if(reactor != null){
+      if(kv == null){
+        Utils.log("Process client started");
+        kv = parseHead(req.decode());
+        if(delay()){
+          return;
+        }
+        if(busy){
+          kv = null;
+          reactor.reply(key, HTTP_BUSY, false);
+          return;
+        }
+      }
+      Response out = Response.obtain(recBuffSize);
+      boolean keep = false;
+      try{
+        keep = respond(kv, out, more);
+      }catch(IOException e){
+        Utils.warn("Failed to write response");
+      }
+      kv = null;
+      reactor.reply(key, out.toByteArray(), keep);
       return;
     }
-    /* Parse the header */
-    HashMap<String, String> kv = parseHead(raw);
-    /* Authenticate (if required) */
-    Auth.User user = parseAuth(kv, auth, authDelay);
-    /* Handle user POST */
-    if(!parsePost(kv, user, pstDir, tagDir, usrDir, postDelay, inputMaxLen, tagMaxCount)){
-      /* Delete location to force a bad message */
-      kv.remove("location");
+    /* Process requests from the socket */
+    if(in == null){
+      in = Request.obtain(recBuffSize);
     }
-    /* Pass request onto handler */
     try{
+      InputStream is = s.getInputStream();
       OutputStream os = s.getOutputStream();
-      if(kv.containsKey("location")){
-        String[] loc = new String[]{ kv.get("location") };
-        loc[0] = loc[0].length() < subDirLen ? "" : loc[0].substring(subDirLen);
-        /* Derive handler string */
-        String hand = loc[0];
-        int z = hand.indexOf('/');
-        if(z >= 0){
-          hand = hand.substring(0, z);
-          loc = loc[0].substring(z + 1, loc[0].length()).split("/");
+      boolean keep = true;
+      /* Finish a request that was waiting on the authentication delay */
+      if(kv != null){
+        keep = send(kv, os, more && reserve());
+        kv = null;
+      }
+      while(keep){
+        /* Wait a limited time for any further request */
+        if(served > 0){
+          s.setSoTimeout(keepTimeout);
         }
-        Handler h = new HandlerHome(kv, user, auth);
-        Utils.logUnsafe("User requesting from location", hand);
-        switch(hand){
-          case "about" :
-            if(user != null && user.role == Auth.Role.ADMIN){
-              h = new HandlerAbout(kv, auth);
-            }
-            writeHead(os, h.genMime(), user);
-            h.genHead(os, user);
-            h.genBody(os);
-            h.genFoot(os);
-            break;
-          case "embed" :
-            h = new HandlerEmbed(kv, user, auth, loc[0]);
-            writeHead(os, h.genMime(), user);
-            h.genHead(os, user);
-            h.genBody(os);
-            h.genFoot(os);
-            break;
-          case "hide" :
-            h = new HandlerUser(kv, user, user, auth, null);
-            /* Try to find a valid post */
-            Post post = Post.readPost(pstDir, loc[0]);
-            /* If we have a valid post, lets process it */
-            if(post != null){
-              /* Set the post to be hidden */
-              hidePost(user, post, pstDir);
-              /* Redirect to homepage */
-              writeHead(os, h.genMime(), user);
-              h.genHead(os, user);
-              h.genBody(os);
-              h.genFoot(os);
-            }else{
-              writeHead(os, HTTP_TYPE, user);
-              writeBad(os);
-              Utils.log("Invalid post to hide");
-            }
-            break;
-          case "" :
-          case "index" :
-          case "index.htm" :
-          case "index.html" :
-            writeHead(os, h.genMime(), user);
-            h.genHead(os, user);
-            h.genBody(os);
-            h.genFoot(os);
-            break;
-          case "login" :
-            if(user == null){
-              h = new HandlerLogin(kv);
-            }
-            writeHead(os, h.genMime(), user);
-            h.genHead(os, user);
-            h.genBody(os);
-            h.genFoot(os);
-            break;
-          case "register" :
-            if(user == null){
-              h = new HandlerRegister(kv);
-            }
-            writeHead(os, h.genMime(), user);
-            h.genHead(os, user);
-            h.genBody(os);
-            h.genFoot(os);
-            break;
-          case "reply" :
-            if(user == null){
-              h = new HandlerLogin(kv);
-            }else{
-              h = new HandlerReply(kv, user, auth, loc[0]);
-            }
-            writeHead(os, h.genMime(), user);
-            h.genHead(os, user);
-            h.genBody(os);
-            h.genFoot(os);
-            break;
-          case "rss" :
-            h = new HandlerRSS(kv, user, auth.getUserById(loc[0]));
-            writeHead(os, h.genMime(), user);
-            h.genHead(os, user);
-            h.genBody(os);
-            h.genFoot(os);
-            break;
-          case "tag" :
-            String tag = loc[0];
-            String page = null;
-            if(loc.length > 1){
-              page = loc[1];
-            }
-            h = new HandlerTag(kv, user, auth, tag, page);
-            writeHead(os, h.genMime(), user);
-            h.genHead(os, user);
-            h.genBody(os);
-            h.genFoot(os);
-            break;
-          case "user" :
-            String postId = null;
-            if(loc.length > 1){
-              postId = loc[1];
-            }
-            h = new HandlerUser(kv, user, auth.getUserById(loc[0]), auth, postId);
-            writeHead(os, h.genMime(), user);
-            h.genHead(os, user);
-            h.genBody(os);
-            h.genFoot(os);
-            break;
-          default :
-            writeHead(os, HTTP_TYPE, user);
-            writeBad(os);
-            Utils.log("Unable to process request from location");
-            break;
+        /* Read until we have a complete request or it is rejected */
+        int state = in.parse();
+        while(state == Request.STATE_MORE && in.read(is) >= 0){
+          state = in.parse();
         }
-      }else{
-        writeHead(os, HTTP_TYPE, user);
-        writeBad(os);
-        Utils.log("Unable to read header");
+        unreserve();
+        if(state == Request.STATE_FAIL){
+          Utils.warn("Rejected request from client socket");
+          os.write(in.reject());
+          break;
+        }
+        /* Check whether the client went away */
+        if(state != Request.STATE_DONE){
+          if(served <= 0){
+            Utils.warn("Failed to read from client socket");
+          }
+          break;
+        }
+        if(served > 0){
+          start = System.currentTimeMillis();
+        }
+        Utils.log("Process client started");
+        kv = parseHead(in.decode());
+        in.consume();
+        more = ++served < keepMax;
+        /* NOTE: The socket and buffer stay with this process whilst parked. */
+        if(delay()){
+          return;
+        }
+        if(busy){
+          os.write(HTTP_BUSY);
+          break;
+        }
+        keep = send(kv, os, more && reserve());
+        kv = null;
       }
-      /* Close the socket */
+    }catch(SocketTimeoutException e){
+      Utils.log("Keep-alive timeout, closing connection");
+    }catch(IOException e){
+      Utils.warn("Failed to read from or write to socket");
+    }
+    unreserve();
+    in.release();
+    in = null;
+    /* Close the socket */
+    try{
       close(s);
     }catch(IOException e){
-      Utils.warn("Failed to write to socket");
+      Utils.warn("Failed to close socket");
+    }
+  }
+
+  /**
+   * reserve()
+   *
+   * Reserve one of the limited places for a blocking connection to wait for
+   * a further request. A waiting connection holds a worker thread, so only a
+   * few may wait at once and the rest are closed after their response.
+   *
+   * @return True if a place was reserved, otherwise false.
+   **/
+  private boolean reserve(){
+    if(idle.incrementAndGet() > keepIdle){
+      idle.decrementAndGet();
+      return false;
+    }
+    waiting = true;
+    return true;
+  }
+
+  /**
+   * unreserve()
+   *
+   * Give up the place reserved to wait for a further request, if any.
+   **/
+  private void unreserve(){
+    if(waiting){
+      waiting = false;
+      idle.decrementAndGet();
+    }
+  }
+
+  /**
+   * delay()
+   *
+   * Check whether the current request is a login or registration, which has
+   * to wait on an artificial delay to prevent brute force attacks. If so,
+   * park this process on the pool's timer rather than holding a thread. A
+   * parked process still holds its socket and buffer, so once too many are
+   * parked the request is marked busy, to be turned away instead.
+   *
+   * @return True if the process was parked, otherwise false.
+   **/
+  private boolean delay(){
+    if(authDelay <= 0 || !kv.containsKey("username")){
+      return false;
+    }
+    if(parked.incrementAndGet() > authParkMax){
+      parked.decrementAndGet();
+      Utils.warn("Too many requests waiting on authentication, turned away");
+      busy = true;
+      return false;
     }
+    pool.schedule(new Runnable(){
+      @Override
+      public void run(){
+        parked.decrementAndGet();
+        Process.this.run();
+      }
+    }, authDelay);
+    return true;
+  }
+
+  /**
+   * send()
+   *
+   * Handle a single parsed request and send the response in one write.
+   *
+   * @param kv The key value mappings from the header.
+   * @param os The OutputStream to write the response to.
+   * @param more True if the connection may serve further requests.
+   * @return True if the connection is to be kept alive, otherwise false.
+   **/
+  private boolean send(HashMap<String, String> kv, OutputStream os, boolean more) throws IOException{
+    Response out = Response.obtain(recBuffSize);
+    boolean keep = respond(kv, out, more);
+    out.writeTo(os);
+    os.flush();
+    return keep;
+  }
+
+  /**
+   * respond()
+   *
+   * Handle a single parsed request and collect the response.
+   *
+   * @param kv The key value mappings from the header.
+   * @param out The buffer to collect the response in.
+   * @param more True if the connection may serve further requests.
+   * @return True if the connection is to be kept alive, otherwise false.
+   **/
+  private boolean respond(HashMap<String, String> kv, Response out, boolean more) throws IOException{
+    /* Check whether the client wants to keep the connection */
+    boolean keep = more && keepAlive(kv);
+    /* Authenticate (if required) */
+    Auth.User user = parseAuth(kv, auth);
+    /* Handle user POST */
+    if(!parsePost(kv, user, pstDir, tagDir, usrDir, postDelay, inputMaxLen, tagMaxCount)){
+      /* Delete location to force a bad message */
+      kv.remove("location");
+    }
+    /* Pass request onto handler */
+    byte[] mime = HTTP_TYPE;
+    if(kv.containsKey("location")){
+      String[] loc = new String[]{ kv.get("location") };
+      loc[0] = loc[0].length() < subDirLen ? "" : loc[0].substring(subDirLen);
+      /* Derive handler string */
+      String hand = loc[0];
+      int z = hand.indexOf('/');
+      if(z >= 0){
+        hand = hand.substring(0, z);
+        loc = loc[0].substring(z + 1, loc[0].length()).split("/");
+      }
+      Handler h = new HandlerHome(kv, user, auth);
+      Utils.logUnsafe("User requesting from location", hand);
+      switch(hand){
+        case "about" :
+          if(user != null && user.role == Auth.Role.ADMIN){
+            h = new HandlerAbout(kv, auth);
+          }
+          mime = h.genMime();
+          h.genHead(out, user);
+          h.genBody(out);
+          h.genFoot(out);
+          break;
+        case "embed" :
+          h = new HandlerEmbed(kv, user, auth, loc[0]);
+          mime = h.genMime();
+          h.genHead(out, user);
+          h.genBody(out);
+          h.genFoot(out);
+          break;
+        case "hide" :
+          h = new HandlerUser(kv, user, user, auth, null);
+          /* Try to find a valid post */
+          Post post = Post.readPost(pstDir, loc[0]);
+          /* If we have a valid post, lets process it */
+          if(post != null){
+            /* Set the post to be hidden */
+            hidePost(user, post, pstDir);
+            /* Redirect to homepage */
+            mime = h.genMime();
+            h.genHead(out, user);
+            h.genBody(out);
+            h.genFoot(out);
+          }else{
+            writeBad(out);
+            Utils.log("Invalid post to hide");
+          }
+          break;
+        case "" :
+        case "index" :
+        case "index.htm" :
+        case "index.html" :
+          mime = h.genMime();
+          h.genHead(out, user);
+          h.genBody(out);
+          h.genFoot(out);
+          break;
+        case "login" :
+          if(user == null){
+            h = new HandlerLogin(kv);
+          }
+          mime = h.genMime();
+          h.genHead(out, user);
+          h.genBody(out);
+          h.genFoot(out);
+          break;
+        case "register" :
+          if(user == null){
+            h = new HandlerRegister(kv);
+          }
+          mime = h.genMime();
+          h.genHead(out, user);
+          h.genBody(out);
+          h.genFoot(out);
+          break;
+        case "reply" :
+          if(user == null){
+            h = new HandlerLogin(kv);
+          }else{
+            h = new HandlerReply(kv, user, auth, loc[0]);
+          }
+          mime = h.genMime();
+          h.genHead(out, user);
+          h.genBody(out);
+          h.genFoot(out);
+          break;
+        case "rss" :
+          h = new HandlerRSS(kv, user, auth.getUserById(loc[0]));
+          mime = h.genMime();
+          h.genHead(out, user);
+          h.genBody(out);
+          h.genFoot(out);
+          break;
+        case "tag" :
+          String tag = loc[0];
+          String page = null;
+          if(loc.length > 1){
+            page = loc[1];
+          }
+          h = new HandlerTag(kv, user, auth, tag, page);
+          mime = h.genMime();
+          h.genHead(out, user);
+          h.genBody(out);
+          h.genFoot(out);
+          break;
+        case "user" :
+          String postId = null;
+          if(loc.length > 1){
+            postId = loc[1];
+          }
+          h = new HandlerUser(kv, user, auth.getUserById(loc[0]), auth, postId);
+          mime = h.genMime();
+          h.genHead(out, user);
+          h.genBody(out);
+          h.genFoot(out);
+          break;
+        default :
+          writeBad(out);
+          Utils.log("Unable to process request from location");
+          break;
+      }
+    }else{
+      writeBad(out);
+      Utils.log("Unable to read header");
+    }
+    /* Write the header now that the length of the body is known */
+    int len = out.startHead();
+    writeHead(out, mime, user, len, keep);
     Utils.log("Process client ended after " + (System.currentTimeMillis() - start) + " ms");
+    return keep;
   }
 
   /**
-   * readHead()
+   * keepAlive()
    *
-   * Read the header from the socket.
+   * Check whether the client asked for the connection to be kept alive. This
+   * is the default for HTTP/1.1 and must be requested for HTTP/1.0.
    *
-   * @param s The socket to be read.
-   * @param n The maximum buffer size.
-   * @return The data read from the socket. If an error occurs, return NULL.
+   * @param kv The key value mappings from the header.
+   * @return True if the connection may be kept alive, otherwise false.
    **/
-  private static String readHead(Socket s, int n){
-    String r = null;
-    if(s != null && n > 0){
-      byte[] buff = new byte[n];
-      try{
-        s.getInputStream().read(buff);
-        r = new String(buff, StandardCharsets.UTF_8);
-      }catch(IOException e){
-        r = null;
+  private static boolean keepAlive(HashMap<String, String> kv){
+    /* NOTE: Header names are not case sensitive. */
+    for(Map.Entry<String, String> e : kv.entrySet()){
+      if(e.getKey().equalsIgnoreCase("Connection")){
+        return e.getValue().equalsIgnoreCase("keep-alive");
       }
     }
-    return r;
+    return "HTTP/1.1".equals(kv.get("protocol"));
   }
 
   /**
@@ -329,22 +619,17 @@ public class Process implements Runnable{
    * The purpose is to handle these cases and allow for a logged in user to be
    * returned if possible.
    *
+   * NOTE: Logins and registrations are expected to have already waited on
+   * the authentication delay, see delay().
+   *
    * @param kv The key value mappings from the header.
    * @param auth The server authentication mechanism.
-   * @param authDelay Create an artificial delay to prevent brute force
-   * attacks.
    * @return The logged in user, otherwise NULL.
    **/
-  private static Auth.User parseAuth(HashMap<String, String> kv, Auth auth, int authDelay){
+  private static Auth.User parseAuth(HashMap<String, String> kv, Auth auth){
     Auth.User user = null;
     /* Check if login or registration */
     if(kv.containsKey("username")){
-      /* Do authentication delay to prevent brute force */
-      try{
-        Thread.sleep(authDelay);
-      }catch(InterruptedException e){
-        /* Do nothing */
-      }
       /* Is login */
       if(kv.containsKey("password")){
         return auth.login(kv.get("username"), kv.get("password"));
@@ -408,7 +693,7 @@ public class Process implements Runnable{
       }
       /* Create a post object */
       Post post = new Post();
-      while(Data.exists(pstDir + "/" + (post.id = Utils.genRandHash())));
+      while(Post.exists(pstDir, post.id = Utils.genRandHash()));
       post.user = user;
       post.creation = System.currentTimeMillis();
       post.previous = user.latest;
@@ -435,12 +720,8 @@ public class Process implements Runnable{
         quote = Post.readPost(pstDir, quoteId.toString());
         if(quote != null){
           post.quote = quote.id;
-          /* Update quoted user's feed */
-          Auth.User qUser = quote.user;
-          post.qprevious = qUser.latest;
-          qUser.latest = post.id;
-          /* Save quoted user */
-          Auth.writeUser(usrDir + "/" + qUser.id.toString(), qUser);
+          /* Link into the quoted user's feed */
+          post.qprevious = quote.user.latest;
         }else{
           Utils.warn("User tried to quote a non-existing post");
           return false;
@@ -460,21 +741,11 @@ public class Process implements Runnable{
           }
         }
       }
-      /* Save post */
-      if(Post.writePost(pstDir, post.id.toString(), post) != post){
+      /* Save post, along with its tags and feeds */
+      if(!Post.publish(post, tags, quote != null ? quote.user : null)){
         Utils.warn("Unable to save new post");
         return false;
       }
-      /* Save tags for post */
-      for(String tag : tags){
-        Tag.writeTag(tagDir, tag, post);
-      }
-      /* Update user data */
-      user.latest = post.id;
-      if(Auth.writeUser(usrDir + "/" + user.id.toString(), user) != user){
-        Utils.warn("Unable to save updated user");
-        return false;
-      }
       return true;
     }
     return true;
@@ -505,7 +776,7 @@ public class Process implements Runnable{
        post.state = Post.State.NONE;
      }
      /* Save the new post configuration */
-     Post.writePost(pstDir, post.id.toString(), post);
+     Post.update(post);
    }
  }
 
@@ -517,17 +788,26 @@ public class Process implements Runnable{
    * @param os The OutputStream to write the data to.
    * @param mime The mime byte array.
    * @param user A valid authorized user if one has been found.
+   * @param len The length of the body to follow.
+   * @param keep True if the connection is to be kept alive.
    **/
-  private static void writeHead(OutputStream os, byte[] mime, Auth.User user) throws IOException{
+  private static void writeHead(OutputStream os, byte[] mime, Auth.User user, int len, boolean keep) throws IOException{
     os.write(HTTP_HEAD);
     os.write(HTTP_LINE);
     os.write(mime);
-    if(user != null){
+    /* NOTE: The token may be revoked whilst we are responding. */
+    I512 token = user != null ? user.token : null;
+    if(token != null){
       os.write(HTTP_LINE);
       os.write(HTTP_COOK);
-      os.write(("token=" + user.token.toString()).getBytes());
+      os.write(("token=" + token.toString()).getBytes());
     }
     os.write(HTTP_LINE);
+    os.write(HTTP_LENG);
+    os.write(Integer.toString(len).getBytes());
+    os.write(HTTP_LINE);
+    os.write(keep ? HTTP_KEEP : HTTP_CLOS);
+    os.write(HTTP_LINE);
     os.write(HTTP_LINE);
   }
 
@@ -0,0 +1,276 @@
+package b.ds;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reactor.java
+ *
+ * A non-blocking event loop for accepting clients, reading their requests and
+ * writing back their responses. Only complete requests are handed to the
+ * server for processing, so a slow client costs a buffer rather than a
+ * thread.
+ **/
+public class Reactor{
+  /**
+   * Client.Reactor.java
+   *
+   * The state of a single client connection.
+   **/
+  private class Client{
+    /* The key registered with the selector */
+    public SelectionKey key = null;
+    /* The request data read so far */
+    public Request in = null;
+    /* The response data still to be written */
+    public ByteBuffer out = null;
+    /* Whether to keep the connection after the response */
+    public boolean keep = false;
+    /* The number of requests served so far */
+    public int served = 0;
+    /* The time at which the client was last active */
+    public long last = -1;
+  }
+
+  private ServerSocketChannel ssc;
+  private Server server;
+  private Selector selector;
+  private ConcurrentLinkedQueue<Client> replies;
+  private int recBuffSize;
+  private int keepMax;
+  private int keepTimeout;
+  private int timeout;
+
+  /**
+   * Reactor()
+   *
+   * Initialise the event loop for a given server channel.
+   *
+   * @param ssc The bound server channel.
+   * @param server The server responsible for processing complete requests.
+   * @param recBuffSize The maximum request size.
+   * @param keepMax The maximum number of requests per connection.
+   * @param keepTimeout The time to wait for a further request.
+   * @param timeout The time a client may remain idle before disconnection.
+   **/
+  public Reactor(
+    ServerSocketChannel ssc,
+    Server server,
+    int recBuffSize,
+    int keepMax,
+    int keepTimeout,
+    int timeout
+  ) throws IOException{
+    this.ssc = ssc;
+    this.server = server;
+    this.recBuffSize = recBuffSize;
+    this.keepMax = keepMax;
+    this.keepTimeout = keepTimeout;
+    this.timeout = timeout;
+    replies = new ConcurrentLinkedQueue<Client>();
+    selector = Selector.open();
+    ssc.configureBlocking(false);
+    ssc.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  /**
+   * run()
+   *
+   * Run the event loop on the current thread.
+   **/
+  public void run(){
+    long sweep = System.currentTimeMillis();
+    int wait = Math.min(timeout, keepTimeout);
+    /* Outer event loop */
+    for(;;){
+      try{
+        /* Inner event loop */
+        for(;;){
+          selector.select(wait);
+          /* Switch finished clients over to writing */
+          Client c;
+          while((c = replies.poll()) != null){
+            if(c.key.isValid()){
+              c.key.interestOps(SelectionKey.OP_WRITE);
+            }
+          }
+          /* Process the ready clients */
+          Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+          while(i.hasNext()){
+            SelectionKey key = i.next();
+            i.remove();
+            try{
+              if(!key.isValid()){
+                continue;
+              }
+              if(key.isAcceptable()){
+                accept();
+              }else if(key.isReadable()){
+                read(key);
+              }else if(key.isWritable()){
+                write(key);
+              }
+            }catch(IOException e){
+              /* Only drop clients, never the server itself */
+              if(key.attachment() != null){
+                close(key);
+              }
+            }
+          }
+          /* Drop clients that have been idle for too long */
+          long now = System.currentTimeMillis();
+          if(now - sweep >= wait){
+            sweep = now;
+            for(SelectionKey key : selector.keys()){
+              Client a = (Client)(key.attachment());
+              if(a == null || !key.isValid()){
+                continue;
+              }
+              /* Connections waiting on a further request use the shorter limit */
+              boolean idle = a.served > 0 && a.out == null && a.in.length() == 0;
+              if(now - a.last >= (idle ? keepTimeout : timeout)){
+                Utils.log("Socket timeout, client may have be disconnected");
+                close(key);
+              }
+            }
+          }
+        }
+      }catch(Exception e){
+        Utils.warn("Event loop crashed, restarting");
+      }
+    }
+  }
+
+  /**
+   * reply()
+   *
+   * Queue a response to be written back to the client. This may be called
+   * from any thread.
+   *
+   * @param key The key of the client to reply to.
+   * @param data The complete response.
+   * @param keep True if the connection is to be kept alive afterwards.
+   **/
+  public void reply(SelectionKey key, byte[] data, boolean keep){
+    Client c = (Client)(key.attachment());
+    c.out = ByteBuffer.wrap(data);
+    c.keep = keep;
+    c.last = System.currentTimeMillis();
+    replies.add(c);
+    selector.wakeup();
+  }
+
+  /**
+   * accept()
+   *
+   * Accept a new client and register it for reading.
+   **/
+  private void accept() throws IOException{
+    SocketChannel sc = ssc.accept();
+    if(sc == null){
+      return;
+    }
+    sc.configureBlocking(false);
+    Client c = new Client();
+    c.in = Request.obtain(recBuffSize);
+    c.last = System.currentTimeMillis();
+    c.key = sc.register(selector, SelectionKey.OP_READ, c);
+  }
+
+  /**
+   * read()
+   *
+   * Read from the client and dispatch the request once it is complete.
+   *
+   * @param key The key of the client to be read.
+   **/
+  private void read(SelectionKey key) throws IOException{
+    Client c = (Client)(key.attachment());
+    if(c.in.read((SocketChannel)(key.channel())) < 0){
+      close(key);
+      return;
+    }
+    c.last = System.currentTimeMillis();
+    dispatch(key, c);
+  }
+
+  /**
+   * dispatch()
+   *
+   * Dispatch the next request if it is complete, or reject it if it never
+   * can be. The request stays in the client's buffer, along with anything
+   * pipelined behind it, until the response has been written.
+   *
+   * @param key The key of the client.
+   * @param c The client state.
+   **/
+  private void dispatch(SelectionKey key, Client c){
+    switch(c.in.parse()){
+      case Request.STATE_DONE :
+        key.interestOps(0);
+        server.dispatch(this, key, c.in, ++c.served < keepMax);
+        break;
+      case Request.STATE_FAIL :
+        Utils.warn("Rejected request from client");
+        c.out = ByteBuffer.wrap(c.in.reject());
+        c.keep = false;
+        key.interestOps(SelectionKey.OP_WRITE);
+        break;
+    }
+  }
+
+  /**
+   * write()
+   *
+   * Write the pending response. Once it is sent, either wait for the next
+   * request or close the client.
+   *
+   * @param key The key of the client to be written.
+   **/
+  private void write(SelectionKey key) throws IOException{
+    Client c = (Client)(key.attachment());
+    ((SocketChannel)(key.channel())).write(c.out);
+    c.last = System.currentTimeMillis();
+    if(!c.out.hasRemaining()){
+      c.out = null;
+      if(c.keep){
+        c.in.consume();
+        key.interestOps(SelectionKey.OP_READ);
+        /* Handle a request that was pipelined behind the last one */
+        if(c.in.length() > 0){
+          dispatch(key, c);
+        }
+      }else{
+        close(key);
+      }
+    }
+  }
+
+  /**
+   * close()
+   *
+   * Close the client connection, ignoring any errors.
+   *
+   * @param key The key of the client to be closed.
+   **/
+  private static void close(SelectionKey key){
+    /* NOTE: A buffer still in use by a worker is left for the collector. */
+    Client c = (Client)(key.attachment());
+    if(c != null && c.in != null && key.isValid() && key.interestOps() != 0){
+      c.in.release();
+      c.in = null;
+    }
+    key.cancel();
+    try{
+      key.channel().close();
+    }catch(IOException e){
+      /* Do nothing */
+    }
+  }
+}
@@ -0,0 +1,486 @@
+package b.ds;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Record.java
+ *
+ * Read and write compact binary records. IDs are stored as their raw bytes,
+ * numbers as variable length integers and strings as their length followed
+ * by their UTF-8 bytes.
+ *
+ * Every record begins with a zero byte, which a JSON record never does, then
+ * 'B', the kind of record and the version of its layout, so both forms can be
+ * read back whatever format is currently chosen.
+ **/
+public class Record{
+  public static final String FORMAT_JSON = "json";
+  public static final String FORMAT_BINARY = "binary";
+  public static final byte KIND_POST = 'P';
+  public static final byte KIND_USER = 'U';
+  public static final byte VERSION = 1;
+
+  private static final byte MAGIC = 0;
+  private static final byte ID_BINARY = 'B';
+  private static final int HEAD_LEN = 4;
+  private static final int ID_LEN = I512.MAX_BYTE_ARR_LEN;
+
+  private static boolean binary = false;
+
+  private byte[] buf;
+  private int pos;
+  private int end;
+
+  /**
+   * init()
+   *
+   * Initialise the static variables.
+   *
+   * @param config The shared configuration.
+   **/
+  public static void init(JSON config){
+    String format = config.get("disk").get("format").value(FORMAT_JSON);
+    if(!format.equals(FORMAT_JSON) && !format.equals(FORMAT_BINARY)){
+      Utils.warn("Unknown record format '" + format + "', using json");
+      format = FORMAT_JSON;
+    }
+    binary = format.equals(FORMAT_BINARY);
+  }
+
+  /**
+   * binary()
+   *
+   * Check whether records are to be written in the binary format.
+   *
+   * @return True if binary, otherwise false for JSON.
+   **/
+  public static boolean binary(){
+    return binary;
+  }
+
+  /**
+   * is()
+   *
+   * Check whether some stored data is a binary record of the given kind.
+   *
+   * @param data The stored data, otherwise NULL.
+   * @param kind The kind of record.
+   * @return True if a binary record of the kind, otherwise false.
+   **/
+  public static boolean is(byte[] data, byte kind){
+    return data != null        &&
+      data.length >= HEAD_LEN  &&
+      data[0] == MAGIC         &&
+      data[1] == ID_BINARY     &&
+      data[2] == kind;
+  }
+
+  /**
+   * Record()
+   *
+   * Start writing a new record.
+   *
+   * @param kind The kind of record.
+   * @param len The expected length of the record.
+   **/
+  public Record(byte kind, int len){
+    buf = new byte[Math.max(len, HEAD_LEN)];
+    pos = 0;
+    end = buf.length;
+    putByte(MAGIC);
+    putByte(ID_BINARY);
+    putByte(kind);
+    putByte(VERSION);
+  }
+
+  /**
+   * Record()
+   *
+   * Start reading a stored record.
+   *
+   * @param data The stored record.
+   * @param kind The kind of record expected.
+   **/
+  public Record(byte[] data, byte kind) throws IllegalArgumentException{
+    if(!is(data, kind)){
+      throw new IllegalArgumentException("Not a binary record of the expected kind");
+    }
+    if(data[3] != VERSION){
+      throw new IllegalArgumentException("Unknown record version " + data[3]);
+    }
+    buf = data;
+    pos = HEAD_LEN;
+    end = data.length;
+  }
+
+  /**
+   * putByte()
+   *
+   * Write a single byte.
+   *
+   * @param b The byte to be written.
+   * @return This record.
+   **/
+  public Record putByte(int b){
+    grow(1);
+    buf[pos++] = (byte)b;
+    return this;
+  }
+
+  /**
+   * putLong()
+   *
+   * Write a number using as few bytes as needed, seven bits at a time.
+   *
+   * @param v The number to be written.
+   * @return This record.
+   **/
+  public Record putLong(long v){
+    grow(10);
+    while((v & ~0x7FL) != 0){
+      buf[pos++] = (byte)((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte)v;
+    return this;
+  }
+
+  /**
+   * putI512()
+   *
+   * Write an ID as its raw bytes.
+   *
+   * @param i The ID to be written.
+   * @return This record.
+   **/
+  public Record putI512(I512 i){
+    grow(ID_LEN);
+    System.arraycopy(i.toByteArray(), 0, buf, pos, ID_LEN);
+    pos += ID_LEN;
+    return this;
+  }
+
+  /**
+   * putString()
+   *
+   * Write a string as its length and UTF-8 bytes.
+   *
+   * @param s The string to be written.
+   * @return This record.
+   **/
+  public Record putString(String s){
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    putLong(b.length);
+    grow(b.length);
+    System.arraycopy(b, 0, buf, pos, b.length);
+    pos += b.length;
+    return this;
+  }
+
+  /**
+   * getByte()
+   *
+   * Read a single byte.
+   *
+   * @return The byte read, from 0 to 255.
+   **/
+  public int getByte() throws IllegalArgumentException{
+    need(1);
+    return buf[pos++] & 0xFF;
+  }
+
+  /**
+   * getLong()
+   *
+   * Read a number written by putLong().
+   *
+   * @return The number read.
+   **/
+  public long getLong() throws IllegalArgumentException{
+    long v = 0;
+    for(int shift = 0; shift < 64; shift += 7){
+      need(1);
+      byte b = buf[pos++];
+      v |= (long)(b & 0x7F) << shift;
+      if(b >= 0){
+        return v;
+      }
+    }
+    throw new IllegalArgumentException("Number in record too long");
+  }
+
+  /**
+   * getI512()
+   *
+   * Read an ID written by putI512().
+   *
+   * @return The ID read.
+   **/
+  public I512 getI512() throws IllegalArgumentException{
+    need(ID_LEN);
+    I512 i = new I512(Arrays.copyOfRange(buf, pos, pos + ID_LEN));
+    pos += ID_LEN;
+    return i;
+  }
+
+  /**
+   * getString()
+   *
+   * Read a string written by putString().
+   *
+   * @return The string read.
+   **/
+  public String getString() throws IllegalArgumentException{
+    long len = getLong();
+    if(len < 0 || len > end - pos){
+      throw new IllegalArgumentException("String in record cut short");
+    }
+    String s = new String(buf, pos, (int)len, StandardCharsets.UTF_8);
+    pos += (int)len;
+    return s;
+  }
+
+  /**
+   * toByteArray()
+   *
+   * Get the bytes written so far.
+   *
+   * @return The record.
+   **/
+  public byte[] toByteArray(){
+    return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+  }
+
+  /**
+   * grow()
+   *
+   * Make room to write more bytes.
+   *
+   * @param n The number of bytes to be written.
+   **/
+  private void grow(int n){
+    if(pos + n > buf.length){
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+      end = buf.length;
+    }
+  }
+
+  /**
+   * need()
+   *
+   * Make sure there are enough bytes left to be read.
+   *
+   * @param n The number of bytes to be read.
+   **/
+  private void need(int n) throws IllegalArgumentException{
+    if(pos + n > end){
+      throw new IllegalArgumentException("Record cut short");
+    }
+  }
+
+  /**
+   * test()
+   *
+   * Perform tests to make sure the class is behaving correctly. Results of the
+   * test are printed to standard error output. The result of the tests is then
+   * returned from the function.
+   *
+   * @return True of success, otherwise false.
+   **/
+  public static boolean test(){
+    int[] stats = new int[]{ 0, 0 };
+    /* Run tests */
+    long[] nums = new long[]{ 0, 1, 127, 128, 16383, 16384, System.currentTimeMillis(), Long.MAX_VALUE, -1 };
+    for(long n : nums){
+      Record w = new Record(KIND_POST, 0);
+      w.putLong(n);
+      Record r = new Record(w.toByteArray(), KIND_POST);
+      stats = assurt(n == r.getLong(), stats, "Number test (" + n + ")");
+    }
+    I512 id = Utils.genRandHash();
+    I512 small = new I512("1");
+    String text = "h\u00e9llo #world \ud83d\ude00";
+    byte[] data = (new Record(KIND_USER, 16))
+      .putByte(255)
+      .putI512(id)
+      .putI512(small)
+      .putString("")
+      .putString(text)
+      .toByteArray();
+    stats = assurt(is(data, KIND_USER), stats, "Kind test");
+    stats = assurt(!is(data, KIND_POST), stats, "Other kind test");
+    stats = assurt(!is("{\"id\":\"\"}".getBytes(StandardCharsets.UTF_8), KIND_USER), stats, "JSON test");
+    Record r = new Record(data, KIND_USER);
+    stats = assurt(r.getByte() == 255, stats, "Byte test");
+    stats = assurt(id.equals(r.getI512()), stats, "Random ID test");
+    stats = assurt(small.equals(r.getI512()), stats, "Small ID test");
+    stats = assurt("".equals(r.getString()), stats, "Empty string test");
+    stats = assurt(text.equals(r.getString()), stats, "UTF-8 string test");
+    boolean thrown = false;
+    try{
+      r.getByte();
+    }catch(IllegalArgumentException e){
+      thrown = true;
+    }
+    stats = assurt(thrown, stats, "Read past end test");
+    thrown = false;
+    try{
+      r = new Record(Arrays.copyOf(data, data.length - 3), KIND_USER);
+      r.getByte();
+      r.getI512();
+      r.getI512();
+      r.getString();
+      r.getString();
+    }catch(IllegalArgumentException e){
+      thrown = true;
+    }
+    stats = assurt(thrown, stats, "Cut short test");
+    data[3] = VERSION + 1;
+    thrown = false;
+    try{
+      new Record(data, KIND_USER);
+    }catch(IllegalArgumentException e){
+      thrown = true;
+    }
+    stats = assurt(thrown, stats, "Unknown version test");
+    /* Deal with results */
+    System.err.println("Passed " + stats[1] + " out of " + stats[0] + " tests");
+    System.err.println(stats[0] == stats[1] ? "[[ SUCCESS ]]" : "[[ FAILURE ]]");
+    return stats[0] == stats[1];
+  }
+
+  /**
+   * assurt()
+   *
+   * Assert that the result was as expected.
+   *
+   * @param equal True if the result passes, otherwise false.
+   * @param stats The current statistics from running the tests.
+   * @param msg A short string explaining the test.
+   * @return The updated statistics from running the tests.
+   **/
+  private static int[] assurt(boolean equal, int[] stats, String msg){
+    System.err.print("[" + stats[0] + "]\t");
+    stats[0]++;
+    if(equal){
+      stats[1]++;
+      System.err.print("[ OK ]      \t");
+    }else{
+      System.err.print("      [FAIL]\t");
+    }
+    System.err.println(msg);
+    return stats;
+  }
+
+  /**
+   * perf()
+   *
+   * Compare the size and read time of posts stored as JSON and as binary
+   * records, using posts similar to our own.
+   **/
+  public static void perf(){
+    int TARGET_RECORDS = 10000;
+    int TARGET_RUNS = 20;
+    String[] words = (
+      "the and to of a in is that it for you this with on have be are not was " +
+      "but what just like so all about can they will one post today #news " +
+      "#music http://example.com server java people time good think really"
+    ).split(" ");
+    Random r = new Random(0);
+    I512[][] ids = new I512[TARGET_RECORDS][];
+    String[] msgs = new String[TARGET_RECORDS];
+    long[] times = new long[TARGET_RECORDS];
+    for(int x = 0; x < TARGET_RECORDS; x++){
+      ids[x] = new I512[]{ Utils.genRandHash(), Utils.genRandHash(), Utils.genRandHash() };
+      Str msg = new Str(64);
+      int n = 1 + r.nextInt(40);
+      for(int y = 0; y < n; y++){
+        msg.append(words[r.nextInt(words.length)]).append(" ");
+      }
+      msgs[x] = msg.toString();
+      times[x] = System.currentTimeMillis() - r.nextInt(Integer.MAX_VALUE);
+    }
+    String[] names = new String[]{ "json", "binary" };
+    System.err.println("Bytes\t|Encode (ns)\t|Decode (ns)\t|Description");
+    System.err.println("--------|---------------|---------------|----------------");
+    /* NOTE: The first pass warms up the JIT and is not printed. */
+    for(int m = 0; m < names.length * 2; m++){
+      boolean bin = m % names.length == 1;
+      byte[][] enc = new byte[TARGET_RECORDS][];
+      long encBytes = 0;
+      long encTime = System.nanoTime();
+      for(int x = 0; x < TARGET_RECORDS; x++){
+        if(bin){
+          enc[x] = (new Record(KIND_POST, 256))
+            .putByte(1)
+            .putI512(ids[x][0])
+            .putI512(ids[x][1])
+            .putLong(times[x])
+            .putByte(0)
+            .putI512(ids[x][2])
+            .putString(msgs[x])
+            .toByteArray();
+        }else{
+          try{
+            enc[x] = JSONWriter.local()
+              .startObject(null)
+              .string("id", ids[x][0].toString())
+              .string("userid", ids[x][1].toString())
+              .string("creation", Long.toString(times[x]))
+              .string("previous", ids[x][2].toString())
+              .string("message", msgs[x])
+              .string("state", "NONE")
+              .endObject()
+              .toByteArray();
+          }catch(Exception e){
+            throw new IllegalStateException("Unable to encode record");
+          }
+        }
+        encBytes += enc[x].length;
+      }
+      encTime = (System.nanoTime() - encTime) / TARGET_RECORDS;
+      long decTime = System.nanoTime();
+      for(int z = 0; z < TARGET_RUNS; z++){
+        for(int x = 0; x < TARGET_RECORDS; x++){
+          I512 id;
+          String msg;
+          if(bin){
+            Record rec = new Record(enc[x], KIND_POST);
+            rec.getByte();
+            id = rec.getI512();
+            rec.getI512();
+            rec.getLong();
+            rec.getByte();
+            rec.getI512();
+            msg = rec.getString();
+          }else{
+            try{
+              JSON data = new JSON(enc[x]);
+              id = new I512(data.get("id").value(null));
+              new I512(data.get("userid").value(null));
+              Long.parseLong(data.get("creation").value(null));
+              new I512(data.get("previous").value(null));
+              msg = data.get("message").value(null);
+              data.get("state").value(null);
+            }catch(Exception e){
+              throw new IllegalStateException("Unable to decode record");
+            }
+          }
+          if(!id.equals(ids[x][0]) || !msgs[x].equals(msg)){
+            throw new IllegalStateException("Decoded record does not match");
+          }
+        }
+      }
+      decTime = (System.nanoTime() - decTime) / ((long)TARGET_RECORDS * TARGET_RUNS);
+      if(m < names.length){
+        continue;
+      }
+      System.err.println(
+        (encBytes / TARGET_RECORDS) + "\t|" + encTime + "\t\t|" + decTime + "\t\t|" + names[m % names.length]
+      );
+    }
+    System.err.println("[[ FINISHED ]]");
+  }
+}
@@ -0,0 +1,270 @@
+package b.ds;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request.java
+ *
+ * An incremental reader for HTTP requests. Data is appended to a fixed size
+ * buffer as it arrives and only the new data is scanned for the end of the
+ * header, after which the Content-Length decides how much body to wait for.
+ * Requests that cannot fit in the buffer are rejected as soon as this is
+ * known. Buffers are recycled between connections rather than allocated per
+ * request.
+ **/
+public class Request{
+  public static final int STATE_MORE = 0;
+  public static final int STATE_DONE = 1;
+  public static final int STATE_FAIL = 2;
+
+  private static final byte[] HTTP_CLEN = "content-length:".getBytes();
+  private static final byte[] HTTP_LARGE = (
+    "HTTP/1.1 413 Payload Too Large\r\n" +
+    "Content-Length: 0\r\n" +
+    "Connection: close\r\n\r\n"
+  ).getBytes();
+  private static final byte[] HTTP_BAD = (
+    "HTTP/1.1 400 Bad Request\r\n" +
+    "Content-Length: 0\r\n" +
+    "Connection: close\r\n\r\n"
+  ).getBytes();
+  private static final int FREE_MAX = 256;
+
+  private static ConcurrentLinkedQueue<Request> free = new ConcurrentLinkedQueue<Request>();
+  private static AtomicInteger freeLen = new AtomicInteger(0);
+
+  private byte[] buff;
+  private ByteBuffer view;
+  private int len;
+  private int scan;
+  private int head;
+  private int body;
+  private boolean bad;
+
+  /**
+   * Request()
+   *
+   * Create a new request buffer.
+   *
+   * @param size The maximum size of a request, header and body included.
+   **/
+  private Request(int size){
+    buff = new byte[size];
+    view = ByteBuffer.wrap(buff);
+    len = 0;
+    reset();
+  }
+
+  /**
+   * obtain()
+   *
+   * Get a recycled request buffer of the given size if one is available,
+   * otherwise create a new one.
+   *
+   * @param size The maximum size of a request, header and body included.
+   * @return An empty request buffer.
+   **/
+  public static Request obtain(int size){
+    Request r = free.poll();
+    if(r != null){
+      freeLen.decrementAndGet();
+      if(r.buff.length == size){
+        return r;
+      }
+    }
+    return new Request(size);
+  }
+
+  /**
+   * release()
+   *
+   * Return this buffer for recycling. It must not be used afterwards.
+   **/
+  public void release(){
+    len = 0;
+    reset();
+    if(freeLen.incrementAndGet() <= FREE_MAX){
+      free.add(this);
+    }else{
+      freeLen.decrementAndGet();
+    }
+  }
+
+  /**
+   * read()
+   *
+   * Read whatever is available from a blocking stream into the buffer.
+   *
+   * @param is The stream to read from.
+   * @return The number of bytes read, or -1 if the stream has ended.
+   **/
+  public int read(InputStream is) throws IOException{
+    int n = is.read(buff, len, buff.length - len);
+    if(n > 0){
+      len += n;
+    }
+    return n;
+  }
+
+  /**
+   * read()
+   *
+   * Read whatever is available from a channel into the buffer.
+   *
+   * @param sc The channel to read from.
+   * @return The number of bytes read, or -1 if the channel has ended.
+   **/
+  public int read(SocketChannel sc) throws IOException{
+    view.limit(buff.length);
+    view.position(len);
+    int n = sc.read(view);
+    if(n > 0){
+      len += n;
+    }
+    return n;
+  }
+
+  /**
+   * parse()
+   *
+   * Continue parsing the data read so far.
+   *
+   * @return STATE_DONE if a whole request is held, STATE_MORE if more data
+   * is required, otherwise STATE_FAIL if the request is to be rejected.
+   **/
+  public int parse(){
+    /* Look for the end of the header in the new data only */
+    if(head < 0){
+      for(int x = scan < 3 ? 3 : scan; x < len; x++){
+        if(
+          buff[x]     == '\n' &&
+          buff[x - 1] == '\r' &&
+          buff[x - 2] == '\n' &&
+          buff[x - 3] == '\r'
+        ){
+          head = x + 1;
+          break;
+        }
+      }
+      scan = len;
+      if(head < 0){
+        return len < buff.length ? STATE_MORE : STATE_FAIL;
+      }
+      body = contentLength();
+      if(body < 0){
+        bad = true;
+        return STATE_FAIL;
+      }
+      /* Reject before reading a body that could never fit */
+      if((long)head + body > buff.length){
+        return STATE_FAIL;
+      }
+    }
+    return len >= head + body ? STATE_DONE : STATE_MORE;
+  }
+
+  /**
+   * decode()
+   *
+   * Decode the complete request held at the front of the buffer.
+   *
+   * @return The request as a String.
+   **/
+  public String decode(){
+    return new String(buff, 0, head + body, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * consume()
+   *
+   * Drop the complete request from the front of the buffer, keeping any data
+   * pipelined behind it.
+   **/
+  public void consume(){
+    int n = head + body;
+    System.arraycopy(buff, n, buff, 0, len - n);
+    len -= n;
+    reset();
+  }
+
+  /**
+   * length()
+   *
+   * Get the amount of data currently held.
+   *
+   * @return The number of bytes held in the buffer.
+   **/
+  public int length(){
+    return len;
+  }
+
+  /**
+   * reject()
+   *
+   * Get the response for a request that failed to parse.
+   *
+   * @return The raw response to be written before closing.
+   **/
+  public byte[] reject(){
+    return bad ? HTTP_BAD : HTTP_LARGE;
+  }
+
+  /**
+   * reset()
+   *
+   * Reset the parser state for the next request.
+   **/
+  private void reset(){
+    scan = 0;
+    head = -1;
+    body = 0;
+    bad = false;
+  }
+
+  /**
+   * contentLength()
+   *
+   * Find the Content-Length declared in the header, ignoring case.
+   *
+   * @return The declared length, zero if not declared or -1 if malformed.
+   **/
+  private int contentLength(){
+    int x = 0;
+    while(x < head){
+      /* Check whether this line is the one we want */
+      int y = 0;
+      while(
+        y < HTTP_CLEN.length &&
+        x + y < head &&
+        (buff[x + y] | (HTTP_CLEN[y] >= 'a' ? 0x20 : 0)) == HTTP_CLEN[y]
+      ){
+        ++y;
+      }
+      if(y == HTTP_CLEN.length){
+        x += y;
+        while(buff[x] == ' ' || buff[x] == '\t'){
+          ++x;
+        }
+        long n = 0;
+        int d = x;
+        while(buff[x] >= '0' && buff[x] <= '9' && n <= Integer.MAX_VALUE){
+          n = (n * 10) + (buff[x++] - '0');
+        }
+        boolean digits = x > d;
+        while(buff[x] == ' ' || buff[x] == '\t'){
+          ++x;
+        }
+        return digits && buff[x] == '\r' && n <= Integer.MAX_VALUE ? (int)n : -1;
+      }
+      /* Skip to the start of the next line */
+      while(x < head && buff[x++] != '\n');
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,176 @@
+package b.ds;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Response.java
+ *
+ * A reusable buffer that collects a whole response, header and body, so that
+ * it can be sent in a single write. The body is written first, leaving space
+ * at the front of the buffer for the header, which can then give the length
+ * of the body. Each worker thread keeps its own buffer between requests.
+ **/
+public class Response extends OutputStream{
+  private static final int HEAD_SPACE = 256;
+  private static final int KEEP_MAX = 1 << 20;
+
+  private static ThreadLocal<Response> local = new ThreadLocal<Response>(){
+    @Override
+    protected Response initialValue(){
+      return new Response();
+    }
+  };
+
+  private byte[] buff;
+  private int off;
+  private int len;
+  private byte[] head;
+  private int headLen;
+  private boolean inHead;
+  private boolean joined;
+
+  /**
+   * Response()
+   *
+   * Create a new, empty response buffer.
+   **/
+  private Response(){
+    buff = new byte[0];
+    head = new byte[HEAD_SPACE];
+  }
+
+  /**
+   * obtain()
+   *
+   * Get the current thread's response buffer, emptied and ready for use. The
+   * buffer must not be used after the thread has moved on to other work.
+   *
+   * @param size The expected size of the body.
+   * @return An empty response buffer.
+   **/
+  public static Response obtain(int size){
+    Response r = local.get();
+    /* NOTE: Unusually large buffers are dropped rather than kept forever. */
+    if(r.buff.length < HEAD_SPACE + size || r.buff.length > KEEP_MAX){
+      r.buff = new byte[HEAD_SPACE + size];
+    }
+    r.off = HEAD_SPACE;
+    r.len = HEAD_SPACE;
+    r.headLen = 0;
+    r.inHead = false;
+    r.joined = false;
+    return r;
+  }
+
+  /**
+   * startHead()
+   *
+   * Finish the body, after which any further writes are to the header.
+   *
+   * @return The length of the body in bytes.
+   **/
+  public int startHead(){
+    inHead = true;
+    return len - HEAD_SPACE;
+  }
+
+  @Override
+  public void write(int b){
+    if(inHead){
+      ensureHead(1);
+      head[headLen++] = (byte)b;
+    }else{
+      ensure(1);
+      buff[len++] = (byte)b;
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int o, int l){
+    if(inHead){
+      ensureHead(l);
+      System.arraycopy(b, o, head, headLen, l);
+      headLen += l;
+    }else{
+      ensure(l);
+      System.arraycopy(b, o, buff, len, l);
+      len += l;
+    }
+  }
+
+  /**
+   * writeTo()
+   *
+   * Send the complete response, header followed by body, in one write.
+   *
+   * @param os The OutputStream to write the response to.
+   **/
+  public void writeTo(OutputStream os) throws IOException{
+    join();
+    os.write(buff, off, len - off);
+  }
+
+  /**
+   * toByteArray()
+   *
+   * Copy out the complete response, header followed by body, for it to be
+   * sent later by another thread.
+   *
+   * @return The raw response.
+   **/
+  public byte[] toByteArray(){
+    join();
+    return Arrays.copyOfRange(buff, off, len);
+  }
+
+  /**
+   * join()
+   *
+   * Place the header directly in front of the body.
+   **/
+  private void join(){
+    if(joined){
+      return;
+    }
+    joined = true;
+    /* Make room if the header outgrew the space reserved for it */
+    if(headLen > HEAD_SPACE){
+      int n = headLen - HEAD_SPACE;
+      ensure(n);
+      System.arraycopy(buff, HEAD_SPACE, buff, HEAD_SPACE + n, len - HEAD_SPACE);
+      len += n;
+      off = 0;
+    }else{
+      off = HEAD_SPACE - headLen;
+    }
+    System.arraycopy(head, 0, buff, off, headLen);
+  }
+
+  /**
+   * ensure()
+   *
+   * Make sure the body has space for more data, growing the buffer if not.
+   *
+   * @param n The number of bytes about to be written.
+   **/
+  private void ensure(int n){
+    if(len + n > buff.length){
+      buff = Arrays.copyOf(buff, Math.max(buff.length * 2, len + n));
+    }
+  }
+
+  /**
+   * ensureHead()
+   *
+   * Make sure the header has space for more data, growing it if not.
+   *
+   * @param n The number of bytes about to be written.
+   **/
+  private void ensureHead(int n){
+    if(headLen + n > head.length){
+      head = Arrays.copyOf(head, Math.max(head.length * 2, headLen + n));
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package b.ds;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring.java
+ *
+ * A fixed capacity ring of the most recently added items, safe for any number
+ * of writers and readers without locking. Each write claims the next sequence
+ * number and stamps it on its slot, so readers can tell whether a slot holds
+ * the item they expect or has since been overwritten.
+ **/
+public class Ring<T>{
+  /**
+   * Slot.Ring.java
+   *
+   * An item stamped with the sequence number it was written as.
+   **/
+  private static class Slot<T>{
+    /* The sequence number of the item */
+    public final long seq;
+    /* The item itself */
+    public final T val;
+
+    public Slot(long seq, T val){
+      this.seq = seq;
+      this.val = val;
+    }
+  }
+
+  /**
+   * View.Ring.java
+   *
+   * A view of the ring as it was when taken, newest item first. Items that
+   * are overwritten whilst the view is being read are skipped.
+   **/
+  private class View implements Iterable<T>{
+    private long top;
+
+    public View(long top){
+      this.top = top;
+    }
+
+    @Override
+    public Iterator<T> iterator(){
+      return new Iterator<T>(){
+        private long seq = top;
+        private T next = find();
+
+        /**
+         * find()
+         *
+         * Find the next item still held in the ring.
+         *
+         * @return The next item, otherwise NULL if none remain.
+         **/
+        private T find(){
+          long low = Math.max(top - slots.length(), 0);
+          while(--seq >= low){
+            Slot<T> s = slots.get(index(seq));
+            if(s != null && s.seq == seq){
+              return s.val;
+            }
+          }
+          return null;
+        }
+
+        @Override
+        public boolean hasNext(){
+          return next != null;
+        }
+
+        @Override
+        public T next(){
+          if(next == null){
+            throw new NoSuchElementException();
+          }
+          T r = next;
+          next = find();
+          return r;
+        }
+
+        @Override
+        public void remove(){
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  private AtomicReferenceArray<Slot<T>> slots;
+  private AtomicLong head;
+
+  /**
+   * Ring()
+   *
+   * Initialise an empty ring.
+   *
+   * @param capacity The number of recent items to be kept.
+   **/
+  public Ring(int capacity){
+    slots = new AtomicReferenceArray<Slot<T>>(Math.max(capacity, 1));
+    head = new AtomicLong(0);
+  }
+
+  /**
+   * add()
+   *
+   * Add an item, replacing the oldest if the ring is full.
+   *
+   * @param val The item to be added.
+   **/
+  public void add(T val){
+    long seq = head.getAndIncrement();
+    Slot<T> s = new Slot<T>(seq, val);
+    int i = index(seq);
+    /* NOTE: Never replace a newer item written by a faster writer. */
+    for(;;){
+      Slot<T> cur = slots.get(i);
+      if(cur != null && cur.seq > seq){
+        return;
+      }
+      if(slots.compareAndSet(i, cur, s)){
+        return;
+      }
+    }
+  }
+
+  /**
+   * view()
+   *
+   * Get a view of the ring as it is now, without copying or locking.
+   *
+   * @return The items held, newest first.
+   **/
+  public Iterable<T> view(){
+    return new View(head.get());
+  }
+
+  /**
+   * index()
+   *
+   * Find the slot for a given sequence number.
+   *
+   * @param seq The sequence number.
+   * @return The index of the slot.
+   **/
+  private int index(long seq){
+    return (int)(seq % slots.length());
+  }
+}
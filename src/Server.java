@@ -1,11 +1,12 @@
 package b.ds;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * Server.java
@@ -16,12 +17,17 @@ public class Server extends Thread{
   private JSON config;
   private Auth auth;
   private ServerSocket ss;
-  private ExecutorService pool;
+  private Reactor reactor;
+  private Pool pool;
   private int recBuffSize;
+  private int keepMax;
+  private int keepTimeout;
+  private int keepIdle;
   private int subDirLen;
   private int inputMaxLen;
   private int tagMaxCount;
   private int authDelay;
+  private int authParkMax;
   private int postDelay;
   private String pstDir;
   private String tagDir;
@@ -37,12 +43,18 @@ public class Server extends Thread{
   public Server(JSON config){
     this.config = config;
     int poolSize = 8;
+    String poolMode = Pool.MODE_FIXED;
+    int poolLimit = 0;
     int port = 8080;
     recBuffSize = 2048;
+    keepMax = 64;
+    keepTimeout = 5000;
+    keepIdle = 4;
     String subDir = "/";
     inputMaxLen = 512;
     tagMaxCount = 4;
     authDelay = 1000;
+    authParkMax = 256;
     postDelay = 1000;
     subDirLen = 1;
     pstDir = "dat/pst";
@@ -50,11 +62,18 @@ public class Server extends Thread{
     usrDir = "dat/usr";
     boolean reuseAddr = false;
     int timeout = 10000;
+    String ioMode = "blocking";
     try{
       poolSize = Integer.parseInt(config.get("pool-size").value(poolSize + ""));
     }catch(NumberFormatException e){
       Utils.warn("Unable to find pool size value");
     }
+    poolMode = config.get("pool-mode").value(poolMode);
+    try{
+      poolLimit = Integer.parseInt(config.get("pool-limit").value(poolLimit + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find pool limit value");
+    }
     try{
       port = Integer.parseInt(config.get("port").value(port + ""));
     }catch(NumberFormatException e){
@@ -65,6 +84,26 @@ public class Server extends Thread{
     }catch(NumberFormatException e){
       Utils.warn("Unable to find receive buffer size value");
     }
+    try{
+      keepMax = Integer.parseInt(config.get("keep-alive").get("max-requests").value(keepMax + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find keep-alive maximum requests value");
+    }
+    try{
+      keepTimeout = Integer.parseInt(config.get("keep-alive").get("timeout-ms").value(keepTimeout + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find keep-alive timeout value");
+    }
+    try{
+      keepIdle = Integer.parseInt(config.get("keep-alive").get("blocking-idle").value(keepIdle + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find keep-alive blocking idle value");
+    }
+    /* NOTE: An idle blocking connection holds a worker, so leave some free. */
+    if(poolMode.equals(Pool.MODE_FIXED) && keepIdle >= poolSize){
+      Utils.warn("Keep-alive blocking idle must be below the pool size");
+      keepIdle = poolSize / 2;
+    }
     reuseAddr = config.get("reuse-addr").value("false").equals("true");
     try{
       inputMaxLen = Integer.parseInt(config.get("input").get("max-length").value(inputMaxLen + ""));
@@ -81,6 +120,11 @@ public class Server extends Thread{
     }catch(NumberFormatException e){
       Utils.warn("Unable to find authentication delay value");
     }
+    try{
+      authParkMax = Integer.parseInt(config.get("authentication").get("max-parked").value(authParkMax + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find authentication maximum parked value");
+    }
     try{
       postDelay = Integer.parseInt(config.get("post").get("delay-ms").value(postDelay + ""));
     }catch(NumberFormatException e){
@@ -91,6 +135,7 @@ public class Server extends Thread{
     }catch(NumberFormatException e){
       Utils.warn("Unable to find timeout value");
     }
+    ioMode = config.get("io-mode").value(ioMode);
     subDir = config.get("sub-dir").value("/");
     subDirLen = subDir.length();
     pstDir = config.get("data").get("post-dir").value(pstDir);
@@ -98,21 +143,35 @@ public class Server extends Thread{
     usrDir = config.get("data").get("user-dir").value(usrDir);
     /* Log out server values */
     Utils.log("Requested pool size is '"            + poolSize    + "'");
+    Utils.log("Requested pool mode is '"            + poolMode    + "'");
+    Utils.log("Requested pool limit is '"           + poolLimit   + "'");
     Utils.log("Requested port is '"                 + port        + "'");
     Utils.log("Requested receive buffer size is '"  + recBuffSize + "'");
+    Utils.log("Requested keep-alive maximum is '"   + keepMax     + "'");
+    Utils.log("Requested keep-alive timeout is '"   + keepTimeout + "'");
+    Utils.log("Requested keep-alive idle is '"      + keepIdle    + "'");
     Utils.log("Requested reuse address is '"        + reuseAddr   + "'");
     Utils.log("Requested input maximum length is '" + inputMaxLen + "'");
     Utils.log("Requested tag maximum count is '"    + tagMaxCount + "'");
     Utils.log("Requested authentication delay is '" + authDelay   + "'");
+    Utils.log("Requested authentication parked is '" + authParkMax + "'");
     Utils.log("Requested post delay is '"           + postDelay   + "'");
     Utils.log("Requested timeout is '"              + timeout     + "'");
+    Utils.log("Requested IO mode is '"              + ioMode      + "'");
     Utils.log("Requested sub directory is '"        + subDir      + "'");
     Utils.log("Requested post directory is '"       + pstDir      + "'");
     Utils.log("Requested tag directory is '"        + tagDir      + "'");
     Utils.log("Requested user directory is '"       + usrDir      + "'");
     /* Setup server socket */
+    ServerSocketChannel ssc = null;
     try{
-      ss = new ServerSocket(port);
+      if(ioMode.equals("nio")){
+        ssc = ServerSocketChannel.open();
+        ss = ssc.socket();
+        ss.bind(new InetSocketAddress(port));
+      }else{
+        ss = new ServerSocket(port);
+      }
       Utils.log("Binded server at " + port);
     }catch(IOException e){
       ss = null;
@@ -138,14 +197,21 @@ public class Server extends Thread{
       }catch(SocketException e){
         Utils.warn("Unable to set timeout");
       }
+      /* Setup event loop if requested */
+      if(ssc != null){
+        try{
+          reactor = new Reactor(ssc, this, recBuffSize, keepMax, keepTimeout, timeout);
+          Utils.log("Server event loop set");
+        }catch(IOException e){
+          ss = null;
+          Utils.warn("Unable to setup event loop");
+        }
+      }
     }
     /* Setup thread pool */
-    pool = Executors.newFixedThreadPool(poolSize);
+    pool = new Pool(poolMode, poolSize, poolLimit);
     /* Initialise shared variables */
-    auth = new Auth(config);
-    Data.init(config);
-    Post.init(auth);
-    Tag.init(config);
+    auth = initData(config, pool);
     Handler.init(config);
     HandlerAbout.init(config);
     HandlerEmbed.init(config);
@@ -158,6 +224,87 @@ public class Server extends Thread{
     HandlerUser.init(config);
   }
 
+  /**
+   * initData()
+   *
+   * Initialise the stored data, applying anything left in the journal.
+   *
+   * @param config The configuration file.
+   * @param pool The pool requests are processed on, otherwise NULL.
+   * @return The loaded users.
+   **/
+  private static Auth initData(final JSON config, Pool pool){
+    Data.init(config);
+    Codec.init(config);
+    Record.init(config);
+    Auth auth = new Auth(config);
+    Post.init(config, auth);
+    Tag.init(config);
+    Timeline.init(config, pool);
+    Post.recover();
+    /* Move anything left in the flat layout into shards in the background */
+    Thread t = new Thread(new Runnable(){
+      @Override
+      public void run(){
+        shardAll(config);
+      }
+    }, "migrate");
+    t.setDaemon(true);
+    t.start();
+    return auth;
+  }
+
+  /**
+   * convert()
+   *
+   * Write all users and posts again in the configured record format and
+   * codec, without starting the server.
+   *
+   * @param config The configuration file.
+   **/
+  public static void convert(JSON config){
+    Auth auth = initData(config, null);
+    int users = auth.convert();
+    Utils.log("Converted " + users + " of " + auth.getNumUsers() + " users");
+    int posts = Post.convert();
+    Utils.log("Converted " + posts + " posts");
+  }
+
+  /**
+   * migrate()
+   *
+   * Move users, timelines and posts from before the post log out of the flat
+   * layout and into their shards. This may be run whilst the server is
+   * running.
+   *
+   * @param config The configuration file.
+   **/
+  public static void migrate(JSON config){
+    Data.init(config);
+    shardAll(config);
+  }
+
+  /**
+   * shardAll()
+   *
+   * Move everything named by ID in the data directories into shards.
+   *
+   * @param config The configuration file.
+   **/
+  private static void shardAll(JSON config){
+    String[] dirs = new String[]{
+      config.get("data").get("user-dir").value("dat/usr"),
+      config.get("data").get("timeline-dir").value("dat/tln"),
+      config.get("data").get("post-dir").value("dat/pst")
+    };
+    for(String dir : dirs){
+      int n = Data.migrate(dir);
+      if(n > 0){
+        Utils.log("Moved " + n + " files into shards in " + dir);
+      }
+    }
+  }
+
   /**
    * run()
    *
@@ -170,6 +317,11 @@ public class Server extends Thread{
       Utils.warn("Cannot start main server loop");
       return;
     }
+    /* Hand over to the event loop if requested */
+    if(reactor != null){
+      reactor.run();
+      return;
+    }
     /* Outer server main loop */
     for(;;){
       try{
@@ -181,12 +333,17 @@ public class Server extends Thread{
                 ss.accept(),
                 System.currentTimeMillis(),
                 recBuffSize,
+                keepMax,
+                keepTimeout,
+                keepIdle,
                 subDirLen,
                 inputMaxLen,
                 tagMaxCount,
                 authDelay,
+                authParkMax,
                 postDelay,
                 auth,
+                pool,
                 pstDir,
                 tagDir,
                 usrDir
@@ -201,4 +358,38 @@ public class Server extends Thread{
       }
     }
   }
+
+  /**
+   * dispatch()
+   *
+   * Process a complete request read by the event loop.
+   *
+   * @param reactor The event loop the request was read by.
+   * @param key The key of the client that made the request.
+   * @param req The complete request.
+   * @param more True if the connection may serve further requests.
+   **/
+  public void dispatch(Reactor reactor, SelectionKey key, Request req, boolean more){
+    pool.execute(
+      new Process(
+        reactor,
+        key,
+        req,
+        more,
+        System.currentTimeMillis(),
+        recBuffSize,
+        subDirLen,
+        inputMaxLen,
+        tagMaxCount,
+        authDelay,
+        authParkMax,
+        postDelay,
+        auth,
+        pool,
+        pstDir,
+        tagDir,
+        usrDir
+      )
+    );
+  }
 }
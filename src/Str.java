@@ -1,101 +1,159 @@
 package b.ds;
 
-import java.lang.reflect.Field;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
 
 /**
  * Str.java
  *
- * A super simple and fast string implementation. It assumes ASCII (7 bit
- * characters) are used and makes uses of Java reflection to speed-up the
- * retrieval of String data.
+ * A super simple and fast string builder. Text is held as UTF-8 in a single
+ * growable byte array, so a page can be written out as it is built without
+ * converting it again. ASCII, which is nearly everything we write, is copied
+ * across a character at a time and numbers are written without first making
+ * a String.
  *
- * NOTE: This class requires Java 9 or above due to some changes in the way in
- * which Strings are handled internally.
+ * NOTE: Lengths and positions are in bytes, which are only the same as
+ * characters for ASCII, so this is not a CharSequence.
  **/
-public final class Str implements java.io.Serializable, Comparable<Str>, CharSequence{
-  private static Field stringField;
-  private static int padSkip;
+public final class Str implements java.io.Serializable, Comparable<Str>{
+  /* NOTE: Each pair of characters is the two digits of its position. */
+  private static final byte[] DIGITS = (
+    "00010203040506070809101112131415161718192021222324252627282930313233343536373839" +
+    "40414243444546474849505152535455565758596061626364656667686970717273747576777879" +
+    "8081828384858687888990919293949596979899"
+  ).getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
 
-  static{
-    try{
-      stringField = String.class.getDeclaredField("value");
-    }catch(NoSuchFieldException e){
-      e.printStackTrace();
-    }
-    stringField.setAccessible(true);
-    try{
-      char[] d = (char[])(stringField.get("#"));
-      padSkip = d.length;
-    }catch(IllegalAccessException e){
-      e.printStackTrace();
-    }
-  }
-
-  private char[][] data;
-  private int cap;
-  private int idx;
+  private byte[] data;
   private int len;
 
   public Str(int capacity){
-    data = new char[capacity][];
-    cap = capacity;
-    idx = 0;
+    data = new byte[Math.max(capacity, 16)];
     len = 0;
   }
 
   public Str(String s){
-    this(1);
-    try{
-      data[idx] = (char[])(stringField.get(s));
-    }catch(IllegalAccessException e){
-      e.printStackTrace();
-    }
-    len = data[idx].length;
-    ++idx;
+    this(s.length());
+    append(s);
   }
 
   public Str(char[] data){
-    this(1);
-    this.data[idx] = data;
-    len = this.data[idx].length;
-    ++idx;
+    this(data.length);
+    append(data);
   }
 
   public Str(char[] data, int beginIndex, int endIndex){
-    this(1);
-    len = endIndex - beginIndex;
-    this.data[idx] = new char[len];
-    System.arraycopy(data, beginIndex, this.data[idx], 0, len);
-    ++idx;
+    this(endIndex - beginIndex);
+    append(new String(data, beginIndex, endIndex - beginIndex));
   }
 
+  @SuppressWarnings("deprecation")
   public Str append(String s){
-    /* Check capacity */
-    if(idx >= cap){
-      Utils.warn("Out of capacity, generating more");
-      expand(cap * 2);
+    int n = s.length();
+    int x = 0;
+    while(x < n && s.charAt(x) < 0x80){
+      ++x;
     }
-    /* Add the array */
-    try{
-      data[idx] = (char[])(stringField.get(s));
-    }catch(IllegalAccessException e){
-      e.printStackTrace();
+    /* NOTE: Copying the low byte of each character is only right for ASCII. */
+    room(x);
+    s.getBytes(0, x, data, len);
+    len += x;
+    if(x < n){
+      /* Leave anything else to the UTF-8 encoder */
+      append(s.substring(x).getBytes(StandardCharsets.UTF_8));
     }
-    len += data[idx].length;
-    ++idx;
     return this;
   }
 
   public Str append(char[] s){
-    /* Check capacity */
-    if(idx >= cap){
-      Utils.warn("Out of capacity, generating more");
-      expand(cap * 2);
-    }
-    /* Add the array */
-    data[idx] = s;
-    len += data[idx].length;
-    ++idx;
+    return append(new String(s));
+  }
+
+  /**
+   * append()
+   *
+   * Append a single character, encoded as UTF-8.
+   *
+   * @param c The character to be appended.
+   * @return This object.
+   **/
+  public Str append(char c){
+    if(c < 0x80){
+      room(1);
+      data[len++] = (byte)c;
+      return this;
+    }
+    return append(String.valueOf(c));
+  }
+
+  /**
+   * append()
+   *
+   * Append bytes that are already UTF-8.
+   *
+   * @param b The bytes to be appended.
+   * @return This object.
+   **/
+  public Str append(byte[] b){
+    room(b.length);
+    System.arraycopy(b, 0, data, len, b.length);
+    len += b.length;
+    return this;
+  }
+
+  /**
+   * append()
+   *
+   * Append a number in decimal, without creating a String.
+   *
+   * @param n The number to be appended.
+   * @return This object.
+   **/
+  public Str append(int n){
+    return append((long)n);
+  }
+
+  /**
+   * append()
+   *
+   * Append a number in decimal, without creating a String.
+   *
+   * @param n The number to be appended.
+   * @return This object.
+   **/
+  public Str append(long n){
+    if(n == Long.MIN_VALUE){
+      return append(MIN_LONG);
+    }
+    /* Count the digits */
+    long v = n < 0 ? -n : n;
+    int d = 1;
+    for(long t = v; t >= 10; t /= 10){
+      ++d;
+    }
+    int end = len + d + (n < 0 ? 1 : 0);
+    room(end - len);
+    if(n < 0){
+      data[len] = '-';
+    }
+    /* Write two digits at a time from the end */
+    int p = end;
+    while(v >= 100){
+      int r = (int)(v % 100);
+      v /= 100;
+      data[--p] = DIGITS[r * 2 + 1];
+      data[--p] = DIGITS[r * 2];
+    }
+    if(v >= 10){
+      data[--p] = DIGITS[(int)v * 2 + 1];
+      data[--p] = DIGITS[(int)v * 2];
+    }else{
+      data[--p] = (byte)('0' + v);
+    }
+    len = end;
     return this;
   }
 
@@ -103,55 +161,47 @@ public final class Str implements java.io.Serializable, Comparable<Str>, CharSeq
     if(this.len != that.len){
       return this.len < that.len ? -1 : 1;
     }
-    /* Setup count */
-    int z = 0;
-    /* Setup indexes */
-    int a = 0;
-    int b = 0;
-    /* Setup offsets */
-    int x = 0;
-    int y = 0;
-    while(z++ < this.len){
-      /* Perform test */
-      if(this.data[a][x] != that.data[b][y]){
-        return this.data[a][x] < that.data[b][y] ? -1 : 1;
-      }
-      /* Increment this */
-      if(++x >= this.data[a].length){
-        ++a;
-        x = 0;
-      }
-      /* Increment that */
-      if(++y >= this.data[b].length){
-        ++b;
-        y = 0;
+    for(int x = 0; x < len; x++){
+      if(this.data[x] != that.data[x]){
+        return (this.data[x] & 0xFF) < (that.data[x] & 0xFF) ? -1 : 1;
       }
     }
     return 0;
   }
 
-  public CharSequence subSequence(int beginIndex, int endIndex){
-    return this.substring(beginIndex, endIndex);
-  }
-
+  /**
+   * substring()
+   *
+   * Copy out a range of the string.
+   *
+   * @param beginIndex The offset of the first byte.
+   * @param endIndex The offset after the last byte.
+   * @return The bytes in the range as a new string.
+   **/
   public Str substring(int beginIndex, int endIndex){
-    char[] val = new char[endIndex - beginIndex];
-    for(int i = 0; i < endIndex - beginIndex; i++){
-      val[i] = (char)(charAt(i));
+    if(beginIndex < 0 || endIndex > len || beginIndex > endIndex){
+      throw new IndexOutOfBoundsException("Range " + beginIndex + " to " + endIndex + " is out of bounds!");
     }
-    return new Str(val, beginIndex, endIndex);
+    Str s = new Str(endIndex - beginIndex);
+    System.arraycopy(data, beginIndex, s.data, 0, endIndex - beginIndex);
+    s.len = endIndex - beginIndex;
+    return s;
   }
 
+  /**
+   * charAt()
+   *
+   * Get a single byte of the string, which is only a whole character for
+   * ASCII.
+   *
+   * @param index The offset of the byte.
+   * @return The byte as an unsigned value.
+   **/
   public char charAt(int index){
-    int c = 0;
-    for(int i = 0; i < idx; i++){
-      if(c + data[i].length > index){
-        return (char)(data[i][index - c]);
-      }else{
-        c += data[i].length;
-      }
+    if(index < 0 || index >= len){
+      throw new IndexOutOfBoundsException("Index " + index + " is out of bounds!");
     }
-    throw new IndexOutOfBoundsException("Index " + index + " is out of bounds!");
+    return (char)(data[index] & 0xFF);
   }
 
   /**
@@ -163,14 +213,13 @@ public final class Str implements java.io.Serializable, Comparable<Str>, CharSeq
    **/
   public void expand(int capacity){
     /* Make sure it is actually expanding */
-    if(capacity < cap){
+    if(capacity <= data.length){
       return;
     }
     /* Perform expansion */
-    char [][] d = new char[capacity][];
-    System.arraycopy(data, 0, d, 0, idx);
+    byte[] d = new byte[capacity];
+    System.arraycopy(data, 0, d, 0, len);
     data = d;
-    cap = capacity;
   }
 
   /**
@@ -178,21 +227,21 @@ public final class Str implements java.io.Serializable, Comparable<Str>, CharSeq
    *
    * Check the capacity of this object.
    *
-   * @return The capacity of this objects.
+   * @return The capacity of this object in bytes.
    **/
   public int capacity(){
-    return cap;
+    return data.length;
   }
 
   /**
    * remaining()
    *
-   * Check the remaining capacity of this objects.
+   * Check the remaining capacity of this object.
    *
-   * @return The remaining capacity for this object.
+   * @return The number of bytes that can be added before growing.
    **/
   public int remaining(){
-    return cap - idx;
+    return data.length - len;
   }
 
   /**
@@ -200,7 +249,7 @@ public final class Str implements java.io.Serializable, Comparable<Str>, CharSeq
    *
    * Returns the current length of the array.
    *
-   * @return The current length of the array.
+   * @return The current length of the array in bytes.
    **/
   public int length(){
     return len;
@@ -209,24 +258,212 @@ public final class Str implements java.io.Serializable, Comparable<Str>, CharSeq
   /**
    * toByteArray()
    *
-   * Encodes the string as 7 bit ASCII. This ignores all encoding, so be
-   * CAREFUL.
+   * Copy out the string as UTF-8.
    *
-   * @return The convert char array.
+   * @return The bytes of the string.
    **/
   public byte[] toByteArray(){
-    int z = 0;
-    byte[] r = new byte[len / padSkip];
-    for(int i = 0; i < idx; i++){
-      for(int x = 0; x < data[i].length; x += padSkip){
-        r[z++] = (byte)(data[i][x]);
-      }
-    }
+    byte[] r = new byte[len];
+    System.arraycopy(data, 0, r, 0, len);
     return r;
   }
 
+  /**
+   * writeTo()
+   *
+   * Write the string to a stream as UTF-8, without copying it.
+   *
+   * @param os The stream to be written to.
+   **/
+  public void writeTo(OutputStream os) throws IOException{
+    os.write(data, 0, len);
+  }
+
   @Override
   public String toString(){
-    return new String(toByteArray());
+    return new String(data, 0, len, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * room()
+   *
+   * Make sure there is room for some more bytes, growing the array if
+   * needed.
+   *
+   * @param n The number of bytes to be added.
+   **/
+  private void room(int n){
+    if(len + n > data.length){
+      expand(Math.max(data.length * 2, len + n));
+    }
+  }
+
+  /**
+   * test()
+   *
+   * Test that the string builder works as expected.
+   *
+   * @return True if all tests passed, otherwise false.
+   **/
+  public static boolean test(){
+    int[] stats = new int[]{ 0, 0 };
+    /* Run tests */
+    Str s = new Str(1);
+    s.append("<a href=\"").append('/').append("\">").append(42).append("</a>");
+    stats = assurt("<a href=\"/\">42</a>".equals(s.toString()), stats, "ASCII test");
+    stats = assurt(s.length() == 18 && s.capacity() >= 18, stats, "Growth test");
+    long[] nums = new long[]{
+      0, 7, 10, 99, 100, 12345, -1, -10, -99, -100, Integer.MAX_VALUE,
+      Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE
+    };
+    boolean same = true;
+    for(long n : nums){
+      same &= Long.toString(n).equals((new Str(1)).append(n).toString());
+    }
+    stats = assurt(same, stats, "Long test");
+    same = true;
+    for(int n = -1000; n <= 1000; n++){
+      same &= Integer.toString(n).equals((new Str(1)).append(n).toString());
+    }
+    stats = assurt(same, stats, "Int test");
+    String text = "h\u00e9llo \u20ac \ud83d\ude00 end";
+    s = (new Str(4)).append("a").append(text).append('\u00e9');
+    stats = assurt(("a" + text + "\u00e9").equals(s.toString()), stats, "UTF-8 test");
+    stats = assurt(
+      s.length() == ("a" + text + "\u00e9").getBytes(StandardCharsets.UTF_8).length,
+      stats,
+      "UTF-8 length test"
+    );
+    s = new Str(new char[]{ 'a', 'b', 'c', 'd' }, 1, 3);
+    stats = assurt("bc".equals(s.toString()), stats, "Char array test");
+    s = new Str("hello world");
+    stats = assurt("world".equals(s.substring(6, 11).toString()) && s.charAt(4) == 'o', stats, "Substring test");
+    stats = assurt(
+      s.compareTo(new Str("hello world")) == 0 &&
+      s.compareTo(new Str("hello there")) > 0 &&
+      s.compareTo(new Str("hello")) > 0,
+      stats,
+      "Compare test"
+    );
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try{
+      s.writeTo(os);
+    }catch(IOException e){
+      /* Do nothing */
+    }
+    stats = assurt("hello world".equals(new String(os.toByteArray(), StandardCharsets.UTF_8)), stats, "Write test");
+    /* Deal with results */
+    System.err.println("Passed " + stats[1] + " out of " + stats[0] + " tests");
+    System.err.println(stats[0] == stats[1] ? "[[ SUCCESS ]]" : "[[ FAILURE ]]");
+    return stats[0] == stats[1];
+  }
+
+  /**
+   * perf()
+   *
+   * Compare building and writing out pages with Str and with StringBuilder.
+   * In the manner of JMH, each case is warmed up first, then timed over a
+   * number of iterations and the results consumed, so that the JIT cannot
+   * skip the work. The mean and standard deviation per page are printed.
+   **/
+  public static void perf(){
+    int TARGET_WARMUP = 5;
+    int TARGET_ITERATIONS = 10;
+    int TARGET_PAGES = 2000;
+    int TARGET_POSTS = 16;
+    Random r = new Random(0);
+    final long[] sink = new long[]{ 0 };
+    OutputStream os = new OutputStream(){
+      @Override
+      public void write(int b){
+        sink[0] += b;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len){
+        sink[0] += len + b[off];
+      }
+    };
+    String[] ids = new String[TARGET_POSTS];
+    String[] msgs = new String[TARGET_POSTS];
+    long[] times = new long[TARGET_POSTS];
+    for(int x = 0; x < TARGET_POSTS; x++){
+      ids[x] = Utils.genRandHash().toString();
+      msgs[x] = "a message of some length, with a #tag and @user and so on " + r.nextInt();
+      times[x] = System.currentTimeMillis() - r.nextInt(Integer.MAX_VALUE);
+    }
+    String[] names = new String[]{ "Str", "StringBuilder" };
+    System.err.println("Mean (ns)\t|Std dev (ns)\t|Description");
+    System.err.println("----------------|---------------|----------------");
+    for(int m = 0; m < names.length; m++){
+      double[] res = new double[TARGET_ITERATIONS];
+      for(int i = 0; i < TARGET_WARMUP + TARGET_ITERATIONS; i++){
+        long t = System.nanoTime();
+        try{
+          for(int p = 0; p < TARGET_PAGES; p++){
+            if(m == 0){
+              Str s = new Str(256);
+              for(int x = 0; x < TARGET_POSTS; x++){
+                s.append("<div><a href=\"/p/").append(ids[x]).append("\">")
+                  .append(times[x]).append("</a> ").append(msgs[x])
+                  .append(" <i>").append(x).append("</i></div>");
+              }
+              s.writeTo(os);
+            }else{
+              StringBuilder s = new StringBuilder(256);
+              for(int x = 0; x < TARGET_POSTS; x++){
+                s.append("<div><a href=\"/p/").append(ids[x]).append("\">")
+                  .append(times[x]).append("</a> ").append(msgs[x])
+                  .append(" <i>").append(x).append("</i></div>");
+              }
+              os.write(s.toString().getBytes(StandardCharsets.UTF_8));
+            }
+          }
+        }catch(IOException e){
+          throw new IllegalStateException("Unable to write page");
+        }
+        t = System.nanoTime() - t;
+        if(i >= TARGET_WARMUP){
+          res[i - TARGET_WARMUP] = (double)t / TARGET_PAGES;
+        }
+      }
+      double mean = 0;
+      for(double d : res){
+        mean += d / res.length;
+      }
+      double dev = 0;
+      for(double d : res){
+        dev += (d - mean) * (d - mean) / res.length;
+      }
+      System.err.println(
+        String.format("%.1f", mean) + "\t\t|" + String.format("%.1f", Math.sqrt(dev)) + "\t\t|" + names[m]
+      );
+    }
+    /* NOTE: Printed so that the work cannot be optimised away. */
+    System.err.println("(" + sink[0] + ")");
+    System.err.println("[[ FINISHED ]]");
+  }
+
+  /**
+   * assurt()
+   *
+   * Assert that the result was as expected.
+   *
+   * @param equal True if the result passes, otherwise false.
+   * @param stats The current statistics from running the tests.
+   * @param msg A short string explaining the test.
+   * @return The updated statistics from running the tests.
+   **/
+  private static int[] assurt(boolean equal, int[] stats, String msg){
+    System.err.print("[" + stats[0] + "]\t");
+    stats[0]++;
+    if(equal){
+      stats[1]++;
+      System.err.print("[ OK ]      \t");
+    }else{
+      System.err.print("      [FAIL]\t");
+    }
+    System.err.println(msg);
+    return stats;
   }
 }
@@ -1,18 +1,50 @@
 package b.ds;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Tag.java
  *
- * A thin wrapper for handling tags.
+ * A thin wrapper for handling tags. The most recent entries of each tag file
+ * are read through a memory mapping held in a bounded cache, so that popular
+ * tags are served straight from the page cache without opening the file each
+ * time. Only a window at the end of the file is mapped, however large the tag
+ * grows, and pages older than the window are read directly.
  **/
 public class Tag{
   private static final int ENTRY_LEN = ((new I512("0")).toString() + "\n").length();
+  private static final int WRITE_STRIPES = 256;
+
+  /**
+   * Mapping.Tag.java
+   *
+   * A read only mapping of the last entries of a tag file, along with the
+   * write count it was mapped at.
+   **/
+  private static class Mapping{
+    /* The mapped entries */
+    public MappedByteBuffer map = null;
+    /* The number of the first entry mapped */
+    public int first = 0;
+    /* The number of whole entries in the file */
+    public int entries = 0;
+    /* The write count of the tag's stripe when mapped */
+    public long writes = -1;
+  }
 
   private static String pstDir;
   private static int maxTagLen;
   private static int minTagLen;
+  private static int mapEntries;
+  private static Cache<String, Mapping> maps;
+  private static AtomicLongArray writes;
 
   /**
    * init()
@@ -38,6 +70,20 @@ public class Tag{
     }catch(NumberFormatException e){
       Utils.warn("Unable to find minimum tag length value");
     }
+    long mapBytes = 64 * 1024 * 1024;
+    try{
+      mapBytes = Long.parseLong(config.get("tag").get("map-bytes").value(Long.toString(mapBytes)));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find tag map bytes value");
+    }
+    mapEntries = 1024;
+    try{
+      mapEntries = Integer.parseInt(config.get("tag").get("map-entries").value(Integer.toString(mapEntries)));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find tag map entries value");
+    }
+    maps = new Cache<String, Mapping>(mapBytes, 16, Cache.POLICY_SLRU);
+    writes = new AtomicLongArray(WRITE_STRIPES);
   }
 
   /**
@@ -62,20 +108,96 @@ public class Tag{
     if(tag == null){
       return null;
     }
-    /* Read the results */
-    String[] entries = Data.readRearLines(loc + "/" + tag, ENTRY_LEN, offset, length);
-    if(entries != null){
-      /* Try to convert each post */
-      for(int x = 0; x < entries.length; x++){
-        Post post = Post.readPost(pstDir, entries[x].trim());
-        if(post != null){
-          results.add(post);
-        }
+    /* Find the entries for the page, most recent first */
+    String path = loc + "/" + tag;
+    Mapping m = map(path);
+    if(m == null){
+      return results;
+    }
+    int start = m.entries - 1 - offset;
+    int end = Math.max(m.entries - offset - length, 0);
+    if(start < end){
+      return results;
+    }
+    ByteBuffer b = m.map;
+    int base = m.first;
+    if(end < m.first){
+      /* Older pages lie outside the mapping, so read them directly */
+      b = Data.readAt(path, (long)end * ENTRY_LEN, (start - end + 1) * ENTRY_LEN);
+      base = end;
+      if(b == null || b.remaining() < (start - end + 1) * ENTRY_LEN){
+        Utils.warn("Unable to read tag file");
+        return results;
+      }
+    }
+    /* NOTE: Reading posts reuses the read buffer, so parse the IDs first. */
+    ArrayList<I512> ids = new ArrayList<I512>(start - end + 1);
+    for(int x = start; x >= end; x--){
+      try{
+        ids.add(I512.parseBase64(b, (x - base) * ENTRY_LEN, ENTRY_LEN - 1));
+      }catch(RuntimeException e){
+        Utils.warn("Bad entry in tag file");
+      }
+    }
+    for(I512 id : ids){
+      Post post = Post.readPost(pstDir, id);
+      if(post != null){
+        results.add(post);
       }
     }
     return results;
   }
 
+  /**
+   * map()
+   *
+   * Get the mapping for the end of a tag file, mapping it again if it has
+   * been written to since.
+   *
+   * @param path The path of the tag file.
+   * @return The mapping, otherwise NULL if the tag file cannot be read.
+   **/
+  private static Mapping map(String path){
+    int stripe = (path.hashCode() & 0x7FFFFFFF) % WRITE_STRIPES;
+    /* NOTE: Read the write count first, so a write during mapping is seen. */
+    long w = writes.get(stripe);
+    Mapping m = maps.get(path);
+    if(m != null && m.writes == w){
+      return m;
+    }
+    File file = new File(path);
+    if(!file.isFile()){
+      return null;
+    }
+    RandomAccessFile raf = null;
+    try{
+      raf = new RandomAccessFile(file, "r");
+      FileChannel fc = raf.getChannel();
+      /* Only map whole entries, in case an append is part way through */
+      int entries = (int)Math.min(fc.size() / ENTRY_LEN, Integer.MAX_VALUE);
+      int first = Math.max(entries - mapEntries, 0);
+      m = new Mapping();
+      m.map = fc.map(FileChannel.MapMode.READ_ONLY, (long)first * ENTRY_LEN, (long)(entries - first) * ENTRY_LEN);
+      m.first = first;
+      m.entries = entries;
+      m.writes = w;
+    }catch(IOException e){
+      Utils.warn("Unable to map tag file");
+      return null;
+    }finally{
+      if(raf != null){
+        try{
+          raf.close();
+        }catch(IOException e){
+          /* Do nothing */
+        }
+      }
+    }
+    /* NOTE: The mapping stays valid once the file is closed. */
+    maps.put(path, m, (m.entries - m.first) * ENTRY_LEN);
+    return m;
+  }
+
   /**
    * writeTag()
    *
@@ -97,10 +219,38 @@ public class Tag{
       return null;
     }
     /* Write the tag */
-    Data.append(loc + "/" +  tag, post.id.toString() + "\n");
+    String path = loc + "/" + tag;
+    Data.append(path, post.id.toString() + "\n");
+    /* Have readers map the file again to see the new entry */
+    writes.incrementAndGet((path.hashCode() & 0x7FFFFFFF) % WRITE_STRIPES);
     return post;
   }
 
+  /**
+   * hasPost()
+   *
+   * Check whether a post is among the most recent entries for a tag.
+   *
+   * @param loc The location of the tags.
+   * @param tag The tag to be checked.
+   * @param id The ID of the post.
+   * @param depth The number of recent entries to check.
+   * @return True if the post was found, otherwise false.
+   **/
+  public static boolean hasPost(String loc, String tag, I512 id, int depth){
+    tag = sanitize(tag);
+    if(loc == null || tag == null || id == null){
+      return false;
+    }
+    String entry = id.toString() + "\n";
+    for(String line : Data.readRearLines(loc + "/" + tag, ENTRY_LEN, 0, depth)){
+      if(entry.equals(line)){
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * sanitize()
    *
@@ -0,0 +1,302 @@
+package b.ds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Timeline.java
+ *
+ * A per-user index of posts, in the same fixed width format as the tag files.
+ * Each post made or quoted by a user is appended to their timeline, so a page
+ * at any offset is found with a single positioned read. When requests run on
+ * virtual threads the posts on it are read in parallel, otherwise one after
+ * another so that a fixed pool never waits on itself.
+ *
+ * Users that posted before timelines existed have theirs built once from the
+ * chain of previous posts, the first time it is needed.
+ **/
+public class Timeline{
+  private static final int ENTRY_LEN = ((new I512("0")).toString() + "\n").length();
+  private static final int LOCK_STRIPES = 64;
+
+  private static String pstDir;
+  private static String tlnDir;
+  private static Pool readers;
+  private static int readThreads;
+  private static ReentrantLock[] locks;
+
+  /**
+   * init()
+   *
+   * Initialise the static variables.
+   *
+   * @param config The shared configuration.
+   * @param pool The pool requests are processed on.
+   **/
+  public static void init(JSON config, Pool pool){
+    pstDir = config.get("data").get("post-dir").value("dat/pst");
+    tlnDir = config.get("data").get("timeline-dir").value("dat/tln");
+    readThreads = 4;
+    try{
+      readThreads = Integer.parseInt(config.get("timeline").get("read-threads").value(readThreads + ""));
+    }catch(NumberFormatException e){
+      Utils.warn("Unable to find timeline read threads value");
+    }
+    /* NOTE: Only fan out on virtual threads, see Pool.invokeAll(). */
+    readers = pool != null && pool.isVirtual() && readThreads > 1 ? pool : null;
+    File dir = new File(tlnDir);
+    if(!dir.isDirectory() && !dir.mkdirs()){
+      Utils.warn("Unable to create timeline directory");
+    }
+    locks = new ReentrantLock[LOCK_STRIPES];
+    for(int x = 0; x < locks.length; x++){
+      locks[x] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * append()
+   *
+   * Add a post to the top of a user's timeline. The post should already have
+   * been saved.
+   *
+   * @param user The user whose timeline the post belongs on.
+   * @param post The post made or quoted by the user.
+   * @return True on success, otherwise false.
+   **/
+  public static boolean append(Auth.User user, Post post){
+    if(user == null || post == null){
+      return false;
+    }
+    String path = path(user);
+    ReentrantLock lock = lock(user);
+    lock.lock();
+    try{
+      /* Bring across any posts from before the timeline existed */
+      if(!Data.exists(path)){
+        build(path, Handler.getNextPost(post, user), user);
+      }
+      return Data.append(path, post.id.toString() + "\n");
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  /**
+   * read()
+   *
+   * Read a page of a user's timeline, most recent first.
+   *
+   * @param user The user whose timeline is to be read.
+   * @param offset The number of posts to skip from the most recent.
+   * @param length The maximum number of posts to be read.
+   * @return The posts found, otherwise NULL if the timeline cannot be read.
+   **/
+  public static ArrayList<Post> read(Auth.User user, int offset, int length){
+    if(user == null || offset < 0 || length < 0){
+      return null;
+    }
+    String path = path(user);
+    if(!Data.exists(path)){
+      if(user.latest == null){
+        return new ArrayList<Post>();
+      }
+      ReentrantLock lock = lock(user);
+      lock.lock();
+      try{
+        if(!Data.exists(path)){
+          build(path, Post.readPost(pstDir, user.latest), user);
+        }
+      }finally{
+        lock.unlock();
+      }
+    }
+    I512[] ids = ids(path, offset, length);
+    return ids != null ? posts(ids) : null;
+  }
+
+  /**
+   * hasPost()
+   *
+   * Check whether a post is among the most recent entries of a user's
+   * timeline.
+   *
+   * @param user The user whose timeline is to be checked.
+   * @param id The ID of the post.
+   * @param depth The number of recent entries to check.
+   * @return True if the post was found, otherwise false.
+   **/
+  public static boolean hasPost(Auth.User user, I512 id, int depth){
+    if(user == null || id == null){
+      return false;
+    }
+    String entry = id.toString() + "\n";
+    for(String line : Data.readRearLines(path(user), ENTRY_LEN, 0, depth)){
+      if(entry.equals(line)){
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * ids()
+   *
+   * Read the IDs for a page of the timeline with a single positioned read.
+   *
+   * @param path The timeline file.
+   * @param offset The number of entries to skip from the end.
+   * @param length The maximum number of entries to be read.
+   * @return The IDs, most recent first, otherwise NULL on error.
+   **/
+  private static I512[] ids(String path, int offset, int length){
+    RandomAccessFile raf = null;
+    try{
+      raf = new RandomAccessFile(path, "r");
+      /* NOTE: Only whole entries are read, in case an append is part way. */
+      long entries = raf.length() / ENTRY_LEN;
+      long end = Math.max(entries - offset, 0);
+      long start = Math.max(end - length, 0);
+      ByteBuffer buf = ByteBuffer.allocate((int)(end - start) * ENTRY_LEN);
+      FileChannel fc = raf.getChannel();
+      /* NOTE: A single read may return fewer bytes than asked for. */
+      while(buf.hasRemaining() && fc.read(buf, start * ENTRY_LEN + buf.position()) > 0);
+      int n = buf.position() / ENTRY_LEN;
+      I512[] ids = new I512[n];
+      for(int x = 0; x < n; x++){
+        try{
+          ids[n - 1 - x] = I512.parseBase64(buf, x * ENTRY_LEN, ENTRY_LEN - 1);
+        }catch(RuntimeException e){
+          Utils.warn("Bad entry in timeline file");
+        }
+      }
+      return ids;
+    }catch(IOException e){
+      Utils.warn("Unable to read timeline file");
+      return null;
+    }finally{
+      if(raf != null){
+        try{
+          raf.close();
+        }catch(IOException e){
+          /* Do nothing */
+        }
+      }
+    }
+  }
+
+  /**
+   * posts()
+   *
+   * Read the given posts, keeping their order. If possible the reads are
+   * split between several tasks, each taking every n-th post.
+   *
+   * @param ids The IDs of the posts to be read, which may contain NULL.
+   * @return The posts that could be read.
+   **/
+  private static ArrayList<Post> posts(final I512[] ids){
+    ArrayList<Post> results = new ArrayList<Post>(ids.length);
+    if(readers == null || ids.length <= 1){
+      for(int x = 0; x < ids.length; x++){
+        Post post = Post.readPost(pstDir, ids[x]);
+        if(post != null){
+          results.add(post);
+        }
+      }
+      return results;
+    }
+    final Post[] found = new Post[ids.length];
+    final int n = Math.min(readThreads, ids.length);
+    ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(n);
+    for(int t = 0; t < n; t++){
+      final int first = t;
+      tasks.add(new Callable<Void>(){
+        @Override
+        public Void call(){
+          for(int x = first; x < ids.length; x += n){
+            found[x] = Post.readPost(pstDir, ids[x]);
+          }
+          return null;
+        }
+      });
+    }
+    try{
+      List<Future<Void>> futures = readers.invokeAll(tasks);
+      for(Future<Void> f : futures){
+        f.get();
+      }
+    }catch(InterruptedException e){
+      Utils.warn("Interrupted whilst reading timeline");
+      Thread.currentThread().interrupt();
+    }catch(ExecutionException e){
+      Utils.warn("Failed to read timeline post");
+    }
+    for(int x = 0; x < found.length; x++){
+      if(found[x] != null){
+        results.add(found[x]);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * build()
+   *
+   * Create a timeline by walking the chain of previous posts. The lock for the
+   * user must be held.
+   *
+   * @param path The timeline file.
+   * @param post The most recent post to be included, otherwise NULL.
+   * @param user The user whose timeline is being built.
+   **/
+  private static void build(String path, Post post, Auth.User user){
+    ArrayList<I512> chain = new ArrayList<I512>();
+    while(post != null){
+      chain.add(post.id);
+      post = Handler.getNextPost(post, user);
+    }
+    /* Write oldest first, as if the posts had been appended */
+    Str res = new Str(Math.max(chain.size() * 2, 1));
+    for(int x = chain.size() - 1; x >= 0; x--){
+      res.append(chain.get(x).toString()).append("\n");
+    }
+    if(!Data.write(path, res.toString())){
+      Utils.warn("Unable to write timeline file");
+    }else if(chain.size() > 0){
+      Utils.log("Built timeline of " + chain.size() + " posts for " + user.id);
+    }
+  }
+
+  /**
+   * path()
+   *
+   * Get the timeline file for a user.
+   *
+   * @param user The user.
+   * @return The path of the timeline file.
+   **/
+  private static String path(Auth.User user){
+    return Data.locate(tlnDir, user.id);
+  }
+
+  /**
+   * lock()
+   *
+   * Get the lock guarding the creation of a user's timeline.
+   *
+   * @param user The user.
+   * @return The lock for the user.
+   **/
+  private static ReentrantLock lock(Auth.User user){
+    return locks[(user.id.hashCode() & 0x7FFFFFFF) % LOCK_STRIPES];
+  }
+}
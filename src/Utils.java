@@ -9,8 +9,6 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import javah.utility.Base64;
 
 /**
@@ -19,12 +17,11 @@ import javah.utility.Base64;
  * Useful utilities use within the program.
  **/
 public class Utils{
-  private static final int DISK_BUFF_MAX = 4096;
-  private static final int DISK_BUFF_CAP = DISK_BUFF_MAX / 32;
+  private static final int LOG_SIZE = 4096;
 
   private static BufferedWriter bw;
-  private static Lock logLock;
-  private static Str diskBuff;
+  private static volatile Logger logger;
+  private static volatile boolean caller;
   private static Str gitHash;
   private static Str buildDate;
 
@@ -34,10 +31,13 @@ public class Utils{
       bw = new BufferedWriter(new FileWriter(new File("d3ad.log"), true));
     }catch(IOException e){
       bw = null;
+    }
+    caller = true;
+    /* NOTE: Records are written directly until the logger is configured. */
+    logger = null;
+    if(bw == null){
       warn("Failed to open log file");
     }
-    logLock = new ReentrantLock();
-    diskBuff = new Str(DISK_BUFF_CAP);
     gitHash = new Str("Unknown");
     buildDate = new Str("Unknown");
     try{
@@ -54,6 +54,33 @@ public class Utils{
     }
   }
 
+  /**
+   * init()
+   *
+   * Apply the logging configuration and start the logger. There is only ever
+   * one logger, so no records can be lost to one being replaced.
+   *
+   * @param config The shared configuration.
+   **/
+  public static void init(JSON config){
+    int logSize = LOG_SIZE;
+    try{
+      logSize = Integer.parseInt(config.get("log").get("buffer-size").value(logSize + ""));
+    }catch(NumberFormatException e){
+      warn("Unable to find log buffer size value");
+    }
+    String logFull = config.get("log").get("full").value(Logger.FULL_BLOCK);
+    caller = config.get("log").get("caller").value(caller + "").equals("true");
+    if(logger != null){
+      warn("Logger already configured");
+      return;
+    }
+    logger = new Logger(logSize, logFull, bw);
+    log("Requested log buffer size is '" + logSize + "'");
+    log("Requested log full policy is '" + logFull + "'");
+    log("Requested log caller is '"      + caller  + "'");
+  }
+
   /**
    * timestamp()
    *
@@ -68,51 +95,65 @@ public class Utils{
   /**
    * write()
    *
-   * Write a thread safe log message to the terminal and disk.
+   * Queue a thread safe log message for the terminal and disk.
    *
    * @param type The type identifier for the message.
    * @param msg The message to be printed.
-   * @param force True if we should force a disk write, otherwise allow the
-   * logger to batch disk writes. You may want to force a disk write on an
-   * error for example, where it's possible the program may crash soon.
+   * @param force True if we should wait for the message to be written. You
+   * may want to force a disk write on an error for example, where it's
+   * possible the program may crash soon.
    **/
   private static void write(String type, String msg, boolean force){
-    StackTraceElement ste = Thread.currentThread().getStackTrace()[3];
     Str sb = (new Str(16))
       .append("[")
-      .append(Long.toString(timestamp()))
+      .append(timestamp())
       .append("] (")
-      .append(Long.toString(Thread.currentThread().getId()))
-      .append(") ")
-      .append(ste.getClassName())
-      .append("->")
-      .append(ste.getMethodName())
-      .append("()::")
-      .append(Integer.toString(ste.getLineNumber()))
-      .append(" [")
+      .append(Thread.currentThread().getId())
+      .append(") ");
+    /* NOTE: Finding the caller is expensive, so it is optional. */
+    if(caller){
+      StackTraceElement ste = Thread.currentThread().getStackTrace()[3];
+      sb.append(ste.getClassName())
+        .append("->")
+        .append(ste.getMethodName())
+        .append("()::")
+        .append(ste.getLineNumber())
+        .append(" ");
+    }
+    sb.append("[")
       .append(type)
       .append("] ")
       .append(msg)
       .append(System.lineSeparator());
-    logLock.lock();
-    /* Write error stream so program output can be separated from logs */
-    String s = sb.toString();
-    System.err.print(s);
+    Logger l = logger;
+    if(l == null){
+      direct(sb.toString());
+      return;
+    }
+    l.add(sb.toString());
+    if(force){
+      l.flush(1000);
+    }
+  }
+
+  /**
+   * direct()
+   *
+   * Write a record straight to the terminal and disk, for use before the
+   * logger is configured.
+   *
+   * @param rec The complete record, including the line ending.
+   **/
+  private static synchronized void direct(String rec){
+    System.err.print(rec);
     if(bw != null){
-      /* Append to disk buffer */
-      diskBuff.append(s);
-      /* Only write to disk if force or buffer is filled */
-      if(force || diskBuff.length() > DISK_BUFF_MAX){
-        try{
-          bw.append(diskBuff.toString());
-          bw.flush();
-          diskBuff = new Str(DISK_BUFF_CAP);
-        }catch(IOException e){
-          /* Don't log, we could end up in an infinite loop */
-        }
+      try{
+        bw.append(rec);
+        bw.flush();
+      }catch(IOException e){
+        /* Don't log, we could end up in an infinite loop */
       }
     }
-    logLock.unlock();
   }
 
   /**
@@ -161,6 +202,10 @@ public class Utils{
    **/
   public static void error(String msg){
     write("EE", msg, true);
+    Logger l = logger;
+    if(l != null){
+      l.close(1000);
+    }
     if(bw != null){
       try{
         bw.flush();